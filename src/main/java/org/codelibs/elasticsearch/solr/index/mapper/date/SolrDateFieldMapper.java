@@ -713,6 +713,24 @@ public class SolrDateFieldMapper extends NumberFieldMapper<Long> {
     }
 
     private long parseStringValue(final String value) {
+        return parseDate(dateTimeFormatter, timeUnit, value);
+    }
+
+    /**
+     * Parses a date by the format, Solr date math, or a timestamp number as
+     * a solr_date field does.
+     *
+     * @param dateTimeFormatter
+     *            the format of the field
+     * @param timeUnit
+     *            the unit of a timestamp number
+     * @param value
+     *            the date string
+     * @return the date in milliseconds
+     */
+    public static long parseDate(
+            final FormatDateTimeFormatter dateTimeFormatter,
+            final TimeUnit timeUnit, final String value) {
         try {
             return dateTimeFormatter.parser().parseMillis(value);
         } catch (final Exception ignore) {
@@ -734,7 +752,7 @@ public class SolrDateFieldMapper extends NumberFieldMapper<Long> {
         }
     }
 
-    protected Date parseSolrDateMath(final String val, final long now)
+    protected static Date parseSolrDateMath(final String val, final long now)
             throws ParseException {
         String math = null;
         final org.apache.solr.util.DateMathParser p = new org.apache.solr.util.DateMathParser();
@@ -0,0 +1,11 @@
+package org.codelibs.elasticsearch.solr.plugin;
+
+import org.codelibs.elasticsearch.solr.update.UpdateJobQueue;
+import org.elasticsearch.common.inject.AbstractModule;
+
+public class SolrModule extends AbstractModule {
+    @Override
+    protected void configure() {
+        this.bind(UpdateJobQueue.class).asEagerSingleton();
+    }
+}
@@ -5,9 +5,14 @@ import java.util.Collection;
 
 import org.codelibs.elasticsearch.solr.rest.SolrSearchRestAction;
 import org.codelibs.elasticsearch.solr.rest.SolrUpdateRestAction;
+import org.codelibs.elasticsearch.solr.update.AtomicUpdateScriptFactory;
+import org.codelibs.elasticsearch.solr.update.AtomicUpdates;
+import org.codelibs.elasticsearch.solr.update.UpdateJobQueue;
+import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.plugins.AbstractPlugin;
 import org.elasticsearch.rest.RestModule;
+import org.elasticsearch.script.ScriptModule;
 
 public class SolrPlugin extends AbstractPlugin {
 
@@ -34,6 +39,25 @@ public class SolrPlugin extends AbstractPlugin {
         module.addRestAction(SolrSearchRestAction.class);
     }
 
+    public void onModule(final ScriptModule module) {
+        module.registerScript(AtomicUpdates.SCRIPT_NAME,
+                AtomicUpdateScriptFactory.class);
+    }
+
+    @Override
+    public Collection<Class<? extends Module>> modules() {
+        final Collection<Class<? extends Module>> modules = new ArrayList<Class<? extends Module>>();
+        modules.add(SolrModule.class);
+        return modules;
+    }
+
+    @Override
+    public Collection<Class<? extends LifecycleComponent>> services() {
+        final Collection<Class<? extends LifecycleComponent>> services = new ArrayList<Class<? extends LifecycleComponent>>();
+        services.add(UpdateJobQueue.class);
+        return services;
+    }
+
     @Override
     public Collection<Class<? extends Module>> indexModules() {
         final Collection<Class<? extends Module>> modules = new ArrayList<Class<? extends Module>>();
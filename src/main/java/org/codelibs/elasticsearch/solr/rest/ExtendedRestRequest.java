@@ -29,10 +29,25 @@ public class ExtendedRestRequest extends RestRequest {
 
     private RestRequest parent;
 
+    private final BytesReference content;
+
     private volatile Map<String, List<String>> paramMap;
 
     public ExtendedRestRequest(final RestRequest request) {
+        this(request, null);
+    }
+
+    /**
+     * @param request
+     *            the original request
+     * @param content
+     *            the content used instead of the one of the original
+     *            request, or null
+     */
+    public ExtendedRestRequest(final RestRequest request,
+            final BytesReference content) {
         parent = request;
+        this.content = content;
     }
 
     private String getPath(final String uri) {
@@ -140,11 +155,17 @@ public class ExtendedRestRequest extends RestRequest {
 
     @Override
     public boolean hasContent() {
+        if (content != null) {
+            return content.length() > 0;
+        }
         return parent.hasContent();
     }
 
     @Override
     public BytesReference content() {
+        if (content != null) {
+            return content;
+        }
         return parent.content();
     }
 
@@ -303,7 +324,11 @@ public class ExtendedRestRequest extends RestRequest {
             return true;
         }
         return contentType.indexOf("application/javabin") < 0
-                && contentType.indexOf("application/xml") < 0;
+                && contentType.indexOf("application/xml") < 0
+                && contentType.indexOf("application/json") < 0
+                && contentType.indexOf("text/json") < 0
+                && contentType.indexOf("text/csv") < 0
+                && contentType.indexOf("application/csv") < 0;
     }
 
     private void initParameterMap() {
@@ -316,7 +341,7 @@ public class ExtendedRestRequest extends RestRequest {
             } else {
                 uriBuf.append('?');
             }
-            uriBuf.append(parent.content().toUtf8());
+            uriBuf.append(content().toUtf8());
         }
 
         Map<String, List<String>> requestParamMap;
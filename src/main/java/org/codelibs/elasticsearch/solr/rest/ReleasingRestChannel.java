@@ -0,0 +1,33 @@
+package org.codelibs.elasticsearch.solr.rest;
+
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestResponse;
+
+/**
+ * Releases the resources of a request when its response is sent.
+ *
+ * @author shinsuke
+ *
+ */
+public class ReleasingRestChannel extends RestChannel {
+
+    private final RestChannel channel;
+
+    private final Releasable releasable;
+
+    public ReleasingRestChannel(final RestChannel channel,
+            final Releasable releasable) {
+        super(channel.request(), channel.detailedErrorsEnabled());
+        this.channel = channel;
+        this.releasable = releasable;
+    }
+
+    @Override
+    public void sendResponse(final RestResponse response) {
+        // released first, the client may send its next request as soon as
+        // it has the response
+        releasable.close();
+        channel.sendResponse(response);
+    }
+}
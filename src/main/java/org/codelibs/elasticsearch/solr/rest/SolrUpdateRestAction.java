@@ -1,67 +1,113 @@
 package org.codelibs.elasticsearch.solr.rest;
 
-import java.io.ByteArrayInputStream;
-import java.io.StringReader;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Locale;
 
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 
-import org.apache.commons.codec.binary.Hex;
-import org.apache.commons.lang.StringUtils;
+import org.apache.lucene.util.IOUtils;
 import org.apache.solr.client.solrj.request.AbstractUpdateRequest.ACTION;
 import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.SolrInputField;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.FastInputStream;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
 import org.codelibs.elasticsearch.solr.SolrPluginConstants;
 import org.codelibs.elasticsearch.solr.solr.JavaBinUpdateRequestCodec;
 import org.codelibs.elasticsearch.solr.solr.SolrResponseUtils;
+import org.codelibs.elasticsearch.solr.update.AtomicUpdates;
+import org.codelibs.elasticsearch.solr.update.BulkRetryPolicy;
+import org.codelibs.elasticsearch.solr.update.CommitCommand;
+import org.codelibs.elasticsearch.solr.update.CommitScheduler;
+import org.codelibs.elasticsearch.solr.update.ContentDecompressor;
+import org.codelibs.elasticsearch.solr.update.ContentTooLargeException;
+import org.codelibs.elasticsearch.solr.update.CsvUpdateLoader;
+import org.codelibs.elasticsearch.solr.update.DeleteByQueryProcessor;
+import org.codelibs.elasticsearch.solr.update.DeleteQuery;
+import org.codelibs.elasticsearch.solr.update.DocumentRouter;
+import org.codelibs.elasticsearch.solr.update.FieldTypeRegistry;
+import org.codelibs.elasticsearch.solr.update.IdGenerator;
+import org.codelibs.elasticsearch.solr.update.IdHasher;
+import org.codelibs.elasticsearch.solr.update.SignatureDeduplicator;
+import org.codelibs.elasticsearch.solr.update.UpdateAdmissionController;
+import org.codelibs.elasticsearch.solr.update.UpdateBulkProcessor;
+import org.codelibs.elasticsearch.solr.update.UpdateContext;
+import org.codelibs.elasticsearch.solr.update.UpdateDocument;
+import org.codelibs.elasticsearch.solr.update.UpdateFailure;
+import org.codelibs.elasticsearch.solr.update.UpdateJob;
+import org.codelibs.elasticsearch.solr.update.UpdateJobQueue;
+import org.codelibs.elasticsearch.solr.update.processor.UpdateChain;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.ElasticsearchParseException;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionRequest;
-import org.elasticsearch.action.WriteConsistencyLevel;
-import org.elasticsearch.action.admin.indices.flush.FlushRequest;
-import org.elasticsearch.action.admin.indices.flush.FlushResponse;
 import org.elasticsearch.action.admin.indices.optimize.OptimizeRequest;
 import org.elasticsearch.action.admin.indices.optimize.OptimizeResponse;
-import org.elasticsearch.action.bulk.BulkItemResponse;
-import org.elasticsearch.action.bulk.BulkItemResponse.Failure;
-import org.elasticsearch.action.bulk.BulkRequest;
-import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
-import org.elasticsearch.action.deletebyquery.DeleteByQueryRequest;
-import org.elasticsearch.action.deletebyquery.DeleteByQueryResponse;
 import org.elasticsearch.action.index.IndexRequest;
-import org.elasticsearch.action.support.QuerySourceBuilder;
-import org.elasticsearch.action.support.replication.ReplicationType;
-import org.elasticsearch.action.support.replication.ShardReplicationOperationRequest;
 import org.elasticsearch.client.Client;
-import org.elasticsearch.client.Requests;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.lease.Releasable;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.VersionType;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
 import org.elasticsearch.rest.RestChannel;
 import org.elasticsearch.rest.RestController;
 import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.threadpool.ThreadPool;
 
 public class SolrUpdateRestAction extends BaseRestHandler {
 
     private static final String TRUE = "true";
 
+    private static final String JSON_DOCS_PATH = "/json/docs";
+
+    private static final String VERSION_FIELD = "_version_";
+
+    private static final String STATS_PATH = "/_solr/update/stats";
+
+    // the field of Solr JSON documents with the child documents
+    private static final String CHILD_DOCUMENTS = "_childDocuments_";
+
+    private static final String NESTED_MODE = "nested";
+
+    private static final String PARENT_CHILD_MODE = "parent_child";
+
     // fields in the Solr input document to scan for a document id
     private static final String[] DEFAULT_ID_FIELDS = { "id", "docid",
             "documentid", "contentid", "uuid", "url" };
@@ -76,6 +122,10 @@ public class SolrUpdateRestAction extends BaseRestHandler {
     // false' to elasticsearch.yml
     private final boolean hashIds;
 
+    private final IdHasher idHasher;
+
+    private final IdGenerator idGenerator;
+
     private final boolean commitAsFlush;
 
     private final boolean optimizeAsOptimize;
@@ -86,6 +136,62 @@ public class SolrUpdateRestAction extends BaseRestHandler {
 
     private final String[] idFields;
 
+    private final int bulkMaxDocs;
+
+    private final long bulkMaxBytes;
+
+    private final int bulkConcurrentRequests;
+
+    private final XContentType sourceContentType;
+
+    private final CommitScheduler commitScheduler;
+
+    private final ThreadPool threadPool;
+
+    private final int deleteByQueryBatchSize;
+
+    private final float deleteByQueryDocsPerSecond;
+
+    private final TimeValue deleteByQueryScroll;
+
+    private final int deleteByQueryMaxMergedQueries;
+
+    private final int deleteByQueryConcurrentQueries;
+
+    private final int retryOnConflict;
+
+    private final VersionType versionType;
+
+    private final Map<String, UpdateChain> updateChains;
+
+    private final String defaultUpdateChain;
+
+    private final SignatureDeduplicator deduplicator;
+
+    private final UpdateJobQueue jobQueue;
+
+    private final UpdateAdmissionController admissionController;
+
+    private final TimeValue retryAfter;
+
+    private final BulkRetryPolicy bulkRetryPolicy;
+
+    private final int maxErrors;
+
+    private final boolean nestedChildDocuments;
+
+    private final String childDocumentsField;
+
+    private final String childDocumentsType;
+
+    private final ClusterService clusterService;
+
+    private final FieldTypeRegistry fieldTypeRegistry;
+
+    private final DocumentRouter documentRouter;
+
+    private final ContentDecompressor contentDecompressor;
+
     private Boolean lowercaseExpandedTerms;
 
     private Boolean autoGeneratePhraseQueries;
@@ -99,13 +205,24 @@ public class SolrUpdateRestAction extends BaseRestHandler {
      *            ES client
      * @param restController
      *            ES rest controller
+     * @param threadPool
+     *            ES thread pool
+     * @param clusterService
+     *            ES cluster service
+     * @param jobQueue
+     *            the queue of async update requests
      */
     @Inject
     public SolrUpdateRestAction(final Settings settings, final Client client,
-            final RestController restController) {
+            final RestController restController, final ThreadPool threadPool,
+            final ClusterService clusterService, final UpdateJobQueue jobQueue) {
         super(settings, restController, client);
 
         hashIds = settings.getAsBoolean("solr.hashIds", false);
+        idHasher = IdHasher.create(settings.get("solr.hashIds.algorithm",
+                "MD5"));
+        idGenerator = IdGenerator.create(settings.get("solr.idGenerator",
+                IdGenerator.UUID_TYPE));
         commitAsFlush = settings.getAsBoolean("solr.commitAsFlush", true);
         optimizeAsOptimize = settings.getAsBoolean("solr.optimizeAsOptimize",
                 true);
@@ -119,6 +236,84 @@ public class SolrUpdateRestAction extends BaseRestHandler {
 
         idFields = settings.getAsArray("solr.idFields", DEFAULT_ID_FIELDS);
 
+        bulkMaxDocs = settings.getAsInt("solr.update.bulk.max_docs", 1000);
+        bulkMaxBytes = settings.getAsBytesSize("solr.update.bulk.max_bytes",
+                new ByteSizeValue(5, ByteSizeUnit.MB)).bytes();
+        bulkConcurrentRequests = settings.getAsInt(
+                "solr.update.bulk.concurrent_requests", 1);
+        sourceContentType = XContentType.valueOf(settings.get(
+                "solr.update.source_format", "json").toUpperCase(Locale.ROOT));
+        commitScheduler = new CommitScheduler(client, threadPool);
+        this.threadPool = threadPool;
+        deleteByQueryBatchSize = settings.getAsInt(
+                "solr.update.delete_by_query.batch_size", 500);
+        deleteByQueryDocsPerSecond = settings.getAsFloat(
+                "solr.update.delete_by_query.docs_per_second", 0f);
+        deleteByQueryScroll = settings.getAsTime(
+                "solr.update.delete_by_query.scroll",
+                TimeValue.timeValueMinutes(5));
+        deleteByQueryMaxMergedQueries = settings.getAsInt(
+                "solr.update.delete_by_query.max_merged_queries", 100);
+        deleteByQueryConcurrentQueries = settings.getAsInt(
+                "solr.update.delete_by_query.concurrent_queries", 2);
+        retryOnConflict = settings.getAsInt("solr.update.retry_on_conflict",
+                3);
+        versionType = VersionType.fromString(settings.get(
+                "solr.update.version_type", "external"));
+        updateChains = UpdateChain.load(settings);
+        deduplicator = settings.getAsBoolean(
+                "solr.update.signature.enabled", false) ? new SignatureDeduplicator(
+                client, settings.getAsArray("solr.update.signature.fields"),
+                settings.get("solr.update.signature.field", "signature"),
+                settings.get("solr.update.signature.algorithm", "murmur3"),
+                settings.getAsInt("solr.update.signature.cache_size", 100000))
+                : null;
+        defaultUpdateChain = settings.get("solr.update.default_chain");
+        if (defaultUpdateChain != null
+                && !updateChains.containsKey(defaultUpdateChain)) {
+            throw new ElasticsearchIllegalArgumentException(
+                    "Unknown update chain: " + defaultUpdateChain);
+        }
+        this.jobQueue = jobQueue;
+        admissionController = new UpdateAdmissionController(settings
+                .getAsMemory("solr.update.max_inflight_bytes", "10%").bytes(),
+                settings.getAsInt("solr.update.max_inflight_requests", 100));
+        retryAfter = settings.getAsTime("solr.update.retry_after",
+                TimeValue.timeValueSeconds(1));
+        final int bulkMaxRetries = settings.getAsInt(
+                "solr.update.bulk.max_retries", 3);
+        bulkRetryPolicy = bulkMaxRetries > 0 ? new BulkRetryPolicy(
+                threadPool, bulkMaxRetries, settings.getAsTime(
+                        "solr.update.bulk.retry_backoff",
+                        TimeValue.timeValueMillis(100)), settings.getAsTime(
+                        "solr.update.bulk.max_retry_backoff",
+                        TimeValue.timeValueSeconds(5))) : null;
+        maxErrors = settings.getAsInt("solr.update.max_errors", 0);
+        final String childDocumentsMode = settings.get(
+                "solr.update.child_documents.mode", NESTED_MODE);
+        if (!NESTED_MODE.equals(childDocumentsMode)
+                && !PARENT_CHILD_MODE.equals(childDocumentsMode)) {
+            throw new ElasticsearchIllegalArgumentException(
+                    "Unknown child documents mode: " + childDocumentsMode);
+        }
+        nestedChildDocuments = NESTED_MODE.equals(childDocumentsMode);
+        childDocumentsField = settings.get(
+                "solr.update.child_documents.field", CHILD_DOCUMENTS);
+        childDocumentsType = settings.get("solr.update.child_documents.type",
+                "child");
+        this.clusterService = clusterService;
+        fieldTypeRegistry = settings.getAsBoolean(
+                "solr.update.coerce.enabled", false) ? new FieldTypeRegistry(
+                clusterService) : null;
+        documentRouter = new DocumentRouter(clusterService,
+                settings.getAsBoolean("solr.compositeId", false),
+                settings.get("solr.routingField"));
+        // a compressed body expands to at most the size of a plain body
+        contentDecompressor = new ContentDecompressor(settings.getAsBytesSize(
+                "solr.update.max_inflated_size",
+                settings.getAsBytesSize("http.max_content_length",
+                        new ByteSizeValue(100, ByteSizeUnit.MB))).bytes());
+
         lowercaseExpandedTerms = settings.getAsBoolean(
                 "solr.lowercaseExpandedTerms", false);
         autoGeneratePhraseQueries = settings.getAsBoolean(
@@ -142,6 +337,22 @@ public class SolrUpdateRestAction extends BaseRestHandler {
                 "/{index}/_solr/update", this);
         restController.registerHandler(RestRequest.Method.POST,
                 "/{index}/{type}/_solr/update", this);
+        restController.registerHandler(RestRequest.Method.POST,
+                "/{index}/_solr/update/{handler}", this);
+        restController.registerHandler(RestRequest.Method.POST,
+                "/{index}/{type}/_solr/update/{handler}", this);
+        restController.registerHandler(RestRequest.Method.POST,
+                "/_solr/update" + JSON_DOCS_PATH, this);
+        restController.registerHandler(RestRequest.Method.POST,
+                "/{index}/_solr/update" + JSON_DOCS_PATH, this);
+        restController.registerHandler(RestRequest.Method.POST,
+                "/{index}/{type}/_solr/update" + JSON_DOCS_PATH, this);
+        // the status of async update requests
+        restController.registerHandler(RestRequest.Method.GET,
+                "/_solr/update/status/{job_id}", this);
+        // the counters of the admission control and async jobs
+        restController.registerHandler(RestRequest.Method.GET, STATS_PATH,
+                this);
     }
 
     @Override
@@ -149,55 +360,266 @@ public class SolrUpdateRestAction extends BaseRestHandler {
             final RestChannel channel, final Client client) {
         final long startTime = System.currentTimeMillis();
 
-        final RestRequest requestEx = new ExtendedRestRequest(request);
+        final String jobId = request.param("job_id");
+        if (jobId != null) {
+            sendJobStatus(new ExtendedRestRequest(request), channel, jobId,
+                    startTime);
+            return;
+        }
+
+        if (STATS_PATH.equals(request.rawPath())) {
+            final NamedList<Object> result = new SimpleOrderedMap<Object>();
+            result.add("admission", admissionController.stats());
+            result.add("async", jobQueue.stats());
+            sendResponse(new ExtendedRestRequest(request), channel, 0,
+                    System.currentTimeMillis() - startTime, null, result);
+            return;
+        }
+
+        // the content is received, but not parsed yet
+        final long contentLength = request.hasContent() ? request.content()
+                .length() : 0;
+        if (admissionController.isTooLarge(contentLength)) {
+            sendRejectedResponse(request, channel,
+                    RestStatus.REQUEST_ENTITY_TOO_LARGE,
+                    "The update request is too large: " + contentLength
+                            + " bytes", startTime);
+            return;
+        }
+        final Releasable permit = admissionController
+                .tryAcquire(contentLength);
+        if (permit == null) {
+            sendRejectedResponse(request, channel,
+                    RestStatus.SERVICE_UNAVAILABLE,
+                    "Too many update requests in flight.", startTime);
+            return;
+        }
+
+        if (request.paramAsBoolean("async", false)) {
+            submitJob(request, channel, client, startTime, permit);
+            return;
+        }
+
+        // the parsing waits for the bulk requests of the chunks, so it is
+        // forked not to block the http worker, and the content is read from
+        // the buffer of the http request
+        final RestRequest requestEx = new ExtendedRestRequest(request,
+                request.hasContent() ? request.content() : null);
+        final RestChannel releasingChannel = new ReleasingRestChannel(
+                channel, permit);
+        try {
+            threadPool.executor(ThreadPool.Names.GENERIC).execute(
+                    new AbstractRunnable() {
+                        @Override
+                        protected void doRun() throws Exception {
+                            processRequest(requestEx, releasingChannel,
+                                    client, startTime);
+                        }
+
+                        @Override
+                        public void onFailure(final Throwable t) {
+                            logger.error("Failed to process the update request.",
+                                    t);
+                            releasingChannel.sendResponse(new BytesRestResponse(
+                                    RestStatus.INTERNAL_SERVER_ERROR, t
+                                            .toString()));
+                        }
+                    });
+        } catch (final EsRejectedExecutionException e) {
+            permit.close();
+            logger.warn("The update request is rejected.", e);
+            sendRejectedResponse(request, channel,
+                    RestStatus.SERVICE_UNAVAILABLE,
+                    "The update request is rejected.", startTime);
+        }
+    }
+
+    /**
+     * Sends an error response to a request which is not processed. A client
+     * is asked to retry a request rejected by the load.
+     */
+    private void sendRejectedResponse(final RestRequest request,
+            final RestChannel channel, final RestStatus status,
+            final String msg, final long startTime) {
+        final NamedList<Object> errorResponse = new SimpleOrderedMap<Object>();
+        errorResponse.add("code", status.getStatus());
+        errorResponse.add("msg", msg);
+        final NamedList<Object> solrResponse = new SimpleOrderedMap<Object>();
+        final NamedList<Object> responseHeader = new SimpleOrderedMap<Object>();
+        responseHeader.add("status", status.getStatus());
+        responseHeader.add("QTime",
+                (int) (System.currentTimeMillis() - startTime));
+        solrResponse.add("responseHeader", responseHeader);
+        solrResponse.add("error", errorResponse);
+
+        Map<String, String> headers = null;
+        if (status == RestStatus.SERVICE_UNAVAILABLE) {
+            headers = Collections.singletonMap("Retry-After", Long
+                    .toString(Math.max(1, retryAfter.seconds())));
+        }
+        SolrResponseUtils.writeResponse(solrResponse, new ExtendedRestRequest(
+                request), channel, status, headers);
+    }
+
+    /**
+     * Queues the update request and answers with the job id. The request is
+     * processed by a worker of the job queue on the channel of the job.
+     */
+    private void submitJob(final RestRequest request,
+            final RestChannel channel, final Client client,
+            final long startTime, final Releasable permit) {
+        final RestRequest requestEx = new ExtendedRestRequest(request,
+                request.content());
+        final UpdateJob job;
+        try {
+            job = jobQueue.submit(requestEx, new UpdateJobQueue.Runner() {
+                @Override
+                public void run(final UpdateJob asyncJob) {
+                    processRequest(requestEx, asyncJob, client,
+                            System.currentTimeMillis());
+                }
+            }, permit);
+        } catch (final EsRejectedExecutionException e) {
+            logger.warn("The update job queue is full.", e);
+            sendRejectedResponse(request, channel,
+                    RestStatus.SERVICE_UNAVAILABLE,
+                    "The update job queue is full.", startTime);
+            return;
+        }
+
+        final NamedList<Object> result = new SimpleOrderedMap<Object>();
+        result.add("job", job.toNamedList());
+        sendResponse(requestEx, channel, 0, System.currentTimeMillis()
+                - startTime, null, result);
+    }
+
+    private void sendJobStatus(final RestRequest request,
+            final RestChannel channel, final String jobId,
+            final long startTime) {
+        final UpdateJob job = jobQueue.get(jobId);
+        if (job == null) {
+            final NamedList<Object> errorResponse = new SimpleOrderedMap<Object>();
+            errorResponse.add("code", 404);
+            errorResponse.add("msg", "Unknown job: " + jobId);
+            sendResponse(request, channel, 404, System.currentTimeMillis()
+                    - startTime, errorResponse);
+            return;
+        }
+
+        final NamedList<Object> result = new SimpleOrderedMap<Object>();
+        result.add("job", job.toNamedList());
+        sendResponse(request, channel, 0, System.currentTimeMillis()
+                - startTime, null, result);
+    }
 
-        boolean isCommit = false;
+    private void processRequest(final RestRequest requestEx,
+            final RestChannel channel, final Client client,
+            final long startTime) {
         boolean isOptimize = false;
+        boolean isRollback = false;
 
         // get the type of Solr update handler we want to mock, default to xml
-        final String contentType = request.header("Content-Type");
+        final String contentType = requestEx.header("Content-Type");
         String requestType = null;
         if (contentType != null) {
             if (contentType.indexOf("application/javabin") >= 0) {
                 requestType = SolrPluginConstants.JAVABIN_FORMAT_TYPE;
+            } else if (contentType.indexOf("application/json") >= 0
+                    || contentType.indexOf("text/json") >= 0) {
+                requestType = SolrPluginConstants.JSON_FORMAT_TYPE;
+            } else if (contentType.indexOf("text/csv") >= 0
+                    || contentType.indexOf("application/csv") >= 0) {
+                requestType = SolrPluginConstants.CSV_FORMAT_TYPE;
             } else if (contentType.indexOf("application/x-www-form-urlencoded") >= 0) {
-                isCommit = requestEx.paramAsBoolean("commit", false);
                 isOptimize = requestEx.paramAsBoolean("optimize", false);
                 requestType = SolrPluginConstants.NONE_FORMAT_TYPE;
             }
         }
         if (requestType == null) {
-            requestType = SolrPluginConstants.XML_FORMAT_TYPE;
+            if (SolrPluginConstants.JSON_FORMAT_TYPE.equals(requestEx
+                    .param("handler"))
+                    || requestEx.rawPath().endsWith(JSON_DOCS_PATH)) {
+                requestType = SolrPluginConstants.JSON_FORMAT_TYPE;
+            } else if (SolrPluginConstants.CSV_FORMAT_TYPE.equals(requestEx
+                    .param("handler"))) {
+                requestType = SolrPluginConstants.CSV_FORMAT_TYPE;
+            } else {
+                requestType = SolrPluginConstants.XML_FORMAT_TYPE;
+            }
         }
 
         // Requests are typically sent to Solr in batches of documents
-        // We can copy that by submitting batch requests to Solr
-        final BulkRequest bulkRequest = Requests.bulkRequest();
-        final List<DeleteByQueryRequest> deleteQueryList = new ArrayList<DeleteByQueryRequest>();
+        // We can copy that by submitting batch requests to Solr.
+        // Large batches are split into chunks which are sent while parsing.
+        final UpdateBulkProcessor bulkProcessor = new UpdateBulkProcessor(
+                client, bulkMaxDocs, bulkMaxBytes, bulkConcurrentRequests,
+                requestEx.paramAsBoolean("versions", false), deduplicator,
+                bulkRetryPolicy);
+        if (channel instanceof UpdateJob) {
+            ((UpdateJob) channel).setBulkProcessor(bulkProcessor);
+        }
+        final List<DeleteQuery> deleteQueryList = new ArrayList<DeleteQuery>();
+
+        // failures up to maxErrors are reported without failing the request,
+        // like Solr's TolerantUpdateProcessor, and -1 tolerates all
+        final int requestMaxErrors = requestEx.paramAsInt("maxErrors",
+                maxErrors);
+
+        // the update chain runs on each document while parsing
+        final String updateChainName = requestEx.param("update.chain",
+                defaultUpdateChain);
+        final UpdateChain updateChain = updateChainName != null ? updateChains
+                .get(updateChainName) : null;
+        if (updateChainName != null && updateChain == null) {
+            final NamedList<Object> errorResponse = new SimpleOrderedMap<Object>();
+            errorResponse.add("code", 400);
+            errorResponse.add("msg", "Unknown update chain: "
+                    + updateChainName);
+            sendResponse(requestEx, channel, 400, System.currentTimeMillis()
+                    - startTime, errorResponse);
+            return;
+        }
+
+        // the request parameters are resolved once for all documents
+        final UpdateContext context = new UpdateContext(requestEx,
+                defaultIndexName, defaultTypeName, updateChain, documentRouter);
+
+        // reused for all documents in this request
+        final UpdateDocument doc = new UpdateDocument();
+
+        // commits are executed after all updates of this request
+        final CommitCommand commitCommand = new CommitCommand();
+        commitCommand.addCommitWithin(context.commitWithin());
+        final boolean softCommit = requestEx.paramAsBoolean("softCommit",
+                false);
+        if (softCommit || requestEx.paramAsBoolean("commit", false)
+                || requestEx.paramAsBoolean("prepareCommit", false)) {
+            commitCommand.addCommit(softCommit, requestEx.paramAsBoolean(
+                    "waitSearcher",
+                    requestEx.paramAsBoolean("waitFlush", true)));
+        }
 
         // parse and handle the content
         final BytesReference content = requestEx.content();
         if (content.length() == 0) {
-            if (TRUE.equalsIgnoreCase(requestEx.param("commit"))
-                    || TRUE.equalsIgnoreCase(requestEx.param("softCommit"))
-                    || TRUE.equalsIgnoreCase(requestEx.param("prepareCommit"))
-                    || StringUtils.isNotBlank(requestEx.param("commitWithin"))) {
-                isCommit = true;
-            } else if (TRUE.equalsIgnoreCase(requestEx.param("optimize"))) {
+            if (TRUE.equalsIgnoreCase(requestEx.param("optimize"))) {
                 isOptimize = true;
             } else if (TRUE.equalsIgnoreCase(requestEx.param("rollback"))) {
-                isCommit = true; // rollback is not supported
+                isRollback = true;
             }
         } else if (SolrPluginConstants.XML_FORMAT_TYPE.equals(requestType)) {
             // XML Content
+            InputStream in = null;
             XMLStreamReader parser = null;
             try {
                 // create parser for the content
-                parser = inputFactory.createXMLStreamReader(new StringReader(
-                        content.toUtf8()));
+                // read the bytes directly, the parser detects the encoding
+                in = contentDecompressor.streamInput(content);
+                parser = inputFactory.createXMLStreamReader(in);
 
                 // parse the xml
                 // we only care about doc and delete tags for now
+                Boolean overwrite = null;
                 boolean stop = false;
                 while (!stop) {
                     // get the xml "event"
@@ -214,29 +636,45 @@ public class SolrUpdateRestAction extends BaseRestHandler {
                         final String currTag = parser.getLocalName();
                         if ("doc".equals(currTag)) {
                             // add a document
-                            final Map<String, Object> doc = parseXmlDoc(parser);
-                            if (doc != null) {
-                                bulkRequest
-                                        .add(getIndexRequest(doc, requestEx));
+                            if (parseXmlDoc(parser, doc)) {
+                                doc.setOverwrite(overwrite);
+                                addDocument(doc, context, bulkProcessor, deleteQueryList);
+                            }
+                        } else if ("add".equals(currTag)) {
+                            // the options of the following documents, and
+                            // an index-time boost is not supported by ES
+                            final String overwriteAttr = parser
+                                    .getAttributeValue(null, "overwrite");
+                            overwrite = overwriteAttr != null ? Boolean
+                                    .valueOf(overwriteAttr) : null;
+                            final String commitWithin = parser
+                                    .getAttributeValue(null, "commitWithin");
+                            if (commitWithin != null) {
+                                commitCommand.addCommitWithin(Integer
+                                        .parseInt(commitWithin));
                             }
                         } else if ("delete".equals(currTag)) {
                             // delete a document
-                            final List<ActionRequest<?>> requestList = parseXmlDelete(
-                                    parser, requestEx);
-                            for (final ActionRequest<?> req : requestList) {
-                                if (req instanceof DeleteRequest) {
-                                    bulkRequest.add(req);
-                                } else if (req instanceof DeleteByQueryRequest) {
-                                    deleteQueryList
-                                            .add((DeleteByQueryRequest) req);
-                                }
-                            }
+                            parseXmlDelete(parser, context, bulkProcessor,
+                                    deleteQueryList);
                         } else if ("commit".equals(currTag)) {
-                            isCommit = true;
+                            commitCommand.addCommit(TRUE
+                                    .equalsIgnoreCase(parser.getAttributeValue(
+                                            null, "softCommit")), !"false"
+                                    .equalsIgnoreCase(parser.getAttributeValue(
+                                            null, "waitSearcher")));
                         } else if ("optimize".equals(currTag)) {
                             isOptimize = true;
+                        } else if ("rollback".equals(currTag)) {
+                            isRollback = true;
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if ("add".equals(parser.getLocalName())) {
+                            // the options only apply to the documents of
+                            // this add
+                            overwrite = null;
                         }
-                        // rollback is not supported at the moment..
                         break;
                     default:
                         break;
@@ -246,9 +684,10 @@ public class SolrUpdateRestAction extends BaseRestHandler {
                 // some sort of error processing the xml input
                 logger.error("Error processing xml input", e);
                 final NamedList<Object> errorResponse = new SimpleOrderedMap<Object>();
-                errorResponse.add("code", 500);
+                final int code = getErrorCode(e);
+                errorResponse.add("code", code);
                 errorResponse.add("msg", e.getMessage());
-                sendResponse(requestEx, channel, 500,
+                sendResponse(requestEx, channel, code,
                         System.currentTimeMillis() - startTime, errorResponse);
                 return;
             } finally {
@@ -259,164 +698,259 @@ public class SolrUpdateRestAction extends BaseRestHandler {
                         logger.warn("Failed to close a parser.", e);
                     }
                 }
+                IOUtils.closeWhileHandlingException(in);
+            }
+        } else if (SolrPluginConstants.JSON_FORMAT_TYPE.equals(requestType)) {
+            // JSON Content
+            XContentParser parser = null;
+            try {
+                // the parser closes the stream
+                parser = XContentFactory.xContent(XContentType.JSON)
+                        .createParser(contentDecompressor.streamInput(content));
+
+                if (requestEx.rawPath().endsWith(JSON_DOCS_PATH)) {
+                    // /update/json/docs: a document, an array of documents or
+                    // a sequence of documents
+                    while (parser.nextToken() != null) {
+                        parseJsonDocs(parser, context, doc, bulkProcessor,
+                                deleteQueryList);
+                    }
+                } else {
+                    XContentParser.Token token = parser.nextToken();
+                    if (token == XContentParser.Token.START_ARRAY) {
+                        // an array of documents
+                        parseJsonDocs(parser, context, doc, bulkProcessor,
+                                deleteQueryList);
+                    } else if (token == XContentParser.Token.START_OBJECT) {
+                        // Solr JSON commands, the names may be duplicated
+                        String currentFieldName = null;
+                        while ((token = nextJsonToken(parser)) != XContentParser.Token.END_OBJECT) {
+                            if (token == XContentParser.Token.FIELD_NAME) {
+                                currentFieldName = parser.currentName();
+                            } else if ("add".equals(currentFieldName)) {
+                                parseJsonAdd(parser, context, doc,
+                                        commitCommand, bulkProcessor,
+                                        deleteQueryList);
+                            } else if ("delete".equals(currentFieldName)) {
+                                parseJsonDelete(parser, context,
+                                        bulkProcessor, deleteQueryList);
+                            } else {
+                                if ("commit".equals(currentFieldName)) {
+                                    parseJsonCommit(parser, commitCommand);
+                                } else {
+                                    if ("optimize".equals(currentFieldName)) {
+                                        isOptimize = true;
+                                    } else if ("rollback"
+                                            .equals(currentFieldName)) {
+                                        isRollback = true;
+                                    } else {
+                                        logger.warn("unexpected json command "
+                                                + currentFieldName);
+                                    }
+                                    parser.skipChildren();
+                                }
+                            }
+                        }
+                    } else if (token != null) {
+                        throw new ElasticsearchParseException(
+                                "Unexpected json token " + token);
+                    }
+                }
+            } catch (final Exception e) {
+                // some sort of error processing the json input
+                logger.error("Error processing json input", e);
+                final NamedList<Object> errorResponse = new SimpleOrderedMap<Object>();
+                final int code = getErrorCode(e);
+                errorResponse.add("code", code);
+                errorResponse.add("msg", e.getMessage());
+                sendResponse(requestEx, channel, code,
+                        System.currentTimeMillis() - startTime, errorResponse);
+                return;
+            } finally {
+                if (parser != null) {
+                    parser.close();
+                }
+            }
+        } else if (SolrPluginConstants.CSV_FORMAT_TYPE.equals(requestType)) {
+            // CSV Content
+            InputStream in = null;
+            try {
+                // rows are read one by one and added to the bulk request
+                in = contentDecompressor.streamInput(content);
+                final CsvUpdateLoader loader = new CsvUpdateLoader(requestEx);
+                loader.load(new InputStreamReader(in, getCharset(contentType)),
+                        doc,
+                        new CsvUpdateLoader.DocumentHandler() {
+                            @Override
+                            public void add(final UpdateDocument doc)
+                                    throws IOException {
+                                addDocument(doc, context, bulkProcessor, deleteQueryList);
+                            }
+                        });
+            } catch (final Exception e) {
+                // some sort of error processing the csv input
+                logger.error("Error processing csv input", e);
+                final NamedList<Object> errorResponse = new SimpleOrderedMap<Object>();
+                final int code = getErrorCode(e);
+                errorResponse.add("code", code);
+                errorResponse.add("msg", e.getMessage());
+                sendResponse(requestEx, channel, code,
+                        System.currentTimeMillis() - startTime, errorResponse);
+                return;
+            } finally {
+                IOUtils.closeWhileHandlingException(in);
             }
         } else if (SolrPluginConstants.JAVABIN_FORMAT_TYPE.equals(requestType)) {
             // JavaBin Content
+            InputStream in = null;
             try {
                 // We will use the JavaBin codec from solrj
-                // unmarshal the input to a SolrUpdate request
-                final JavaBinUpdateRequestCodec codec = new JavaBinUpdateRequestCodec();
-                final UpdateRequest req = codec.unmarshal(
-                        new ByteArrayInputStream(content.toBytes()), null);
-
-                // Get the list of documents to index out of the UpdateRequest
-                // Add each document to the bulk request
-                // convert the SolrInputDocument into a map which will be used
-                // as the ES source field
-                final List<SolrInputDocument> docs = req.getDocuments();
-                if (docs != null) {
-                    for (final SolrInputDocument doc : docs) {
-                        bulkRequest.add(getIndexRequest(convertToMap(doc),
-                                requestEx));
+                // Each document is passed to the streaming handler as soon as
+                // it is decoded, converted into a map which will be used as
+                // the ES source field and added to the bulk request
+                final JavaBinUpdateRequestCodec.StreamingUpdateHandler handler = new JavaBinUpdateRequestCodec.StreamingUpdateHandler() {
+                    @Override
+                    public void update(final SolrInputDocument document,
+                            final UpdateRequest req,
+                            final Integer commitWithin, final Boolean overwrite) {
+                        if (document != null) {
+                            if (commitWithin != null) {
+                                commitCommand.addCommitWithin(commitWithin);
+                            }
+                            try {
+                                convertToUpdateDocument(document, doc)
+                                        .setOverwrite(overwrite);
+                                addDocument(doc, context, bulkProcessor, deleteQueryList);
+                            } catch (final IOException e) {
+                                throw new ElasticsearchException(
+                                        "Failed to create a source.", e);
+                            }
+                        }
+                    }
+                };
+
+                // ConcurrentUpdateSolrServer writes several update requests
+                // into one body, so unmarshal them until the end of stream
+                in = contentDecompressor.streamInput(content);
+                final FastInputStream fis = FastInputStream.wrap(in);
+                while (true) {
+                    final UpdateRequest req;
+                    try {
+                        req = new JavaBinUpdateRequestCodec().unmarshal(fis,
+                                handler);
+                    } catch (final EOFException e) {
+                        break;
                     }
-                }
 
-                // See if we have any documents to delete
-                // if yes, add them to the bulk request
-                final List<String> deleteIds = req.getDeleteById();
-                if (deleteIds != null) {
-                    for (final String id : deleteIds) {
-                        bulkRequest.add(getDeleteIdRequest(id, requestEx));
+                    // See if we have any documents to delete
+                    // if yes, add them to the bulk request
+                    final Map<String, Map<String, Object>> deleteIds = req
+                            .getDeleteByIdMap();
+                    if (deleteIds != null) {
+                        for (final Map.Entry<String, Map<String, Object>> entry : deleteIds
+                                .entrySet()) {
+                            final Object version = entry.getValue() != null ? entry
+                                    .getValue().get(UpdateRequest.VER) : null;
+                            deleteById(entry.getKey(),
+                                    version != null ? parseVersion(version)
+                                            : 0, context, bulkProcessor,
+                                    deleteQueryList);
+                        }
                     }
-                }
 
-                final List<String> deleteQueries = req.getDeleteQuery();
-                if (deleteQueries != null) {
-                    for (final String query : deleteQueries) {
-                        deleteQueryList.add(getDeleteQueryRequest(query,
-                                requestEx));
+                    final List<String> deleteQueries = req.getDeleteQuery();
+                    if (deleteQueries != null) {
+                        for (final String query : deleteQueries) {
+                            deleteQueryList.add(getDeleteQuery(query, context));
+                        }
+                    }
+
+                    // SolrJ sends the commit options in the params of the body
+                    final SolrParams params = req.getParams();
+                    if (params != null) {
+                        commitCommand.addCommitWithin(params.getInt(
+                                "commitWithin", -1));
+                        if (req.getAction() == ACTION.COMMIT
+                                || params.getBool("softCommit", false)) {
+                            commitCommand.addCommit(
+                                    params.getBool("softCommit", false),
+                                    params.getBool("waitSearcher", true));
+                        }
                     }
-                }
 
-                isCommit = req.getAction() == ACTION.COMMIT;
-                isOptimize = req.getAction() == ACTION.OPTIMIZE;
+                    if (req.getAction() == ACTION.OPTIMIZE) {
+                        isOptimize = true;
+                    }
+                }
             } catch (final Exception e) {
                 // some sort of error processing the javabin input
                 logger.error("Error processing javabin input", e);
                 final NamedList<Object> errorResponse = new SimpleOrderedMap<Object>();
-                errorResponse.add("code", 500);
+                final int code = getErrorCode(e);
+                errorResponse.add("code", code);
                 errorResponse.add("msg", e.getMessage());
-                sendResponse(requestEx, channel, 500,
+                sendResponse(requestEx, channel, code,
                         System.currentTimeMillis() - startTime, errorResponse);
                 return;
+            } finally {
+                IOUtils.closeWhileHandlingException(in);
             }
         }
 
         // only submit the bulk request if there are index/delete actions
         // it is possible not to have any actions when parsing xml due to the
         // commit and optimize messages that will not generate documents
-        if (bulkRequest.numberOfActions() > 0) {
-            client.bulk(bulkRequest, new ActionListener<BulkResponse>() {
+        if (bulkProcessor.numberOfActions() > 0) {
+            bulkProcessor.close(new UpdateBulkProcessor.Listener() {
 
-                // successful bulk request
                 @Override
-                public void onResponse(final BulkResponse response) {
+                public void onCompleted(final int numberOfActions,
+                        final List<UpdateFailure> failures) {
                     logger.info("Bulk request completed");
-                    StringBuilder failureBuf = null;
-                    for (final BulkItemResponse itemResponse : response) {
-                        final Failure failure = itemResponse.getFailure();
-                        if (failure != null) {
-                            final String msg = "Index request failed {index:"
-                                    + failure.getIndex() + ", type:"
-                                    + failure.getType() + ", id:"
-                                    + failure.getId() + ", reason:"
-                                    + failure.getMessage() + "}";
-                            if (failureBuf == null) {
-                                failureBuf = new StringBuilder();
-                            }
-                            failureBuf.append(msg).append('\n');
+                    NamedList<Object> result = bulkProcessor.getVersions();
+                    final boolean tolerated = !failures.isEmpty()
+                            && (requestMaxErrors < 0 || failures
+                                    .size() <= requestMaxErrors);
+                    if (tolerated) {
+                        logger.warn("{} failures are tolerated by maxErrors={}",
+                                failures.size(), requestMaxErrors);
+                        if (result == null) {
+                            result = new SimpleOrderedMap<Object>();
                         }
+                        result.add("responseHeader",
+                                createToleratedHeader(failures,
+                                        requestMaxErrors));
                     }
-
-                    if (failureBuf == null) {
+                    if (failures.isEmpty() || tolerated) {
                         if (deleteQueryList.isEmpty()) {
-                            SolrUpdateRestAction.this.sendResponse(requestEx,
-                                    channel, 0, System.currentTimeMillis()
-                                            - startTime, null);
+                            SolrUpdateRestAction.this.commit(requestEx,
+                                    channel, startTime, context,
+                                    commitCommand, result);
                         } else {
                             SolrUpdateRestAction.this.deleteByQueries(client,
                                     requestEx, channel, startTime,
-                                    deleteQueryList);
+                                    deleteQueryList, context, commitCommand,
+                                    result);
                         }
                     } else {
-                        final String failureMsg = failureBuf.toString();
-                        logger.error(failureMsg);
-                        final NamedList<Object> errorResponse = new SimpleOrderedMap<Object>();
-                        errorResponse.add("code", 500);
-                        errorResponse.add("msg", failureMsg);
+                        final NamedList<Object> errorResponse = createErrorResponse(failures);
+                        logger.error((String) errorResponse.get("msg"));
                         SolrUpdateRestAction.this.sendResponse(requestEx,
-                                channel, 500, System.currentTimeMillis()
-                                        - startTime, errorResponse);
+                                channel, (Integer) errorResponse.get("code"),
+                                System.currentTimeMillis() - startTime,
+                                errorResponse, result);
                     }
                 }
-
-                // failed bulk request
-                @Override
-                public void onFailure(final Throwable e) {
-                    logger.error("Bulk request failed", e);
-
-                    final NamedList<Object> errorResponse = new SimpleOrderedMap<Object>();
-                    errorResponse.add("code", 500);
-                    errorResponse.add("msg", e.getMessage());
-                    SolrUpdateRestAction.this.sendResponse(requestEx, channel,
-                            500, System.currentTimeMillis() - startTime,
-                            errorResponse);
-                }
             });
         } else if (!deleteQueryList.isEmpty()) {
             deleteByQueries(client, requestEx, channel, startTime,
-                    deleteQueryList);
-        } else if (isCommit) {
-            if (commitAsFlush) {
-                final String index = request.hasParam("index") ? request
-                        .param("index") : defaultIndexName;
-                final FlushRequest flushRequest = new FlushRequest(index);
-                client.admin()
-                        .indices()
-                        .flush(flushRequest,
-                                new ActionListener<FlushResponse>() {
-
-                                    @Override
-                                    public void onResponse(
-                                            final FlushResponse response) {
-                                        sendResponse(requestEx, channel, 0,
-                                                System.currentTimeMillis()
-                                                        - startTime, null);
-                                    }
-
-                                    @Override
-                                    public void onFailure(final Throwable t) {
-                                        logger.error(
-                                                "Failed to commit indices.", t);
-                                        final NamedList<Object> errorResponse = new SimpleOrderedMap<Object>();
-                                        errorResponse.add("code", 500);
-                                        errorResponse.add("msg", t.getMessage());
-                                        sendResponse(requestEx, channel, 500,
-                                                System.currentTimeMillis()
-                                                        - startTime,
-                                                errorResponse);
-                                    }
-                                });
-            } else {
-                sendResponse(requestEx, channel, 0, System.currentTimeMillis()
-                        - startTime, null);
-            }
+                    deleteQueryList, context, commitCommand, null);
+        } else if (commitCommand.isCommit()) {
+            commit(requestEx, channel, startTime, context, commitCommand, null);
         } else if (isOptimize) {
             if (optimizeAsOptimize) {
-                final String index = request.hasParam("index") ? request
-                        .param("index") : defaultIndexName;
                 final OptimizeRequest optimizeRequest = new OptimizeRequest(
-                        index);
+                        context.index());
                 client.admin()
                         .indices()
                         .optimize(optimizeRequest,
@@ -448,6 +982,13 @@ public class SolrUpdateRestAction extends BaseRestHandler {
                 sendResponse(requestEx, channel, 0, System.currentTimeMillis()
                         - startTime, null);
             }
+        } else if (commitCommand.getCommitWithin() >= 0) {
+            commit(requestEx, channel, startTime, context, commitCommand, null);
+        } else if (isRollback) {
+            // rollback is not supported
+            logger.warn("Rollback is not supported.");
+            sendResponse(requestEx, channel, 0, System.currentTimeMillis()
+                    - startTime, null);
         } else {
             final NamedList<Object> errorResponse = new SimpleOrderedMap<Object>();
             errorResponse.add("code", 500);
@@ -460,45 +1001,171 @@ public class SolrUpdateRestAction extends BaseRestHandler {
 
     private void deleteByQueries(final Client client,
             final RestRequest request, final RestChannel channel,
-            final long startTime,
-            final List<DeleteByQueryRequest> deleteQueryList) {
-        final AtomicInteger counter = new AtomicInteger(deleteQueryList.size());
-        final StringBuilder failureBuf = new StringBuilder(200);
-        for (final DeleteByQueryRequest deleteQueryRequest : deleteQueryList) {
-            client.deleteByQuery(deleteQueryRequest,
-                    new ActionListener<DeleteByQueryResponse>() {
-
-                        @Override
-                        public void onResponse(
-                                final DeleteByQueryResponse response) {
-                            if (counter.decrementAndGet() == 0) {
-                                if (failureBuf.length() == 0) {
-                                    SolrUpdateRestAction.this.sendResponse(
-                                            request, channel, 0,
-                                            System.currentTimeMillis()
-                                                    - startTime, null);
-                                } else {
-                                    final NamedList<Object> errorResponse = new SimpleOrderedMap<Object>();
-                                    errorResponse.add("code", 500);
-                                    errorResponse.add("msg",
-                                            failureBuf.toString());
-                                    SolrUpdateRestAction.this.sendResponse(
-                                            request, channel, 500,
-                                            System.currentTimeMillis()
-                                                    - startTime, errorResponse);
-                                }
-                            }
+            final long startTime, final List<DeleteQuery> deleteQueryList,
+            final UpdateContext context, final CommitCommand commitCommand,
+            final NamedList<Object> updateResult) {
+        final DeleteByQueryProcessor processor = new DeleteByQueryProcessor(
+                client, threadPool, deleteByQueryBatchSize,
+                deleteByQueryDocsPerSecond, deleteByQueryScroll,
+                deleteByQueryMaxMergedQueries,
+                deleteByQueryConcurrentQueries);
+        processor.execute(deleteQueryList,
+                new DeleteByQueryProcessor.Listener() {
+
+                    @Override
+                    public void onCompleted(
+                            final List<NamedList<Object>> results,
+                            final List<UpdateFailure> failures) {
+                        if (deduplicator != null) {
+                            // the cached signatures of deleted documents are
+                            // not valid
+                            deduplicator.invalidateAll();
                         }
-
-                        @Override
-                        public void onFailure(final Throwable t) {
-                            logger.error("DeleteByQuery request failed", t);
-                            if (counter.decrementAndGet() == 0) {
-                                failureBuf.append(t.getMessage());
-                            }
+                        final NamedList<Object> result = new SimpleOrderedMap<Object>();
+                        if (updateResult != null) {
+                            result.addAll(updateResult);
                         }
-                    });
+                        result.add("deleteByQuery", results);
+                        if (failures.isEmpty()) {
+                            SolrUpdateRestAction.this.commit(request,
+                                    channel, startTime, context,
+                                    commitCommand, result);
+                        } else {
+                            final NamedList<Object> errorResponse = createErrorResponse(failures);
+                            logger.error((String) errorResponse.get("msg"));
+                            SolrUpdateRestAction.this.sendResponse(request,
+                                    channel, 500, System.currentTimeMillis()
+                                            - startTime, errorResponse, result);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Commits the updates of the request and sends the response. A soft
+     * commit is a refresh and a hard commit is a flush, and the response is
+     * sent without waiting for the commit if waitSearcher is false.
+     *
+     * @param request
+     *            ES rest request
+     * @param channel
+     *            ES rest channel
+     * @param startTime
+     *            the start time of the request
+     * @param context
+     *            the parameters of the update request
+     * @param commitCommand
+     *            the commit options of the update request
+     * @param result
+     *            the result of the updates to add to the response, or null
+     */
+    private void commit(final RestRequest request, final RestChannel channel,
+            final long startTime, final UpdateContext context,
+            final CommitCommand commitCommand, final NamedList<Object> result) {
+        if (commitCommand.getCommitWithin() >= 0) {
+            commitScheduler.schedule(context.index(),
+                    commitCommand.getCommitWithin());
+        }
+
+        if (!commitCommand.isCommit()) {
+            sendResponse(request, channel, 0, System.currentTimeMillis()
+                    - startTime, null, result);
+            return;
+        }
+
+        final boolean softCommit = commitCommand.isSoftCommit()
+                || !commitAsFlush;
+        if (!commitCommand.isWaitSearcher()) {
+            commitScheduler.commit(context.index(), softCommit, null);
+            sendResponse(request, channel, 0, System.currentTimeMillis()
+                    - startTime, null, result);
+            return;
         }
+
+        commitScheduler.commit(context.index(), softCommit,
+                new ActionListener<Void>() {
+
+                    @Override
+                    public void onResponse(final Void response) {
+                        sendResponse(request, channel, 0,
+                                System.currentTimeMillis() - startTime, null,
+                                result);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable t) {
+                        logger.error("Failed to commit indices.", t);
+                        final NamedList<Object> errorResponse = new SimpleOrderedMap<Object>();
+                        errorResponse.add("code", 500);
+                        errorResponse.add("msg", t.getMessage());
+                        sendResponse(request, channel, 500,
+                                System.currentTimeMillis() - startTime,
+                                errorResponse, result);
+                    }
+                });
+    }
+
+    /**
+     * Returns the charset of the content type, or UTF-8 if not specified.
+     *
+     * @param contentType
+     *            the content type header
+     * @return the charset
+     */
+    private Charset getCharset(final String contentType) {
+        if (contentType != null) {
+            final int pos = contentType.indexOf("charset=");
+            if (pos >= 0) {
+                final String charset = contentType.substring(
+                        pos + "charset=".length()).replace("\"", "").trim();
+                if (Charset.isSupported(charset)) {
+                    return Charset.forName(charset);
+                }
+            }
+        }
+        return SolrPluginConstants.CHARSET_UTF8;
+    }
+
+    /**
+     * Creates an error response from the failed actions of all bulk chunks.
+     * The code is 409 if all actions failed by version conflicts.
+     *
+     * @param failures
+     *            the failed actions
+     * @return the error response
+     */
+    private NamedList<Object> createErrorResponse(
+            final List<UpdateFailure> failures) {
+        final StringBuilder failureBuf = new StringBuilder();
+        final List<NamedList<Object>> errors = new ArrayList<NamedList<Object>>(
+                failures.size());
+        // 409 if all failures are version conflicts
+        int code = 409;
+        for (final UpdateFailure failure : failures) {
+            failureBuf.append(failure).append('\n');
+            errors.add(failure.toNamedList());
+            if (failure.getStatus() != 409) {
+                code = 500;
+            }
+        }
+        final NamedList<Object> errorResponse = new SimpleOrderedMap<Object>();
+        errorResponse.add("code", code);
+        errorResponse.add("msg", failureBuf.toString());
+        errorResponse.add("errors", errors);
+        return errorResponse;
+    }
+
+    private NamedList<Object> createToleratedHeader(
+            final List<UpdateFailure> failures, final int maxErrors) {
+        final List<NamedList<Object>> errors = new ArrayList<NamedList<Object>>(
+                failures.size());
+        for (final UpdateFailure failure : failures) {
+            errors.add(failure.toNamedList());
+        }
+        final NamedList<Object> header = new SimpleOrderedMap<Object>();
+        header.add("errors", errors);
+        header.add("maxErrors", maxErrors);
+        return header;
     }
 
     /**
@@ -512,135 +1179,525 @@ public class SolrUpdateRestAction extends BaseRestHandler {
     private void sendResponse(final RestRequest request,
             final RestChannel channel, final int status, final long qTime,
             final NamedList<Object> errorResponse) {
+        sendResponse(request, channel, status, qTime, errorResponse, null);
+    }
+
+    /**
+     * Sends a dummy response with the result of the updates to the Solr
+     * client
+     *
+     * @param request
+     *            ES rest request
+     * @param channel
+     *            ES rest channel
+     * @param result
+     *            the entries to add to the response, or null. The entries
+     *            of its responseHeader are added to the response header.
+     */
+    private void sendResponse(final RestRequest request,
+            final RestChannel channel, final int status, final long qTime,
+            final NamedList<Object> errorResponse,
+            final NamedList<Object> result) {
         // create NamedList with dummy Solr response
         final NamedList<Object> solrResponse = new SimpleOrderedMap<Object>();
         final NamedList<Object> responseHeader = new SimpleOrderedMap<Object>();
         responseHeader.add("status", status);
         responseHeader.add("QTime", (int) qTime);
         solrResponse.add("responseHeader", responseHeader);
+        if (result != null) {
+            for (int i = 0; i < result.size(); i++) {
+                final String name = result.getName(i);
+                final Object value = result.getVal(i);
+                if ("responseHeader".equals(name)) {
+                    // the entries of the header are merged
+                    @SuppressWarnings("unchecked")
+                    final NamedList<Object> header = (NamedList<Object>) value;
+                    responseHeader.addAll(header);
+                } else {
+                    solrResponse.add(name, value);
+                }
+            }
+        }
         if (errorResponse != null) {
             solrResponse.add("error", errorResponse);
         }
 
-        // send the dummy response
-        SolrResponseUtils.writeResponse(solrResponse, request, channel);
+        if (channel instanceof UpdateJob) {
+            // the response of an async request is the result of the job
+            ((UpdateJob) channel).complete(status, solrResponse);
+            return;
+        }
+
+        // send the dummy response, and a too large content has the HTTP
+        // status like a too large body rejected by the admission, and an
+        // unknown job is not found
+        final RestStatus restStatus;
+        if (status == RestStatus.REQUEST_ENTITY_TOO_LARGE.getStatus()) {
+            restStatus = RestStatus.REQUEST_ENTITY_TOO_LARGE;
+        } else if (status == RestStatus.NOT_FOUND.getStatus()) {
+            restStatus = RestStatus.NOT_FOUND;
+        } else {
+            restStatus = null;
+        }
+        SolrResponseUtils.writeResponse(solrResponse, request, channel,
+                restStatus, null);
+    }
+
+    /**
+     * Deletes the document with the Solr document id. The ES child documents
+     * of the document are deleted by a query after the bulk requests, since
+     * ES does not delete them with their parent.
+     *
+     * @param id
+     *            the Solr document id
+     * @param version
+     *            the Solr version, or 0 if the delete is not versioned
+     * @param context
+     *            the parameters of the update request
+     * @param bulkProcessor
+     *            the bulk processor to add the delete request to
+     * @param deleteQueryList
+     *            the list to add the delete-by-query commands to
+     */
+    private void deleteById(final String id, final long version,
+            final UpdateContext context,
+            final UpdateBulkProcessor bulkProcessor,
+            final List<DeleteQuery> deleteQueryList) {
+        final DeleteRequest deleteRequest = getDeleteIdRequest(id, version,
+                context);
+        bulkProcessor.add(deleteRequest);
+        if (!nestedChildDocuments
+                && hasChildDocumentsType(deleteRequest.index())) {
+            deleteQueryList.add(DeleteQuery.childrenOf(deleteRequest.index(),
+                    childDocumentsType, deleteRequest.routing(),
+                    deleteRequest.id(), Collections.<String> emptyList()));
+        }
     }
 
     /**
-     * Generates an ES DeleteRequest object based on the Solr document id
+     * Generates an ES DeleteRequest object based on the Solr document id and
+     * version
      *
      * @param id
      *            the Solr document id
-     * @param request
-     *            the ES rest request
+     * @param version
+     *            the Solr version, or 0 if the delete is not versioned
+     * @param context
+     *            the parameters of the update request
      * @return the ES delete request
      */
     private DeleteRequest getDeleteIdRequest(final String id,
-            final RestRequest request) {
+            final long version, final UpdateContext context) {
+        // create the delete request object
+        // a routing field cannot be derived from the id, so such documents
+        // are deleted with the routing of the request like Solr
+        final DeleteRequest deleteRequest = context.newDeleteRequest(getId(id),
+                context.routing(null, id));
+
+        // a negative version cannot be checked by ES, and deleting a missing
+        // document does nothing anyway
+        if (version > 0) {
+            deleteRequest.version(version);
+            deleteRequest.versionType(versionType);
+        }
 
-        // get the index and type we want to execute this delete request on
-        final String index = request.hasParam("index") ? request.param("index")
-                : "solr";
-        final String type = request.hasParam("type") ? request.param("type")
-                : "docs";
+        return deleteRequest;
+    }
 
-        // create the delete request object
-        final DeleteRequest deleteRequest = new DeleteRequest(index, type,
-                getId(id));
-        deleteRequest.parent(request.param("parent"));
+    /**
+     * Generates a delete-by-query command based on the Solr query
+     *
+     * @param query
+     *            the Solr query
+     * @param context
+     *            the parameters of the update request
+     * @return the delete-by-query command
+     */
+    private DeleteQuery getDeleteQuery(final String query,
+            final UpdateContext context) {
+        return new DeleteQuery(context.index(), context.type(),
+                context.routing(), query, QueryBuilders.queryStringQuery(query)
+                        .lowercaseExpandedTerms(lowercaseExpandedTerms)
+                        .autoGeneratePhraseQueries(autoGeneratePhraseQueries));
+    }
 
-        // TODO: this was causing issues, do we need it?
-        // deleteRequest.version(RestActions.parseVersion(request));
-        // deleteRequest.versionType(VersionType.fromString(request.param("version_type"),
-        // deleteRequest.versionType()));
+    /**
+     * Runs the update chain on the document and adds it to the bulk request.
+     *
+     * @param doc
+     *            the Solr input document
+     * @param context
+     *            the parameters of the update request
+     * @param bulkProcessor
+     *            the bulk processor to add the request to
+     * @param deleteQueryList
+     *            the list to add the delete-by-query commands to
+     * @throws IOException
+     */
+    private void addDocument(final UpdateDocument doc,
+            final UpdateContext context,
+            final UpdateBulkProcessor bulkProcessor,
+            final List<DeleteQuery> deleteQueryList) throws IOException {
+        context.process(doc);
+
+        if (fieldTypeRegistry != null && !doc.isAtomicUpdate()) {
+            fieldTypeRegistry.coerce(doc, context.index(), context.type(),
+                    null);
+            coerceChildDocuments(doc, context,
+                    nestedChildDocuments ? childDocumentsField : null);
+        }
 
-        deleteRequest.routing(request.param("routing"));
+        final boolean hasChildDocuments = doc.hasChildDocuments();
+        if (hasChildDocuments) {
+            if (doc.isAtomicUpdate()) {
+                throw new ElasticsearchIllegalArgumentException(
+                        "An atomic update cannot have child documents.");
+            }
+            if (nestedChildDocuments) {
+                // the children are a part of the source
+                for (final UpdateDocument child : doc.getChildDocuments()) {
+                    doc.addField(childDocumentsField, toNestedObject(child));
+                }
+            }
+        }
 
-        return deleteRequest;
+        String signature = null;
+        // a duplicate is only removed by overwriting it
+        if (deduplicator != null && isOverwrite(doc, context)
+                && (context.id() != null || findId(doc) != null)) {
+            signature = deduplicator.sign(doc);
+        }
+        final ActionRequest<?> request = getIndexRequest(doc, context);
+        bulkProcessor.add(request, signature);
+
+        if (hasChildDocuments && !nestedChildDocuments) {
+            // the children follow the parent in the same bulk stream
+            final IndexRequest indexRequest = (IndexRequest) request;
+            final boolean overwrite = isOverwrite(doc, context);
+            final List<String> childIds = new ArrayList<String>();
+            addChildDocuments(doc, indexRequest.id(),
+                    indexRequest.routing(), overwrite, context, bulkProcessor,
+                    childIds);
+            if (overwrite && hasChildDocumentsType(context.index())) {
+                // the new block replaces the children of the old one
+                deleteQueryList.add(DeleteQuery.childrenOf(context.index(),
+                        childDocumentsType, indexRequest.routing(),
+                        indexRequest.id(), childIds));
+            }
+        }
     }
 
-    // TODO replace with deleting ids with scan/scroll
-    private DeleteByQueryRequest getDeleteQueryRequest(final String query,
-            final RestRequest request) {
+    /**
+     * Checks if the index may have ES child documents. The _parent field of
+     * a type is mapped when the type is created, so an index without the
+     * child type has no child documents to delete.
+     *
+     * @param index
+     *            the index name or alias
+     * @return true if an index of the name has the child type
+     */
+    private boolean hasChildDocumentsType(final String index) {
+        final MetaData metaData = clusterService.state().metaData();
+        for (final String concreteIndex : metaData.concreteIndices(
+                IndicesOptions.lenientExpandOpen(), index)) {
+            final IndexMetaData indexMetaData = metaData.index(concreteIndex);
+            if (indexMetaData != null
+                    && indexMetaData.mapping(childDocumentsType) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        // get the index and type we want to execute this delete request on
-        final String index = request.hasParam("index") ? request.param("index")
-                : "solr";
+    private void coerceChildDocuments(final UpdateDocument doc,
+            final UpdateContext context, final String prefix) {
+        for (final UpdateDocument child : doc.getChildDocuments()) {
+            if (nestedChildDocuments) {
+                fieldTypeRegistry.coerce(child, context.index(),
+                        context.type(), prefix);
+                coerceChildDocuments(child, context, prefix + '.'
+                        + childDocumentsField);
+            } else {
+                fieldTypeRegistry.coerce(child, context.index(),
+                        childDocumentsType, null);
+                coerceChildDocuments(child, context, null);
+            }
+        }
+    }
 
-        // create the delete request object
-        final DeleteByQueryRequest deleteRequest = Requests
-                .deleteByQueryRequest(index);
-        deleteRequest.source(new QuerySourceBuilder()
-                .setQuery(QueryBuilders.queryStringQuery(query)
-                        .lowercaseExpandedTerms(lowercaseExpandedTerms)
-                        .autoGeneratePhraseQueries(autoGeneratePhraseQueries)));
+    private Map<String, Object> toNestedObject(final UpdateDocument child) {
+        final Map<String, Object> object = child.toMap();
+        if (child.hasChildDocuments()) {
+            final List<Object> grandchildren = new ArrayList<Object>();
+            for (final UpdateDocument grandchild : child.getChildDocuments()) {
+                grandchildren.add(toNestedObject(grandchild));
+            }
+            object.put(childDocumentsField, grandchildren);
+        }
+        return object;
+    }
 
-        deleteRequest.routing(request.param("routing"));
+    /**
+     * Adds the child documents as ES child documents of the parent. All
+     * descendants are children of the root document, as a Solr block is a
+     * flat list of the descendants and the root.
+     *
+     * @param doc
+     *            the document with child documents
+     * @param parentId
+     *            the ES id of the root document
+     * @param routing
+     *            the routing of the root document, or null
+     * @param overwrite
+     *            false if the children are added with generated ids
+     * @param context
+     *            the parameters of the update request
+     * @param bulkProcessor
+     *            the bulk processor to add the index requests to
+     * @param childIds
+     *            the list to add the ids of the children to
+     * @throws IOException
+     */
+    private void addChildDocuments(final UpdateDocument doc,
+            final String parentId, final String routing,
+            final boolean overwrite, final UpdateContext context,
+            final UpdateBulkProcessor bulkProcessor,
+            final List<String> childIds) throws IOException {
+        for (final UpdateDocument child : doc.getChildDocuments()) {
+            final long version = removeVersion(child);
+            final String id = getIdForDoc(child);
+            // the children must be in the shard of the root
+            final IndexRequest indexRequest = context.newIndexRequest(
+                    overwrite ? id : null, routing);
+            indexRequest.type(childDocumentsType);
+            indexRequest.parent(parentId);
+            indexRequest.source(child.toSource(sourceContentType));
+            if (overwrite) {
+                setVersion(indexRequest, version);
+                childIds.add(id);
+            } else {
+                indexRequest.opType(IndexRequest.OpType.CREATE);
+            }
+            bulkProcessor.add(indexRequest);
 
-        return deleteRequest;
+            if (child.hasChildDocuments()) {
+                addChildDocuments(child, parentId, routing, overwrite,
+                        context, bulkProcessor, childIds);
+            }
+        }
     }
 
     /**
-     * Converts a SolrInputDocument into an ES IndexRequest
+     * Converts a SolrInputDocument into an ES IndexRequest, or an ES
+     * UpdateRequest if the document is a Solr atomic update.
      *
      * @param doc
      *            the Solr input document to convert
-     * @param request
-     *            the ES rest request
-     * @return the ES index request object
+     * @param context
+     *            the parameters of the update request
+     * @return the ES index or update request object
+     * @throws IOException
      */
-    private IndexRequest getIndexRequest(final Map<String, Object> doc,
-            final RestRequest request) {
-        // get the index and type we want to index the document in
-        final String index = request.hasParam("index") ? request.param("index")
-                : defaultIndexName;
-        final String type = request.hasParam("type") ? request.param("type")
-                : defaultTypeName;
+    private ActionRequest<?> getIndexRequest(final UpdateDocument doc,
+            final UpdateContext context) throws IOException {
+        final long version = removeVersion(doc);
+        if (doc.isAtomicUpdate()) {
+            return getUpdateRequest(doc, context, version);
+        }
 
+        final boolean hasId = context.id() != null || findId(doc) != null;
         // Get the id from request or if not available generate an id for the
         // document
-        final String id = request.hasParam("id") ? request.param("id")
+        final String id = context.id() != null ? context.id()
                 : getIdForDoc(doc);
+        final String routing = getRouting(doc, context.id() != null ? context
+                .id() : findId(doc), context);
+
+        if (!isOverwrite(doc, context)) {
+            // Solr adds the document without looking up its id, and ES skips
+            // the lookup for a generated id, so the Solr id is only kept in
+            // the source. A document without an id gets the id generated for
+            // its "id" field, so it can be deleted and updated by the id.
+            String createId = hasId ? context.id() : id;
+            if (createId == null && doc.hasChildDocuments()
+                    && !nestedChildDocuments) {
+                // the children need the id of the parent
+                createId = idGenerator.generate();
+            }
+            final IndexRequest indexRequest = context.newIndexRequest(
+                    createId, routing);
+            indexRequest.opType(IndexRequest.OpType.CREATE);
+            indexRequest.source(doc.toSource(sourceContentType));
+            return indexRequest;
+        }
 
         // create an IndexRequest for this document
-        final IndexRequest indexRequest = new IndexRequest(index, type, id);
-        indexRequest.routing(request.param("routing"));
-        indexRequest.parent(request.param("parent"));
-        indexRequest.source(doc);
-        indexRequest.timeout(request.paramAsTime("timeout",
-                ShardReplicationOperationRequest.DEFAULT_TIMEOUT));
-        indexRequest.refresh(request.paramAsBoolean("refresh",
-                indexRequest.refresh()));
+        final IndexRequest indexRequest = context.newIndexRequest(id, routing);
+        indexRequest.source(doc.toSource(sourceContentType));
+        setVersion(indexRequest, version);
+
+        return indexRequest;
+    }
 
-        // TODO: this caused issues, do we need it?
-        // indexRequest.version(RestActions.parseVersion(request));
-        // indexRequest.versionType(VersionType.fromString(request.param("version_type"),
-        // indexRequest.versionType()));
+    /**
+     * @param doc
+     *            the Solr input document
+     * @param context
+     *            the parameters of the update request
+     * @return false if the document is added without replacing a document
+     *         with the same id
+     */
+    private boolean isOverwrite(final UpdateDocument doc,
+            final UpdateContext context) {
+        final Boolean overwrite = doc.getOverwrite();
+        return overwrite != null ? overwrite.booleanValue() : context
+                .overwrite();
+    }
 
-        indexRequest.opType(IndexRequest.OpType.INDEX);
+    /**
+     * Sets the Solr _version_ of a document to the ES index request. A
+     * positive version is checked by the configured version type, and a
+     * negative version means the document must not exist.
+     *
+     * @param indexRequest
+     *            the ES index request
+     * @param version
+     *            the Solr version, or 0 if the document is not versioned
+     */
+    private void setVersion(final IndexRequest indexRequest, final long version) {
+        if (version < 0) {
+            indexRequest.opType(IndexRequest.OpType.CREATE);
+        } else if (version > 0) {
+            indexRequest.version(version);
+            indexRequest.versionType(versionType);
+        }
+    }
 
-        // TODO: force creation of index, do we need it?
-        // indexRequest.create(true);
+    /**
+     * Removes the Solr _version_ field from the document.
+     *
+     * @param doc
+     *            the Solr input document
+     * @return the version, or 0 if the document does not have it
+     */
+    private long removeVersion(final UpdateDocument doc) {
+        final Object value = doc.getFirstValue(VERSION_FIELD);
+        if (value == null) {
+            return 0;
+        }
+        doc.removeField(VERSION_FIELD);
+        return parseVersion(value);
+    }
 
-        final String replicationType = request.param("replication");
-        if (replicationType != null) {
-            indexRequest.replicationType(ReplicationType
-                    .fromString(replicationType));
+    private long parseVersion(final Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
         }
+        try {
+            return Long.parseLong(value.toString().trim());
+        } catch (final NumberFormatException e) {
+            throw new ElasticsearchIllegalArgumentException("Invalid "
+                    + VERSION_FIELD + ": " + value, e);
+        }
+    }
 
-        final String consistencyLevel = request.param("consistency");
-        if (consistencyLevel != null) {
-            indexRequest.consistencyLevel(WriteConsistencyLevel
-                    .fromString(consistencyLevel));
+    /**
+     * Converts a Solr atomic update into an ES UpdateRequest. The modifiers
+     * are applied by the native script, and a missing document is created
+     * from them as Solr does.
+     *
+     * @param doc
+     *            the Solr input document with modifiers
+     * @param context
+     *            the parameters of the update request
+     * @param version
+     *            the Solr version, or 0 if the document is not versioned
+     * @return the ES update or index request object
+     * @throws IOException
+     */
+    private ActionRequest<?> getUpdateRequest(final UpdateDocument doc,
+            final UpdateContext context, final long version)
+            throws IOException {
+        String id = context.id();
+        String solrId = id;
+        if (id == null) {
+            // an atomic update needs the id of the existing document
+            solrId = findId(doc);
+            if (solrId == null) {
+                throw new ElasticsearchIllegalArgumentException(
+                        "Atomic update requires an id.");
+            }
+            id = getId(solrId);
         }
+        final String routing = getRouting(doc, solrId, context);
 
-        // we just send a response, no need to fork
-        indexRequest.listenerThreaded(true);
+        if (deduplicator != null) {
+            // the stored signature is not valid after the update
+            doc.addField(deduplicator.getSignatureField(),
+                    Collections.singletonMap(AtomicUpdates.SET, null));
+        }
 
-        // we don't spawn, then fork if local
-        indexRequest.operationThreaded(true);
+        final Map<String, Object> params = AtomicUpdates.createParams(doc);
+        if (version < 0) {
+            // the document must not exist, so create it from the updates
+            final Map<String, Object> source = new HashMap<String, Object>();
+            AtomicUpdates.apply(source, params);
+            final IndexRequest indexRequest = context.newIndexRequest(id,
+                    routing);
+            indexRequest.source(source, sourceContentType);
+            indexRequest.opType(IndexRequest.OpType.CREATE);
+            return indexRequest;
+        }
 
-        return indexRequest;
+        // Solr's UpdateRequest is imported for javabin
+        final org.elasticsearch.action.update.UpdateRequest updateRequest = context
+                .newUpdateRequest(id, retryOnConflict, routing);
+        updateRequest.script(AtomicUpdates.SCRIPT_NAME, "native",
+                ScriptService.ScriptType.INLINE, params);
+        if (version > 0) {
+            // ES updates only support the internal version, which is the
+            // version of the existing document, and a conflict is not retried
+            updateRequest.version(version);
+            updateRequest.retryOnConflict(0);
+        } else {
+            updateRequest.scriptedUpsert(true);
+            updateRequest.upsert(new HashMap<String, Object>());
+        }
+        return updateRequest;
+    }
+
+    /**
+     * @param t
+     *            the failure of parsing the content
+     * @return 413 if the inflated content is too large, otherwise 500
+     */
+    private static int getErrorCode(final Throwable t) {
+        // the parsers may wrap the failure of the stream
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ContentTooLargeException) {
+                return RestStatus.REQUEST_ENTITY_TOO_LARGE.getStatus();
+            }
+        }
+        return 500;
+    }
+
+    /**
+     * Derives the routing of a document from the routing field of the index
+     * or the Solr compositeId.
+     *
+     * @param doc
+     *            the Solr input document
+     * @param solrId
+     *            the Solr document id, or null
+     * @param context
+     *            the parameters of the update request
+     * @return the routing of the document, or null
+     */
+    private String getRouting(final UpdateDocument doc, final String solrId,
+            final UpdateContext context) {
+        final String routingField = context.routingField();
+        return context.routing(routingField != null ? doc
+                .getFirstValue(routingField) : null, solrId);
     }
 
     /**
@@ -652,103 +1709,106 @@ public class SolrUpdateRestAction extends BaseRestHandler {
      * We check for Solr document id's in the following fields: id, docid,
      * documentid, contentid, uuid, url
      *
-     * If no id is found, we generate a random one.
+     * If no id is found, we generate one by the configured generator.
      *
      * @param doc
      *            the input document
      * @return the generated document id
      */
-    private String getIdForDoc(final Map<String, Object> doc) {
-        // start with a random id
-        String id = null;
-
+    private String getIdForDoc(final UpdateDocument doc) {
         // scan the input document for an id
-        for (final String idField : idFields) {
-            if (doc.containsKey(idField)) {
-                id = doc.get(idField).toString();
-                break;
-            }
-        }
+        String id = findId(doc);
 
         if (id == null) {
-            id = UUID.randomUUID().toString();
+            id = idGenerator.generate();
         }
 
         // always store the id back into the "id" field
         // so we can get it back in results
-        doc.put("id", id);
+        doc.setField("id", id);
 
-        // return the id which is the md5 of either the
-        // random uuid or id found in the input document.
+        // return the id which is the hash of either the
+        // generated id or id found in the input document.
         return getId(id);
     }
 
     /**
-     * Return the given id or a hashed version thereof, based on the plugin
-     * configuration
+     * Scans the input document for a Solr document id.
      *
-     * @param id
-     * @return
+     * @param doc
+     *            the input document
+     * @return the Solr document id, or null
      */
-    private final String getId(final String id) {
-        return hashIds ? getMD5(id) : id;
+    private String findId(final UpdateDocument doc) {
+        for (final String idField : idFields) {
+            final Object value = doc.getFirstValue(idField);
+            if (value != null && !AtomicUpdates.isModifier(value)) {
+                return value.toString();
+            }
+        }
+        return null;
     }
 
     /**
-     * Calculates the md5 hex digest of the given input string
+     * Return the given id or a hashed version thereof, based on the plugin
+     * configuration
      *
-     * @param input
-     *            the string to md5
-     * @return the md5 hex digest
+     * @param id
+     * @return
      */
-    private String getMD5(final String input) {
-        try {
-            final MessageDigest md = MessageDigest.getInstance("MD5");
-            final byte[] bytes = input
-                    .getBytes(SolrPluginConstants.CHARSET_UTF8);
-            final byte[] digest = md.digest(bytes);
-            final char[] encodeHex = Hex.encodeHex(digest);
-            return String.valueOf(encodeHex);
-        } catch (final NoSuchAlgorithmException e) {
-            throw new ElasticsearchException("Failed to encode " + input, e);
-        }
+    private final String getId(final String id) {
+        return hashIds ? idHasher.hash(id) : id;
     }
 
     /**
-     * Converts a SolrInputDocument into a Map
+     * Converts a SolrInputDocument into an UpdateDocument
      *
-     * @param doc
+     * @param solrDoc
      *            the SolrInputDocument to convert
-     * @return the input document as a map
+     * @param doc
+     *            the reusable document to put the fields in
+     * @return the document
      */
-    private Map<String, Object> convertToMap(final SolrInputDocument doc) {
-        // create the Map we will put the fields in
-        final Map<String, Object> newDoc = new HashMap<String, Object>();
+    private UpdateDocument convertToUpdateDocument(
+            final SolrInputDocument solrDoc, final UpdateDocument doc) {
+        doc.reset();
 
-        // loop though all the fields and insert them into the map
-        final Collection<SolrInputField> fields = doc.values();
+        // loop though all the fields and add them to the document
+        final Collection<SolrInputField> fields = solrDoc.values();
         if (fields != null) {
             for (final SolrInputField field : fields) {
-                newDoc.put(field.getName(), field.getValue());
+                doc.addField(field.getName(), field.getValue());
             }
         }
 
-        return newDoc;
+        if (solrDoc.hasChildDocuments()) {
+            for (final SolrInputDocument child : solrDoc.getChildDocuments()) {
+                doc.addChildDocument(convertToUpdateDocument(child,
+                        new UpdateDocument()));
+            }
+        }
+
+        return doc;
     }
 
     /**
-     * Reads a SolrXML document into a map of fields
+     * Reads a SolrXML document into the fields of a document
      *
      * @param parser
      *            the xml parser
-     * @return the document as a map
+     * @param doc
+     *            the reusable document to put the fields in
+     * @return true if the document is valid
      * @throws XMLStreamException
      */
-    private Map<String, Object> parseXmlDoc(final XMLStreamReader parser)
-            throws XMLStreamException {
-        Map<String, Object> doc = new HashMap<String, Object>();
+    private boolean parseXmlDoc(final XMLStreamReader parser,
+            final UpdateDocument doc) throws XMLStreamException {
+        doc.reset();
+        boolean valid = true;
         final StringBuilder buf = new StringBuilder();
         String name = null;
+        String update = null;
+        boolean isNull = false;
         boolean stop = false;
         // infinite loop until we are done parsing the document or an error
         // occurs
@@ -758,14 +1818,27 @@ public class SolrUpdateRestAction extends BaseRestHandler {
             case XMLStreamConstants.START_ELEMENT:
                 buf.setLength(0);
                 final String localName = parser.getLocalName();
+                if ("doc".equals(localName)) {
+                    // a Solr child document
+                    final UpdateDocument child = new UpdateDocument();
+                    if (parseXmlDoc(parser, child)) {
+                        doc.addChildDocument(child);
+                    } else {
+                        valid = false;
+                        stop = true;
+                    }
+                    break;
+                }
                 // we are looking for field elements only
                 if (!"field".equals(localName)) {
                     logger.warn("unexpected xml tag /doc/" + localName);
-                    doc = null;
+                    valid = false;
                     stop = true;
                 }
 
                 // get the name attribute of the field
+                update = null;
+                isNull = false;
                 String attrName = "";
                 String attrVal = "";
                 for (int i = 0; i < parser.getAttributeCount(); i++) {
@@ -773,6 +1846,11 @@ public class SolrUpdateRestAction extends BaseRestHandler {
                     attrVal = parser.getAttributeValue(i);
                     if ("name".equals(attrName)) {
                         name = attrVal;
+                    } else if ("update".equals(attrName)) {
+                        // a Solr atomic update
+                        update = attrVal;
+                    } else if ("null".equals(attrName)) {
+                        isNull = TRUE.equals(attrVal);
                     }
                 }
                 break;
@@ -782,20 +1860,14 @@ public class SolrUpdateRestAction extends BaseRestHandler {
                     // break out of loop
                     stop = true;
                 } else if ("field".equals(parser.getLocalName())) {
-                    // put the field value into the map
-                    // handle multiple values by putting them into a list
-                    if (doc.containsKey(name) && doc.get(name) instanceof List) {
-                        @SuppressWarnings("unchecked")
-                        final List<String> vals = (List<String>) doc.get(name);
-                        vals.add(buf.toString());
-                        doc.put(name, vals);
-                    } else if (doc.containsKey(name)) {
-                        final List<String> vals = new ArrayList<String>();
-                        vals.add((String) doc.get(name));
-                        vals.add(buf.toString());
-                        doc.put(name, vals);
+                    // add the field value to the document
+                    // multiple values are gathered by the name
+                    final String value = isNull ? null : buf.toString();
+                    if (update != null) {
+                        doc.addField(name,
+                                Collections.singletonMap(update, value));
                     } else {
-                        doc.put(name, buf.toString());
+                        doc.addField(name, value);
                     }
                 }
                 break;
@@ -810,8 +1882,393 @@ public class SolrUpdateRestAction extends BaseRestHandler {
             }
         }
 
-        // return the parsed doc
-        return doc;
+        return valid;
+    }
+
+    /**
+     * Reads a Solr JSON add command, which is either an object with a doc
+     * field and the options of the document or an array of documents.
+     *
+     * @param parser
+     *            the json parser positioned at the value of add
+     * @param context
+     *            the parameters of the update request
+     * @param doc
+     *            the reusable document
+     * @param commitCommand
+     *            the commit command to add commitWithin to
+     * @param bulkProcessor
+     *            the bulk processor to add the index requests to
+     * @param deleteQueryList
+     *            the list to add the delete-by-query commands to
+     * @throws IOException
+     */
+    private void parseJsonAdd(final XContentParser parser,
+            final UpdateContext context, final UpdateDocument doc,
+            final CommitCommand commitCommand,
+            final UpdateBulkProcessor bulkProcessor,
+            final List<DeleteQuery> deleteQueryList) throws IOException {
+        XContentParser.Token token = parser.currentToken();
+        if (token == XContentParser.Token.START_ARRAY) {
+            parseJsonDocs(parser, context, doc, bulkProcessor,
+                    deleteQueryList);
+        } else if (token == XContentParser.Token.START_OBJECT) {
+            String currentFieldName = null;
+            Boolean overwrite = null;
+            XContentBuilder docBuilder = null;
+            while ((token = nextJsonToken(parser)) != XContentParser.Token.END_OBJECT) {
+                if (token == XContentParser.Token.FIELD_NAME) {
+                    currentFieldName = parser.currentName();
+                } else if ("doc".equals(currentFieldName)
+                        && token == XContentParser.Token.START_OBJECT) {
+                    // the options may follow the document
+                    docBuilder = XContentFactory.contentBuilder(
+                            parser.contentType()).copyCurrentStructure(parser);
+                } else if ("overwrite".equals(currentFieldName)
+                        && token.isValue()) {
+                    overwrite = parser.booleanValue();
+                } else if ("commitWithin".equals(currentFieldName)
+                        && token.isValue()) {
+                    commitCommand.addCommitWithin(parser.intValue());
+                } else {
+                    // an index-time boost is not supported by ES
+                    parser.skipChildren();
+                }
+            }
+            if (docBuilder != null) {
+                final XContentParser docParser = XContentFactory.xContent(
+                        parser.contentType()).createParser(docBuilder.bytes());
+                try {
+                    docParser.nextToken();
+                    parseJsonDoc(docParser, context, doc, overwrite,
+                            bulkProcessor, deleteQueryList);
+                } finally {
+                    docParser.close();
+                }
+            }
+        } else {
+            throw new ElasticsearchParseException(
+                    "Unexpected json token for add: " + token);
+        }
+    }
+
+    /**
+     * Reads a Solr JSON document or an array of documents.
+     *
+     * @param parser
+     *            the json parser positioned at the start of the value
+     * @param context
+     *            the parameters of the update request
+     * @param doc
+     *            the reusable document
+     * @param bulkProcessor
+     *            the bulk processor to add the index requests to
+     * @param deleteQueryList
+     *            the list to add the delete-by-query commands to
+     * @throws IOException
+     */
+    private void parseJsonDocs(final XContentParser parser,
+            final UpdateContext context, final UpdateDocument doc,
+            final UpdateBulkProcessor bulkProcessor,
+            final List<DeleteQuery> deleteQueryList) throws IOException {
+        XContentParser.Token token = parser.currentToken();
+        if (token == XContentParser.Token.START_OBJECT) {
+            parseJsonDoc(parser, context, doc, null, bulkProcessor,
+                    deleteQueryList);
+        } else if (token == XContentParser.Token.START_ARRAY) {
+            while ((token = nextJsonToken(parser)) != XContentParser.Token.END_ARRAY) {
+                if (token == XContentParser.Token.START_OBJECT) {
+                    parseJsonDoc(parser, context, doc, null, bulkProcessor,
+                            deleteQueryList);
+                } else {
+                    throw new ElasticsearchParseException(
+                            "Unexpected json token for doc: " + token);
+                }
+            }
+        } else {
+            throw new ElasticsearchParseException(
+                    "Unexpected json token for doc: " + token);
+        }
+    }
+
+    /**
+     * Copies a Solr JSON document into the source of an ES IndexRequest. The
+     * fields are copied from the parser as they are, without building a map.
+     * A document with Solr atomic updates is converted into an ES
+     * UpdateRequest, and a document for an update chain or a signature is
+     * read into the fields.
+     *
+     * @param parser
+     *            the json parser positioned at the start of the document
+     * @param context
+     *            the parameters of the update request
+     * @param doc
+     *            the reusable document which provides the source buffer
+     * @param overwrite
+     *            the overwrite option of the add command, or null
+     * @param bulkProcessor
+     *            the bulk processor to add the request to
+     * @param deleteQueryList
+     *            the list to add the delete-by-query commands to
+     * @throws IOException
+     */
+    private void parseJsonDoc(final XContentParser parser,
+            final UpdateContext context, final UpdateDocument doc,
+            final Boolean overwrite, final UpdateBulkProcessor bulkProcessor,
+            final List<DeleteQuery> deleteQueryList) throws IOException {
+        if (context.hasUpdateChain() || deduplicator != null
+                || fieldTypeRegistry != null) {
+            // the update chain, the signature and the coercion work on the
+            // fields of the document
+            doc.reset();
+            addJsonFields(doc, parser.mapOrdered());
+            doc.setOverwrite(overwrite);
+            addDocument(doc, context, bulkProcessor, deleteQueryList);
+            return;
+        }
+
+        final XContentBuilder builder = doc.newSourceBuilder(sourceContentType);
+        builder.startObject();
+        String id = null;
+        int idFieldPos = idFields.length;
+        boolean hasIdField = false;
+        boolean atomicUpdate = false;
+        long version = 0;
+        List<UpdateDocument> children = null;
+        final String routingField = context.routingField();
+        String routingValue = null;
+        XContentParser.Token token;
+        while ((token = nextJsonToken(parser)) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                final String name = parser.currentName();
+                token = nextJsonToken(parser);
+                if (CHILD_DOCUMENTS.equals(name)
+                        && token == XContentParser.Token.START_ARRAY) {
+                    children = parseJsonChildDocuments(parser);
+                    continue;
+                }
+                if ("id".equals(name)) {
+                    hasIdField = true;
+                } else if (VERSION_FIELD.equals(name) && token.isValue()) {
+                    // the version is not a part of the source
+                    version = parseVersion(parser.text());
+                    continue;
+                }
+                if (token.isValue()) {
+                    if (routingValue == null && name.equals(routingField)) {
+                        routingValue = parser.text();
+                    }
+                    // scan the input document for an id
+                    for (int i = 0; i < idFieldPos; i++) {
+                        if (idFields[i].equals(name)) {
+                            id = parser.text();
+                            idFieldPos = i;
+                            break;
+                        }
+                    }
+                }
+                if (token == XContentParser.Token.START_OBJECT) {
+                    // an object value may be a Solr atomic update
+                    final Map<String, Object> value = parser.mapOrdered();
+                    if (!atomicUpdate && AtomicUpdates.isModifier(value)) {
+                        atomicUpdate = true;
+                    }
+                    builder.field(name, value);
+                } else {
+                    builder.field(name);
+                    builder.copyCurrentStructure(parser);
+                }
+            }
+        }
+
+        if (atomicUpdate || children != null) {
+            builder.endObject();
+            doc.reset();
+            for (final Map.Entry<String, Object> entry : XContentHelper
+                    .convertToMap(builder.bytes(), true).v2().entrySet()) {
+                doc.addField(entry.getKey(), entry.getValue());
+            }
+            if (version != 0) {
+                doc.addField(VERSION_FIELD, version);
+            }
+            if (children != null) {
+                for (final UpdateDocument child : children) {
+                    doc.addChildDocument(child);
+                }
+            }
+            doc.setOverwrite(overwrite);
+            addDocument(doc, context, bulkProcessor, deleteQueryList);
+            return;
+        }
+
+        if (id == null) {
+            id = idGenerator.generate();
+        }
+        if (!hasIdField) {
+            // store the id into the "id" field
+            // so we can get it back in results
+            builder.field("id", id);
+        }
+        builder.endObject();
+
+        final String solrId = context.id() != null ? context.id() : id;
+        final String routing = context.routing(routingValue, solrId);
+        final IndexRequest indexRequest;
+        if (overwrite != null ? overwrite.booleanValue() : context.overwrite()) {
+            indexRequest = context.newIndexRequest(context.id() != null ? context
+                    .id() : getId(id), routing);
+            setVersion(indexRequest, version);
+        } else {
+            // ES skips the id lookup for a generated id
+            indexRequest = context.newIndexRequest(context.id(), routing);
+            indexRequest.opType(IndexRequest.OpType.CREATE);
+        }
+        // copy the bytes to release the reusable buffer
+        indexRequest.source(builder.bytes().copyBytesArray());
+        bulkProcessor.add(indexRequest);
+    }
+
+    private List<UpdateDocument> parseJsonChildDocuments(
+            final XContentParser parser) throws IOException {
+        final List<UpdateDocument> children = new ArrayList<UpdateDocument>();
+        XContentParser.Token token;
+        while ((token = nextJsonToken(parser)) != XContentParser.Token.END_ARRAY) {
+            if (token == XContentParser.Token.START_OBJECT) {
+                final UpdateDocument child = new UpdateDocument();
+                addJsonFields(child, parser.mapOrdered());
+                children.add(child);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Adds the fields of a Solr JSON document to the document, and its
+     * _childDocuments_ as the child documents.
+     */
+    private void addJsonFields(final UpdateDocument doc,
+            final Map<String, Object> fields) {
+        for (final Map.Entry<String, Object> entry : fields.entrySet()) {
+            final Object value = entry.getValue();
+            if (CHILD_DOCUMENTS.equals(entry.getKey())
+                    && value instanceof List) {
+                for (final Object childFields : (List<?>) value) {
+                    if (childFields instanceof Map) {
+                        final UpdateDocument child = new UpdateDocument();
+                        @SuppressWarnings("unchecked")
+                        final Map<String, Object> map = (Map<String, Object>) childFields;
+                        addJsonFields(child, map);
+                        doc.addChildDocument(child);
+                    }
+                }
+            } else {
+                doc.addField(entry.getKey(), value);
+            }
+        }
+    }
+
+    /**
+     * Reads a Solr JSON delete command, which is an id, an object with an id
+     * or a query, or an array of them.
+     *
+     * @param parser
+     *            the json parser positioned at the value of delete
+     * @param context
+     *            the parameters of the update request
+     * @param bulkProcessor
+     *            the bulk processor to add the delete requests to
+     * @param deleteQueryList
+     *            the list to add the delete-by-query commands to
+     * @throws IOException
+     */
+    private void parseJsonDelete(final XContentParser parser,
+            final UpdateContext context,
+            final UpdateBulkProcessor bulkProcessor,
+            final List<DeleteQuery> deleteQueryList)
+            throws IOException {
+        XContentParser.Token token = parser.currentToken();
+        if (token == XContentParser.Token.START_ARRAY) {
+            while (nextJsonToken(parser) != XContentParser.Token.END_ARRAY) {
+                parseJsonDelete(parser, context, bulkProcessor,
+                        deleteQueryList);
+            }
+        } else if (token == XContentParser.Token.START_OBJECT) {
+            String currentFieldName = null;
+            String id = null;
+            long version = 0;
+            while ((token = nextJsonToken(parser)) != XContentParser.Token.END_OBJECT) {
+                if (token == XContentParser.Token.FIELD_NAME) {
+                    currentFieldName = parser.currentName();
+                } else if ("id".equals(currentFieldName)) {
+                    id = parser.text();
+                } else if (VERSION_FIELD.equals(currentFieldName)
+                        || "version".equals(currentFieldName)) {
+                    version = parseVersion(parser.text());
+                } else if ("query".equals(currentFieldName)) {
+                    deleteQueryList.add(getDeleteQuery(parser.text(), context));
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (id != null) {
+                deleteById(id, version, context, bulkProcessor,
+                        deleteQueryList);
+            }
+        } else if (token.isValue()) {
+            deleteById(parser.text(), 0, context, bulkProcessor,
+                    deleteQueryList);
+        } else {
+            throw new ElasticsearchParseException(
+                    "Unexpected json token for delete: " + token);
+        }
+    }
+
+    /**
+     * Parses the options of a Solr JSON commit command.
+     *
+     * @param parser
+     *            the json parser positioned at the value of the command
+     * @param commitCommand
+     *            the commit options of the update request
+     * @throws IOException
+     */
+    private void parseJsonCommit(final XContentParser parser,
+            final CommitCommand commitCommand) throws IOException {
+        boolean softCommit = false;
+        boolean waitSearcher = true;
+        if (parser.currentToken() == XContentParser.Token.START_OBJECT) {
+            String currentFieldName = null;
+            XContentParser.Token token;
+            while ((token = nextJsonToken(parser)) != XContentParser.Token.END_OBJECT) {
+                if (token == XContentParser.Token.FIELD_NAME) {
+                    currentFieldName = parser.currentName();
+                } else if (token.isValue()) {
+                    if ("softCommit".equals(currentFieldName)) {
+                        softCommit = parser.booleanValue();
+                    } else if ("waitSearcher".equals(currentFieldName)
+                            || "waitFlush".equals(currentFieldName)) {
+                        waitSearcher &= parser.booleanValue();
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } else {
+            parser.skipChildren();
+        }
+        commitCommand.addCommit(softCommit, waitSearcher);
+    }
+
+    private XContentParser.Token nextJsonToken(final XContentParser parser)
+            throws IOException {
+        final XContentParser.Token token = parser.nextToken();
+        if (token == null) {
+            throw new ElasticsearchParseException(
+                    "Unexpected end of json input");
+        }
+        return token;
     }
 
     /**
@@ -819,29 +2276,46 @@ public class SolrUpdateRestAction extends BaseRestHandler {
      *
      * @param parser
      *            the xml parser
-     * @return the document id to delete
+     * @param context
+     *            the parameters of the update request
+     * @param bulkProcessor
+     *            the bulk processor to add the delete requests to
+     * @param deleteQueryList
+     *            the list to add the delete-by-query commands to
      * @throws XMLStreamException
      */
-    private List<ActionRequest<?>> parseXmlDelete(final XMLStreamReader parser,
-            final RestRequest request) throws XMLStreamException {
+    private void parseXmlDelete(final XMLStreamReader parser,
+            final UpdateContext context,
+            final UpdateBulkProcessor bulkProcessor,
+            final List<DeleteQuery> deleteQueryList)
+            throws XMLStreamException {
         final StringBuilder buf = new StringBuilder();
+        long version = 0;
         boolean stop = false;
-        final List<ActionRequest<?>> requestList = new ArrayList<ActionRequest<?>>();
         // infinite loop until we get docid or error
         while (!stop) {
             final int event = parser.next();
             switch (event) {
             case XMLStreamConstants.START_ELEMENT:
                 buf.setLength(0);
+                version = 0;
+                for (int i = 0; i < parser.getAttributeCount(); i++) {
+                    final String attrName = parser.getAttributeLocalName(i);
+                    if (VERSION_FIELD.equals(attrName)
+                            || "version".equals(attrName)) {
+                        version = parseVersion(parser.getAttributeValue(i));
+                    }
+                }
                 break;
             case XMLStreamConstants.END_ELEMENT:
                 final String currTag = parser.getLocalName();
                 if ("id".equals(currTag)) {
                     final String docid = buf.toString();
-                    requestList.add(getDeleteIdRequest(docid, request));
+                    deleteById(docid, version, context, bulkProcessor,
+                            deleteQueryList);
                 } else if ("query".equals(currTag)) {
                     final String query = buf.toString();
-                    requestList.add(getDeleteQueryRequest(query, request));
+                    deleteQueryList.add(getDeleteQuery(query, context));
                 } else if ("delete".equals(currTag)) {
                     // done parsing, exit loop
                     stop = true;
@@ -857,8 +2331,5 @@ public class SolrUpdateRestAction extends BaseRestHandler {
                 break;
             }
         }
-
-        // return the extracted docid
-        return requestList;
     }
 }
@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.common.SolrInputDocument;
@@ -156,6 +157,8 @@ public class JavaBinUpdateRequestCodec {
                         break;
                     }
                     SolrInputDocument sdoc = null;
+                    Integer commitWithin = null;
+                    Boolean overwrite = null;
                     if (o instanceof List) {
                         sdoc = JavaBinUpdateRequestCodec.this
                                 .listToSolrInputDocument((List<NamedList>) o);
@@ -163,11 +166,24 @@ public class JavaBinUpdateRequestCodec {
                         final UpdateRequest req = new UpdateRequest();
                         req.setParams(new ModifiableSolrParams(SolrParams
                                 .toSolrParams((NamedList) o)));
-                        handler.update(null, req);
+                        handler.update(null, req, null, null);
+                    } else if (o instanceof Map.Entry) {
+                        // mocksolrplugin: a document of docsMap with its
+                        // add options
+                        @SuppressWarnings("unchecked")
+                        final Map.Entry<SolrInputDocument, Map<Object, Object>> entry = (Map.Entry<SolrInputDocument, Map<Object, Object>>) o;
+                        sdoc = entry.getKey();
+                        final Map<Object, Object> p = entry.getValue();
+                        if (p != null) {
+                            commitWithin = (Integer) p
+                                    .get(UpdateRequest.COMMIT_WITHIN);
+                            overwrite = (Boolean) p.get(UpdateRequest.OVERWRITE);
+                        }
                     } else {
                         sdoc = (SolrInputDocument) o;
                     }
-                    handler.update(sdoc, updateRequest);
+                    handler.update(sdoc, updateRequest, commitWithin,
+                            overwrite);
                 }
                 return Collections.EMPTY_LIST;
             }
@@ -205,6 +221,20 @@ public class JavaBinUpdateRequestCodec {
                 updateRequest.deleteById(s);
             }
         }
+        // newer clients send the ids with their versions
+        @SuppressWarnings("unchecked")
+        final Map<String, Map<String, Object>> delByIdMap = (Map<String, Map<String, Object>>) namedList[0]
+                .get("delByIdMap");
+        if (delByIdMap != null) {
+            for (final Map.Entry<String, Map<String, Object>> entry : delByIdMap
+                    .entrySet()) {
+                final Object version = entry.getValue() != null ? entry
+                        .getValue().get(UpdateRequest.VER) : null;
+                updateRequest.deleteById(entry.getKey(),
+                        version instanceof Number ? ((Number) version)
+                                .longValue() : null);
+            }
+        }
         if (delByQ != null) {
             for (final String s : delByQ) {
                 updateRequest.deleteByQuery(s);
@@ -238,6 +268,7 @@ public class JavaBinUpdateRequestCodec {
     }
 
     public static interface StreamingUpdateHandler {
-        public void update(SolrInputDocument document, UpdateRequest req);
+        public void update(SolrInputDocument document, UpdateRequest req,
+                Integer commitWithin, Boolean overwrite);
     }
 }
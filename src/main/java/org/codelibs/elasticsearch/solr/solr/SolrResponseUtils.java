@@ -391,6 +391,27 @@ public class SolrResponseUtils {
      */
     public static void writeResponse(final NamedList<Object> obj,
             final RestRequest request, final RestChannel channel) {
+        writeResponse(obj, request, channel, null, null);
+    }
+
+    /**
+     * Serializes the response object with the HTTP status and headers.
+     *
+     * @param obj
+     *            the response object
+     * @param request
+     *            the ES RestRequest
+     * @param channel
+     *            the ES RestChannel
+     * @param status
+     *            the HTTP status, or null for 200, or 500 if the response has
+     *            an error
+     * @param headers
+     *            the HTTP headers to add, or null
+     */
+    public static void writeResponse(final NamedList<Object> obj,
+            final RestRequest request, final RestChannel channel,
+            final RestStatus status, final Map<String, String> headers) {
         // determine what kind of output writer the Solr client is expecting
         final String wt = request.hasParam("wt") ? request.param("wt")
                 .toLowerCase() : SolrPluginConstants.XML_FORMAT_TYPE;
@@ -400,15 +421,37 @@ public class SolrResponseUtils {
 
         // determine what kind of response we need to send
         if (wt.equals(SolrPluginConstants.XML_FORMAT_TYPE)) {
-            writeXmlResponse(obj, channel);
+            writeXmlResponse(obj, channel, status, headers);
         } else if (wt.equals(SolrPluginConstants.JSON_FORMAT_TYPE)) {
-            writeJsonResponse(obj, channel, jsonnl);
+            writeJsonResponse(obj, channel, jsonnl, status, headers);
         } else if (wt.equals(SolrPluginConstants.JAVABIN_FORMAT_TYPE)) {
-            writeJavaBinResponse(obj, channel);
+            writeJavaBinResponse(obj, channel, status, headers);
         } else {
             // default xml response
-            writeXmlResponse(obj, channel);
+            writeXmlResponse(obj, channel, status, headers);
+        }
+    }
+
+    private static void sendResponse(final NamedList<Object> obj,
+            final RestChannel channel, final RestStatus status,
+            final Map<String, String> headers, final String contentType,
+            final byte[] content) {
+        final Object errorResponse = obj.get("error");
+        final RestStatus restStatus;
+        if (status != null) {
+            restStatus = status;
+        } else {
+            restStatus = errorResponse != null ? RestStatus.INTERNAL_SERVER_ERROR
+                    : RestStatus.OK;
         }
+        final BytesRestResponse response = new BytesRestResponse(restStatus,
+                contentType, content);
+        if (headers != null) {
+            for (final Map.Entry<String, String> entry : headers.entrySet()) {
+                response.addHeader(entry.getKey(), entry.getValue());
+            }
+        }
+        channel.sendResponse(response);
     }
 
     /**
@@ -420,7 +463,8 @@ public class SolrResponseUtils {
      *            the ES RestChannel
      */
     private static void writeJavaBinResponse(final NamedList<Object> obj,
-            final RestChannel channel) {
+            final RestChannel channel, final RestStatus status,
+            final Map<String, String> headers) {
         final ByteArrayOutputStream bo = new ByteArrayOutputStream();
 
         // try to marshal the data
@@ -430,15 +474,14 @@ public class SolrResponseUtils {
             logger.error("Error writing JavaBin response", e);
         }
 
-        final Object errorResponse = obj.get("error");
         // send the response
-        channel.sendResponse(new BytesRestResponse(
-                errorResponse != null ? RestStatus.INTERNAL_SERVER_ERROR
-                        : RestStatus.OK, CONTENT_TYPE_OCTET, bo.toByteArray()));
+        sendResponse(obj, channel, status, headers, CONTENT_TYPE_OCTET,
+                bo.toByteArray());
     }
 
     private static void writeXmlResponse(final NamedList<Object> obj,
-            final RestChannel channel) {
+            final RestChannel channel, final RestStatus status,
+            final Map<String, String> headers) {
         final Writer writer = new StringWriter();
 
         // try to serialize the data to xml
@@ -462,11 +505,8 @@ public class SolrResponseUtils {
         }
 
         // send the response
-        final Object errorResponse = obj.get("error");
-        channel.sendResponse(new BytesRestResponse(
-                errorResponse != null ? RestStatus.INTERNAL_SERVER_ERROR
-                        : RestStatus.OK, CONTENT_TYPE_XML, writer.toString()
-                        .getBytes(UTF_8)));
+        sendResponse(obj, channel, status, headers, CONTENT_TYPE_XML, writer
+                .toString().getBytes(UTF_8));
     }
     
     public static void writeJsonResponse(final NamedList<Object> obj,
@@ -476,6 +516,12 @@ public class SolrResponseUtils {
     
     public static void writeJsonResponse(final NamedList<Object> obj,
             final RestChannel channel, final String namedListStyle) {
+        writeJsonResponse(obj, channel, namedListStyle, null, null);
+    }
+
+    private static void writeJsonResponse(final NamedList<Object> obj,
+            final RestChannel channel, final String namedListStyle,
+            final RestStatus status, final Map<String, String> headers) {
     	
     	final Writer writer = new StringWriter();
     	
@@ -489,11 +535,8 @@ public class SolrResponseUtils {
         	logger.error("Error writing JSON response", e);
         }
         
-        final Object errorResponse = obj.get("error");
-        channel.sendResponse(new BytesRestResponse(
-                errorResponse != null ? RestStatus.INTERNAL_SERVER_ERROR
-                        : RestStatus.OK, CONTENT_TYPE_JSON, writer.toString()
-                        .getBytes(UTF_8)));
+        sendResponse(obj, channel, status, headers, CONTENT_TYPE_JSON, writer
+                .toString().getBytes(UTF_8));
 
     }
     
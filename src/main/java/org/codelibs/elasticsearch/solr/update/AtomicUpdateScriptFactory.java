@@ -0,0 +1,55 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.util.Map;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.script.AbstractExecutableScript;
+import org.elasticsearch.script.ExecutableScript;
+import org.elasticsearch.script.NativeScriptFactory;
+
+/**
+ * A native script to apply Solr atomic updates to a document. It is
+ * registered as {@link AtomicUpdates#SCRIPT_NAME}, so atomic updates work
+ * without enabling dynamic scripting.
+ *
+ * @author shinsuke
+ *
+ */
+public class AtomicUpdateScriptFactory implements NativeScriptFactory {
+
+    @Override
+    public ExecutableScript newScript(final Map<String, Object> params) {
+        if (params == null) {
+            throw new ElasticsearchIllegalArgumentException(
+                    "No atomic update parameters.");
+        }
+        return new AtomicUpdateScript(params);
+    }
+
+    private static class AtomicUpdateScript extends AbstractExecutableScript {
+        private final Map<String, Object> params;
+
+        private Map<String, Object> ctx;
+
+        AtomicUpdateScript(final Map<String, Object> params) {
+            this.params = params;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public void setNextVar(final String name, final Object value) {
+            if ("ctx".equals(name)) {
+                ctx = (Map<String, Object>) value;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public Object run() {
+            final Map<String, Object> source = (Map<String, Object>) ctx
+                    .get("_source");
+            AtomicUpdates.apply(source, params);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+
+/**
+ * Solr atomic updates. A field value of an atomic update is a map from a
+ * modifier(set, add, remove or inc) to the value, as SolrJ sends it. The
+ * modifiers of a document are converted into the parameters of
+ * {@link AtomicUpdateScriptFactory}, which applies them to the source of the
+ * ES document.
+ *
+ * @author shinsuke
+ *
+ */
+public final class AtomicUpdates {
+
+    public static final String SCRIPT_NAME = "solr_atomic_update";
+
+    public static final String SET = "set";
+
+    public static final String ADD = "add";
+
+    public static final String REMOVE = "remove";
+
+    public static final String INC = "inc";
+
+    static final String UPDATES_PARAM = "updates";
+
+    static final String FIELD = "field";
+
+    static final String OP = "op";
+
+    static final String VALUE = "value";
+
+    private AtomicUpdates() {
+    }
+
+    /**
+     * @param value
+     *            the field value
+     * @return true if the value is a map of atomic update modifiers
+     */
+    public static boolean isModifier(final Object value) {
+        if (!(value instanceof Map)) {
+            return false;
+        }
+        final Map<?, ?> map = (Map<?, ?>) value;
+        if (map.isEmpty()) {
+            return false;
+        }
+        for (final Object key : map.keySet()) {
+            if (!SET.equals(key) && !ADD.equals(key) && !REMOVE.equals(key)
+                    && !INC.equals(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates the script parameters for the fields of the document. A field
+     * without a modifier is set to its values.
+     *
+     * @param doc
+     *            the document with atomic update modifiers
+     * @return the script parameters
+     */
+    public static Map<String, Object> createParams(final UpdateDocument doc) {
+        final List<Object> updates = new ArrayList<Object>();
+        for (final String name : doc.getFieldNames()) {
+            final List<Object> setValues = new ArrayList<Object>();
+            final List<Object> addValues = new ArrayList<Object>();
+            final List<Object> removeValues = new ArrayList<Object>();
+            Object incValue = null;
+            boolean isSet = false;
+            for (final Object value : doc.getValues(name)) {
+                if (!isModifier(value)) {
+                    isSet = true;
+                    setValues.add(value);
+                    continue;
+                }
+                for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value)
+                        .entrySet()) {
+                    final Object op = entry.getKey();
+                    if (SET.equals(op)) {
+                        isSet = true;
+                        addAll(setValues, entry.getValue());
+                    } else if (ADD.equals(op)) {
+                        addAll(addValues, entry.getValue());
+                    } else if (REMOVE.equals(op)) {
+                        addAll(removeValues, entry.getValue());
+                    } else if (INC.equals(op)) {
+                        incValue = entry.getValue();
+                    }
+                }
+            }
+
+            if (isSet) {
+                // a null value removes the field
+                setValues.remove(null);
+                updates.add(createUpdate(name, SET,
+                        setValues.isEmpty() ? null
+                                : setValues.size() == 1 ? setValues.get(0)
+                                        : setValues));
+            }
+            if (!addValues.isEmpty()) {
+                updates.add(createUpdate(name, ADD, addValues));
+            }
+            if (!removeValues.isEmpty()) {
+                updates.add(createUpdate(name, REMOVE, removeValues));
+            }
+            if (incValue != null) {
+                updates.add(createUpdate(name, INC, incValue));
+            }
+        }
+
+        final Map<String, Object> params = new HashMap<String, Object>();
+        params.put(UPDATES_PARAM, updates);
+        return params;
+    }
+
+    private static void addAll(final List<Object> list, final Object value) {
+        if (value instanceof Collection) {
+            list.addAll((Collection<?>) value);
+        } else {
+            list.add(value);
+        }
+    }
+
+    private static Map<String, Object> createUpdate(final String field,
+            final String op, final Object value) {
+        final Map<String, Object> update = new HashMap<String, Object>();
+        update.put(FIELD, field);
+        update.put(OP, op);
+        update.put(VALUE, value);
+        return update;
+    }
+
+    /**
+     * Applies the updates of the script parameters to the source.
+     *
+     * @param source
+     *            the source of the ES document
+     * @param params
+     *            the script parameters
+     */
+    public static void apply(final Map<String, Object> source,
+            final Map<String, Object> params) {
+        final Object updates = params.get(UPDATES_PARAM);
+        if (!(updates instanceof List)) {
+            throw new ElasticsearchIllegalArgumentException("No "
+                    + UPDATES_PARAM + " parameter.");
+        }
+        for (final Object obj : (List<?>) updates) {
+            final Map<?, ?> update = (Map<?, ?>) obj;
+            final String field = (String) update.get(FIELD);
+            final Object op = update.get(OP);
+            final Object value = update.get(VALUE);
+            if (SET.equals(op)) {
+                if (value == null) {
+                    source.remove(field);
+                } else {
+                    source.put(field, value);
+                }
+            } else if (ADD.equals(op)) {
+                final List<Object> list = toList(source.get(field));
+                addAll(list, value);
+                source.put(field, list.size() == 1 ? list.get(0) : list);
+            } else if (REMOVE.equals(op)) {
+                remove(source, field, value);
+            } else if (INC.equals(op)) {
+                source.put(field, add(source.get(field), value));
+            } else {
+                throw new ElasticsearchIllegalArgumentException(
+                        "Unknown atomic update: " + op);
+            }
+        }
+    }
+
+    private static List<Object> toList(final Object value) {
+        final List<Object> list = new ArrayList<Object>();
+        if (value != null) {
+            addAll(list, value);
+        }
+        return list;
+    }
+
+    private static void remove(final Map<String, Object> source,
+            final String field, final Object value) {
+        final Object current = source.get(field);
+        if (current == null) {
+            return;
+        }
+
+        // compare as strings since the values of the request are strings
+        final List<String> removeValues = new ArrayList<String>();
+        for (final Object v : toList(value)) {
+            removeValues.add(String.valueOf(v));
+        }
+        final List<Object> list = toList(current);
+        for (final Iterator<Object> it = list.iterator(); it.hasNext();) {
+            if (removeValues.contains(String.valueOf(it.next()))) {
+                it.remove();
+            }
+        }
+
+        if (list.isEmpty()) {
+            source.remove(field);
+        } else if (current instanceof Collection) {
+            source.put(field, list);
+        } else {
+            source.put(field, list.get(0));
+        }
+    }
+
+    private static Number add(final Object current, final Object value) {
+        final Number delta = toNumber(value);
+        if (current == null) {
+            return delta;
+        }
+        final Number number = toNumber(current);
+        if (isIntegral(number) && isIntegral(delta)) {
+            return number.longValue() + delta.longValue();
+        }
+        return number.doubleValue() + delta.doubleValue();
+    }
+
+    private static boolean isIntegral(final Number number) {
+        return number instanceof Long || number instanceof Integer
+                || number instanceof Short || number instanceof Byte;
+    }
+
+    private static Number toNumber(final Object value) {
+        if (value instanceof Number) {
+            return (Number) value;
+        }
+        final String str = String.valueOf(value).trim();
+        try {
+            if (str.indexOf('.') >= 0 || str.indexOf('e') >= 0
+                    || str.indexOf('E') >= 0) {
+                return Double.parseDouble(str);
+            }
+            return Long.parseLong(str);
+        } catch (final NumberFormatException e) {
+            throw new ElasticsearchIllegalArgumentException(
+                    "Invalid number for inc: " + value, e);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Decides which failed bulk actions are sent again and when. Only
+ * transient failures are retried: rejections by a full thread pool,
+ * unavailable shards, and version conflicts of atomic updates without an
+ * expected version, which are applied to the latest document when they are
+ * sent again. The delay doubles for each attempt up to the maximum.
+ *
+ * @author shinsuke
+ *
+ */
+public class BulkRetryPolicy {
+
+    private final ThreadPool threadPool;
+
+    private final int maxRetries;
+
+    private final TimeValue initialBackoff;
+
+    private final TimeValue maxBackoff;
+
+    /**
+     * @param threadPool
+     *            ES thread pool to schedule the retries
+     * @param maxRetries
+     *            the maximum number of retries of an action
+     * @param initialBackoff
+     *            the delay before the first retry
+     * @param maxBackoff
+     *            the maximum delay before a retry
+     */
+    public BulkRetryPolicy(final ThreadPool threadPool, final int maxRetries,
+            final TimeValue initialBackoff, final TimeValue maxBackoff) {
+        this.threadPool = threadPool;
+        this.maxRetries = maxRetries;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * @param attempt
+     *            the number of retries already done
+     * @param action
+     *            the failed action
+     * @param status
+     *            the status of the failure
+     * @return true if the action is sent again
+     */
+    public boolean canRetry(final int attempt, final ActionRequest<?> action,
+            final RestStatus status) {
+        if (attempt >= maxRetries) {
+            return false;
+        }
+        switch (status) {
+        case TOO_MANY_REQUESTS:
+        case SERVICE_UNAVAILABLE:
+            return true;
+        case CONFLICT:
+            return action instanceof UpdateRequest
+                    && ((UpdateRequest) action).version() == Versions.MATCH_ANY;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @param attempt
+     *            the number of retries already done
+     * @param t
+     *            the failure of the whole bulk request
+     * @return true if the bulk request is sent again
+     */
+    public boolean canRetry(final int attempt, final Throwable t) {
+        if (attempt >= maxRetries) {
+            return false;
+        }
+        if (ExceptionsHelper.unwrapCause(t) instanceof EsRejectedExecutionException) {
+            return true;
+        }
+        final RestStatus status = ExceptionsHelper.status(t);
+        return status == RestStatus.TOO_MANY_REQUESTS
+                || status == RestStatus.SERVICE_UNAVAILABLE;
+    }
+
+    /**
+     * Runs the retry after the backoff of the attempt.
+     *
+     * @param attempt
+     *            the number of retries already done
+     * @param retry
+     *            the retry to run
+     * @throws EsRejectedExecutionException
+     *             if the retry cannot be scheduled
+     */
+    public void schedule(final int attempt, final Runnable retry) {
+        threadPool.schedule(getBackoff(attempt), ThreadPool.Names.GENERIC,
+                retry);
+    }
+
+    TimeValue getBackoff(final int attempt) {
+        final long max = maxBackoff.millis();
+        long delay = initialBackoff.millis();
+        for (int i = 0; i < attempt && delay < max; i++) {
+            delay *= 2;
+        }
+        return TimeValue.timeValueMillis(Math.min(delay, max));
+    }
+}
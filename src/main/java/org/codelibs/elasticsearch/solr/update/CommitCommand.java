@@ -0,0 +1,73 @@
+package org.codelibs.elasticsearch.solr.update;
+
+/**
+ * Commit options collected from the parameters and the commands of a Solr
+ * update request. A request may contain several commit commands, which are
+ * executed as one commit after all updates of the request.
+ *
+ * @author shinsuke
+ *
+ */
+public class CommitCommand {
+
+    private boolean commit = false;
+
+    private boolean softCommit = true;
+
+    private boolean waitSearcher = false;
+
+    private int commitWithin = -1;
+
+    /**
+     * Adds a commit command.
+     *
+     * @param softCommit
+     *            true if the command is a soft commit
+     * @param waitSearcher
+     *            false if the response does not wait for the commit
+     */
+    public void addCommit(final boolean softCommit, final boolean waitSearcher) {
+        commit = true;
+        // a hard commit makes the updates visible as well
+        this.softCommit &= softCommit;
+        this.waitSearcher |= waitSearcher;
+    }
+
+    /**
+     * Adds a commitWithin time. The shortest time is used.
+     *
+     * @param commitWithin
+     *            the time in milliseconds, or a negative value
+     */
+    public void addCommitWithin(final int commitWithin) {
+        if (commitWithin >= 0
+                && (this.commitWithin < 0 || commitWithin < this.commitWithin)) {
+            this.commitWithin = commitWithin;
+        }
+    }
+
+    public boolean isCommit() {
+        return commit;
+    }
+
+    /**
+     * @return true if all commit commands are soft commits
+     */
+    public boolean isSoftCommit() {
+        return softCommit;
+    }
+
+    /**
+     * @return true if the response waits for the commit
+     */
+    public boolean isWaitSearcher() {
+        return waitSearcher;
+    }
+
+    /**
+     * @return the commitWithin time in milliseconds, or -1
+     */
+    public int getCommitWithin() {
+        return commitWithin;
+    }
+}
@@ -0,0 +1,283 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.flush.FlushResponse;
+import org.elasticsearch.action.admin.indices.refresh.RefreshResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Runs Solr commits on ES indices. A soft commit is a refresh and a hard
+ * commit is a flush.
+ *
+ * Only one refresh and one flush per index is in flight. Commits requested
+ * while it is running wait for the next one, which is executed once for all
+ * of them, so concurrent commits of many clients do not queue up as many
+ * operations.
+ *
+ * commitWithin is run as a refresh per index. Only the earliest deadline of
+ * an index is scheduled, and all update requests with a later deadline are
+ * committed by that refresh.
+ *
+ * The state of an index is removed when nothing is running or scheduled for
+ * it, so deleted indices do not stay in the maps.
+ *
+ * @author shinsuke
+ *
+ */
+public class CommitScheduler {
+    private static ESLogger logger = ESLoggerFactory
+            .getLogger(CommitScheduler.class.getName());
+
+    private final Client client;
+
+    private final ThreadPool threadPool;
+
+    private final ConcurrentMap<String, PendingCommit> pendingCommitMap = ConcurrentCollections
+            .newConcurrentMap();
+
+    private final ConcurrentMap<String, CommitOperation> refreshOperationMap = ConcurrentCollections
+            .newConcurrentMap();
+
+    private final ConcurrentMap<String, CommitOperation> flushOperationMap = ConcurrentCollections
+            .newConcurrentMap();
+
+    public CommitScheduler(final Client client, final ThreadPool threadPool) {
+        this.client = client;
+        this.threadPool = threadPool;
+    }
+
+    /**
+     * Commits the index. The listener is notified when a refresh or a flush
+     * started after this call has completed.
+     *
+     * @param index
+     *            the index name
+     * @param softCommit
+     *            true for a refresh, false for a flush
+     * @param listener
+     *            the listener, or null if nobody waits for the commit
+     */
+    public void commit(final String index, final boolean softCommit,
+            final ActionListener<Void> listener) {
+        final ConcurrentMap<String, CommitOperation> operationMap = softCommit ? refreshOperationMap
+                : flushOperationMap;
+        while (true) {
+            CommitOperation operation = operationMap.get(index);
+            if (operation == null) {
+                operation = new CommitOperation(index, !softCommit);
+                final CommitOperation current = operationMap.putIfAbsent(
+                        index, operation);
+                if (current != null) {
+                    operation = current;
+                }
+            }
+            if (operation.execute(listener)) {
+                return;
+            }
+            // the operation has been removed after its last run
+        }
+    }
+
+    /**
+     * Makes the updates of the index visible within the given time.
+     *
+     * @param index
+     *            the index name
+     * @param commitWithin
+     *            the time in milliseconds
+     */
+    public void schedule(final String index, final long commitWithin) {
+        final long time = System.currentTimeMillis()
+                + Math.max(commitWithin, 0);
+        while (true) {
+            PendingCommit pendingCommit = pendingCommitMap.get(index);
+            if (pendingCommit == null) {
+                pendingCommit = new PendingCommit(index);
+                final PendingCommit current = pendingCommitMap.putIfAbsent(
+                        index, pendingCommit);
+                if (current != null) {
+                    pendingCommit = current;
+                }
+            }
+            if (pendingCommit.schedule(time)) {
+                return;
+            }
+            // the pending commit has been removed after its refresh
+        }
+    }
+
+    /**
+     * @return the number of the indices with a scheduled, running or
+     *         waiting commit
+     */
+    int size() {
+        return pendingCommitMap.size() + refreshOperationMap.size()
+                + flushOperationMap.size();
+    }
+
+    private class CommitOperation {
+        private final String index;
+
+        private final boolean flush;
+
+        private boolean running = false;
+
+        // true if this operation is not in the map anymore
+        private boolean removed = false;
+
+        // listeners waiting for the next operation
+        private List<ActionListener<Void>> waitingListeners = new ArrayList<ActionListener<Void>>();
+
+        CommitOperation(final String index, final boolean flush) {
+            this.index = index;
+            this.flush = flush;
+        }
+
+        boolean execute(final ActionListener<Void> listener) {
+            final List<ActionListener<Void>> listeners;
+            synchronized (this) {
+                if (removed) {
+                    return false;
+                }
+                waitingListeners.add(listener);
+                if (running) {
+                    // the running operation may miss the updates of this
+                    // request, so it waits for the next one
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("{} of {} is merged into the next one",
+                                flush ? "Flush" : "Refresh", index);
+                    }
+                    return true;
+                }
+                running = true;
+                listeners = waitingListeners;
+                waitingListeners = new ArrayList<ActionListener<Void>>();
+            }
+            run(listeners);
+            return true;
+        }
+
+        private void run(final List<ActionListener<Void>> listeners) {
+            if (flush) {
+                client.admin().indices().prepareFlush(index)
+                        .setWaitIfOngoing(true)
+                        .execute(this.<FlushResponse> newListener(listeners));
+            } else {
+                client.admin().indices().prepareRefresh(index)
+                        .execute(this.<RefreshResponse> newListener(listeners));
+            }
+        }
+
+        private <T> ActionListener<T> newListener(
+                final List<ActionListener<Void>> listeners) {
+            return new ActionListener<T>() {
+                @Override
+                public void onResponse(final T response) {
+                    done(listeners, null);
+                }
+
+                @Override
+                public void onFailure(final Throwable e) {
+                    logger.error("Failed to {} {}", e, flush ? "flush"
+                            : "refresh", index);
+                    done(listeners, e);
+                }
+            };
+        }
+
+        private void done(final List<ActionListener<Void>> listeners,
+                final Throwable e) {
+            for (final ActionListener<Void> listener : listeners) {
+                if (listener == null) {
+                    continue;
+                }
+                try {
+                    if (e == null) {
+                        listener.onResponse(null);
+                    } else {
+                        listener.onFailure(e);
+                    }
+                } catch (final Exception ex) {
+                    logger.warn("Failed to notify a commit listener", ex);
+                }
+            }
+
+            final List<ActionListener<Void>> nextListeners;
+            synchronized (this) {
+                if (waitingListeners.isEmpty()) {
+                    running = false;
+                    removed = true;
+                    (flush ? flushOperationMap : refreshOperationMap).remove(
+                            index, this);
+                    return;
+                }
+                nextListeners = waitingListeners;
+                waitingListeners = new ArrayList<ActionListener<Void>>();
+            }
+            run(nextListeners);
+        }
+    }
+
+    private class PendingCommit {
+        private final String index;
+
+        // the deadline of the scheduled refresh, or Long.MAX_VALUE
+        private long deadline = Long.MAX_VALUE;
+
+        // true if this pending commit is not in the map anymore
+        private boolean removed = false;
+
+        PendingCommit(final String index) {
+            this.index = index;
+        }
+
+        synchronized boolean schedule(final long time) {
+            if (removed) {
+                return false;
+            }
+            if (time >= deadline) {
+                // the scheduled refresh commits this update
+                if (logger.isDebugEnabled()) {
+                    logger.debug("commitWithin for {} is merged into {}",
+                            index, deadline);
+                }
+                return true;
+            }
+
+            // an earlier refresh replaces the scheduled one
+            deadline = time;
+            threadPool.schedule(TimeValue.timeValueMillis(Math.max(time
+                    - System.currentTimeMillis(), 0)), ThreadPool.Names.SAME,
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            commit(time);
+                        }
+                    });
+            return true;
+        }
+
+        void commit(final long time) {
+            synchronized (this) {
+                if (time != deadline) {
+                    // replaced by an earlier refresh
+                    return;
+                }
+                // updates from now on need the next pending commit
+                removed = true;
+                pendingCommitMap.remove(index, this);
+            }
+
+            CommitScheduler.this.commit(index, true, null);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.elasticsearch.common.bytes.BytesReference;
+
+/**
+ * Inflates a compressed update body while it is parsed, so the body is kept
+ * compressed in memory and the parsers read the inflated bytes as a stream.
+ * A gzip or zlib (HTTP deflate) body is detected by its header, because the
+ * HTTP layer of ES rejects a Content-Encoding unless it inflates the whole
+ * body itself. The inflated size is limited, so a small body cannot expand
+ * into an unbounded stream of documents.
+ *
+ * @author shinsuke
+ *
+ */
+public class ContentDecompressor {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final long maxInflatedSize;
+
+    /**
+     * @param maxInflatedSize
+     *            the maximum size of the inflated content, or 0 or less for
+     *            no limit
+     */
+    public ContentDecompressor(final long maxInflatedSize) {
+        this.maxInflatedSize = maxInflatedSize;
+    }
+
+    /**
+     * Opens the content as a stream, which is inflated if the content is
+     * compressed.
+     *
+     * @param content
+     *            the content of the request
+     * @return the stream of the content
+     * @throws IOException
+     */
+    public InputStream streamInput(final BytesReference content)
+            throws IOException {
+        if (isGzip(content)) {
+            return new LimitedInputStream(new GZIPInputStream(
+                    content.streamInput(), BUFFER_SIZE), maxInflatedSize);
+        } else if (isZlib(content)) {
+            return new LimitedInputStream(new InflaterInputStream(
+                    content.streamInput(), new Inflater(),
+                    BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        // the given inflater is not released by close()
+                        inf.end();
+                    }
+                }
+            }, maxInflatedSize);
+        }
+        return content.streamInput();
+    }
+
+    private static boolean isGzip(final BytesReference content) {
+        return content.length() > 2 && content.get(0) == (byte) 0x1f
+                && content.get(1) == (byte) 0x8b;
+    }
+
+    private static boolean isZlib(final BytesReference content) {
+        if (content.length() <= 2 || content.get(0) != (byte) 0x78) {
+            return false;
+        }
+        // only the flags of the compression levels, so a text body
+        // starting with "x" is not taken as compressed
+        final int flags = content.get(1) & 0xff;
+        return flags == 0x01 || flags == 0x5e || flags == 0x9c
+                || flags == 0xda;
+    }
+
+    private static class LimitedInputStream extends FilterInputStream {
+        private final long limit;
+
+        private long count;
+
+        LimitedInputStream(final InputStream in, final long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+                throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void count(final long n) {
+            count += n;
+            if (limit > 0 && count > limit) {
+                throw new ContentTooLargeException(
+                        "The inflated content exceeds " + limit + " bytes.");
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Thrown when the inflated content of an update request exceeds the limit.
+ *
+ * @author shinsuke
+ *
+ */
+public class ContentTooLargeException extends ElasticsearchException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ContentTooLargeException(final String msg) {
+        super(msg);
+    }
+
+    @Override
+    public RestStatus status() {
+        return RestStatus.REQUEST_ENTITY_TOO_LARGE;
+    }
+}
@@ -0,0 +1,245 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.solr.internal.csv.CSVParser;
+import org.apache.solr.internal.csv.CSVStrategy;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.rest.RestRequest;
+
+/**
+ * Reads Solr CSV update content row by row. Each row is converted into the
+ * fields of a document and passed to the handler before the next row is
+ * read, so the rows are not kept in memory.
+ *
+ * Supported parameters are separator, encapsulator, escape, header,
+ * fieldnames, skip, skipLines, trim, keepEmpty, split and literal.&lt;field&gt;,
+ * and split, separator and encapsulator per field as f.&lt;field&gt;.*.
+ *
+ * @author shinsuke
+ *
+ */
+public class CsvUpdateLoader {
+
+    private static final char DEFAULT_SEPARATOR = ',';
+
+    private static final char DEFAULT_ENCAPSULATOR = '"';
+
+    private final RestRequest request;
+
+    private final CSVStrategy strategy;
+
+    private final boolean trim;
+
+    private final boolean keepEmpty;
+
+    private final boolean split;
+
+    private final Set<String> skipFields = new HashSet<String>();
+
+    private final String[] literalNames;
+
+    private final String[] literalValues;
+
+    private String[] fieldNames;
+
+    private int skipLines;
+
+    // null if the column is not split
+    private CSVStrategy[] splitStrategies;
+
+    /**
+     * Creates a loader with the CSV parameters of the request.
+     *
+     * @param request
+     *            the ES rest request
+     */
+    public CsvUpdateLoader(final RestRequest request) {
+        this.request = request;
+
+        strategy = new CSVStrategy(getChar("separator", DEFAULT_SEPARATOR),
+                getChar("encapsulator", DEFAULT_ENCAPSULATOR),
+                CSVStrategy.COMMENTS_DISABLED, getChar("escape",
+                        CSVStrategy.ESCAPE_DISABLED), false, false, false,
+                true);
+
+        trim = request.paramAsBoolean("trim", false);
+        keepEmpty = request.paramAsBoolean("keepEmpty", false);
+        split = request.paramAsBoolean("split", false);
+        skipLines = request.paramAsInt("skipLines", 0);
+
+        final String[] skips = request.paramAsStringArray("skip",
+                Strings.EMPTY_ARRAY);
+        for (final String skip : skips) {
+            skipFields.add(skip.trim());
+        }
+
+        int numOfLiterals = 0;
+        final Map<String, String> params = request.params();
+        for (final String key : params.keySet()) {
+            if (key.startsWith("literal.")) {
+                numOfLiterals++;
+            }
+        }
+        literalNames = new String[numOfLiterals];
+        literalValues = new String[numOfLiterals];
+        int pos = 0;
+        for (final Map.Entry<String, String> entry : params.entrySet()) {
+            if (entry.getKey().startsWith("literal.")) {
+                literalNames[pos] = entry.getKey().substring(
+                        "literal.".length());
+                literalValues[pos] = entry.getValue();
+                pos++;
+            }
+        }
+
+        final String fieldnames = request.param("fieldnames");
+        final String header = request.param("header");
+        if (fieldnames == null) {
+            if (header != null && !Boolean.parseBoolean(header)) {
+                throw new ElasticsearchIllegalArgumentException(
+                        "CSV update must specify fieldnames or header=true");
+            }
+        } else {
+            // the header line is skipped when the field names are given
+            if (Boolean.parseBoolean(header)) {
+                skipLines++;
+            }
+            // an empty name skips its column, so the empty names are kept
+            prepareFields(fieldnames.split(",", -1));
+        }
+    }
+
+    private char getChar(final String name, final char defaultValue) {
+        final String value = request.param(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value.length() != 1) {
+            throw new ElasticsearchIllegalArgumentException("Invalid " + name
+                    + " parameter: " + value);
+        }
+        return value.charAt(0);
+    }
+
+    private void prepareFields(final String[] names) {
+        fieldNames = new String[names.length];
+        splitStrategies = new CSVStrategy[names.length];
+        for (int i = 0; i < names.length; i++) {
+            final String name = names[i].trim();
+            if (name.length() == 0 || skipFields.contains(name)) {
+                // skip this column
+                continue;
+            }
+            fieldNames[i] = name;
+
+            final String prefix = "f." + name + ".";
+            if (request.paramAsBoolean(prefix + "split", split)) {
+                final String sep = request.param(prefix + "separator");
+                final String encapsulator = request.param(prefix
+                        + "encapsulator");
+                splitStrategies[i] = new CSVStrategy(sep == null
+                        || sep.length() == 0 ? DEFAULT_SEPARATOR
+                        : sep.charAt(0), encapsulator == null
+                        || encapsulator.length() == 0 ? CSVStrategy.ENCAPSULATOR_DISABLED
+                        : encapsulator.charAt(0),
+                        CSVStrategy.COMMENTS_DISABLED);
+            }
+        }
+    }
+
+    /**
+     * Reads the CSV content and passes each row to the handler.
+     *
+     * @param reader
+     *            the CSV content
+     * @param doc
+     *            the reusable document to put the fields in
+     * @param handler
+     *            the handler called for each row
+     * @throws IOException
+     */
+    public void load(final Reader reader, final UpdateDocument doc,
+            final DocumentHandler handler) throws IOException {
+        final CSVParser parser = new CSVParser(reader, strategy);
+
+        // skip lines, which may be a header line
+        for (int i = 0; i < skipLines; i++) {
+            if (parser.getLine() == null) {
+                return;
+            }
+        }
+
+        if (fieldNames == null) {
+            final String[] header = parser.getLine();
+            if (header == null) {
+                return;
+            }
+            prepareFields(header);
+        }
+
+        String[] values;
+        while ((values = parser.getLine()) != null) {
+            if (values.length != fieldNames.length) {
+                throw new ElasticsearchParseException("CSV line "
+                        + parser.getLineNumber() + " has " + values.length
+                        + " values, but expected " + fieldNames.length);
+            }
+
+            doc.reset();
+            for (int i = 0; i < values.length; i++) {
+                final String name = fieldNames[i];
+                if (name == null) {
+                    continue;
+                }
+                addValue(doc, i, name, values[i]);
+            }
+            for (int i = 0; i < literalNames.length; i++) {
+                doc.addField(literalNames[i], literalValues[i]);
+            }
+            handler.add(doc);
+        }
+    }
+
+    private void addValue(final UpdateDocument doc, final int column,
+            final String name, final String value) throws IOException {
+        if (splitStrategies[column] == null) {
+            addValue(doc, name, value);
+        } else {
+            final CSVParser parser = new CSVParser(new StringReader(value),
+                    splitStrategies[column]);
+            String[] values;
+            while ((values = parser.getLine()) != null) {
+                for (final String v : values) {
+                    addValue(doc, name, v);
+                }
+            }
+        }
+    }
+
+    private void addValue(final UpdateDocument doc, final String name,
+            final String value) {
+        final String v = trim ? value.trim() : value;
+        if (v.length() > 0 || keepEmpty) {
+            doc.addField(name, v);
+        }
+    }
+
+    public static interface DocumentHandler {
+        /**
+         * Called for each row. The document is reused for the next row.
+         *
+         * @param doc
+         *            the fields of the row
+         * @throws IOException
+         */
+        public void add(UpdateDocument doc) throws IOException;
+    }
+}
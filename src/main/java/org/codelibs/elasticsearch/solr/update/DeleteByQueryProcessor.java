@@ -0,0 +1,526 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.refresh.RefreshResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.Requests;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Executes Solr delete-by-query commands as a scan/scroll over the matching
+ * documents and bulk delete requests of their ids, instead of ES's
+ * delete-by-query which blocks the shards while it runs. The number of
+ * deleted documents per second can be throttled so large deletes do not slow
+ * down concurrent indexing.
+ *
+ * The commands of an update request with the same index, type and routing
+ * are merged into one bool query, so many queries in one request result in a
+ * few scans, and the scans are executed with bounded concurrency. If a merged
+ * query fails, its commands are executed one by one to find the failed ones.
+ * Only the last command on the children of a parent is executed, and the
+ * commands on the children of an index and type are merged into one query on
+ * their parents.
+ *
+ * The target indices are refreshed before the scans, so the documents added
+ * by the update request are deleted as well. A document is deleted with the
+ * version it was scanned with, and a document updated after the scan is a
+ * version conflict which is counted, but kept as a newer document.
+ *
+ * @author shinsuke
+ *
+ */
+public class DeleteByQueryProcessor {
+    private static ESLogger logger = ESLoggerFactory
+            .getLogger(DeleteByQueryProcessor.class.getName());
+
+    private final Client client;
+
+    private final ThreadPool threadPool;
+
+    private final int batchSize;
+
+    private final float docsPerSecond;
+
+    private final TimeValue scrollKeepAlive;
+
+    private final int maxMergedQueries;
+
+    private final int concurrentQueries;
+
+    private final List<NamedList<Object>> results = Collections
+            .synchronizedList(new ArrayList<NamedList<Object>>());
+
+    private final List<UpdateFailure> failures = Collections
+            .synchronizedList(new ArrayList<UpdateFailure>());
+
+    private final Queue<DeleteQuery> queryQueue = new ConcurrentLinkedQueue<DeleteQuery>();
+
+    // the number of queued and running queries
+    private final AtomicInteger pendingCount = new AtomicInteger(0);
+
+    // the number of documents deleted by all queries, for the throttling
+    private final AtomicLong numOfProcessedDocs = new AtomicLong(0);
+
+    private volatile Listener listener;
+
+    private volatile long startTime;
+
+    /**
+     * Creates a processor for one update request.
+     *
+     * @param client
+     *            ES client
+     * @param threadPool
+     *            ES thread pool
+     * @param batchSize
+     *            the number of documents per shard in one scroll
+     * @param docsPerSecond
+     *            the maximum number of documents deleted per second, or 0 if
+     *            not throttled
+     * @param scrollKeepAlive
+     *            the keep alive of the scroll
+     * @param maxMergedQueries
+     *            the maximum number of commands merged into one query, or 1
+     *            to disable merging
+     * @param concurrentQueries
+     *            the maximum number of queries executed at the same time
+     */
+    public DeleteByQueryProcessor(final Client client,
+            final ThreadPool threadPool, final int batchSize,
+            final float docsPerSecond, final TimeValue scrollKeepAlive,
+            final int maxMergedQueries, final int concurrentQueries) {
+        this.client = client;
+        this.threadPool = threadPool;
+        this.batchSize = batchSize;
+        this.docsPerSecond = docsPerSecond;
+        this.scrollKeepAlive = scrollKeepAlive;
+        this.maxMergedQueries = Math.max(maxMergedQueries, 1);
+        this.concurrentQueries = Math.max(concurrentQueries, 1);
+    }
+
+    /**
+     * Deletes the documents matching the queries.
+     *
+     * @param deleteQueries
+     *            the delete-by-query commands
+     * @param listener
+     *            the listener notified when all queries have been executed
+     */
+    public void execute(final List<DeleteQuery> deleteQueries,
+            final Listener listener) {
+        this.listener = listener;
+        startTime = System.currentTimeMillis();
+
+        final List<DeleteQuery> queries = plan(deleteQueries);
+        if (queries.isEmpty()) {
+            listener.onCompleted(results, failures);
+            return;
+        }
+        pendingCount.set(queries.size());
+        queryQueue.addAll(queries);
+
+        final Set<String> indices = new LinkedHashSet<String>();
+        for (final DeleteQuery query : queries) {
+            indices.add(query.getIndex());
+        }
+        // the scans only see refreshed documents
+        client.admin().indices()
+                .prepareRefresh(indices.toArray(new String[indices.size()]))
+                .execute(new ActionListener<RefreshResponse>() {
+                    @Override
+                    public void onResponse(final RefreshResponse response) {
+                        start(queries.size());
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable e) {
+                        // the scans report the failures of the shards
+                        logger.warn("Failed to refresh {}", e, indices);
+                        start(queries.size());
+                    }
+                });
+    }
+
+    private void start(final int numOfQueries) {
+        for (int i = 0; i < concurrentQueries && i < numOfQueries; i++) {
+            executeNext();
+        }
+    }
+
+    /**
+     * Merges the commands with the same index, type and routing.
+     *
+     * @param deleteQueries
+     *            the commands of the update request
+     * @return the queries to execute
+     */
+    private List<DeleteQuery> plan(final List<DeleteQuery> deleteQueries) {
+        // the last command on the children of a parent replaces the others
+        final Set<String> parents = new HashSet<String>();
+        final boolean[] replaced = new boolean[deleteQueries.size()];
+        for (int i = deleteQueries.size() - 1; i >= 0; i--) {
+            final DeleteQuery deleteQuery = deleteQueries.get(i);
+            if (deleteQuery.getParent() != null
+                    && !parents.add(deleteQuery.getIndex() + '\n'
+                            + deleteQuery.getType() + '\n'
+                            + deleteQuery.getParent())) {
+                replaced[i] = true;
+            }
+        }
+
+        final Map<String, List<DeleteQuery>> queryMap = new LinkedHashMap<String, List<DeleteQuery>>();
+        final Map<String, List<DeleteQuery>> childQueryMap = new LinkedHashMap<String, List<DeleteQuery>>();
+        for (int i = 0; i < deleteQueries.size(); i++) {
+            if (replaced[i]) {
+                continue;
+            }
+            final DeleteQuery deleteQuery = deleteQueries.get(i);
+            if (deleteQuery.getParent() != null) {
+                // the children of all parents are deleted by one query
+                add(childQueryMap, deleteQuery.getIndex() + '\n'
+                        + deleteQuery.getType(), deleteQuery);
+            } else {
+                add(queryMap, deleteQuery.getIndex() + '\n'
+                        + deleteQuery.getType() + '\n'
+                        + deleteQuery.getRouting(), deleteQuery);
+            }
+        }
+
+        final List<DeleteQuery> queries = new ArrayList<DeleteQuery>();
+        for (final List<DeleteQuery> queryList : queryMap.values()) {
+            for (int i = 0; i < queryList.size(); i += maxMergedQueries) {
+                final List<DeleteQuery> subList = queryList.subList(i,
+                        Math.min(i + maxMergedQueries, queryList.size()));
+                if (subList.size() == 1) {
+                    queries.add(subList.get(0));
+                } else {
+                    queries.add(merge(subList));
+                }
+            }
+        }
+        for (final List<DeleteQuery> queryList : childQueryMap.values()) {
+            if (queryList.size() == 1) {
+                queries.add(queryList.get(0));
+            } else {
+                queries.add(DeleteQuery.childrenOf(queryList));
+            }
+        }
+        return queries;
+    }
+
+    private static void add(final Map<String, List<DeleteQuery>> queryMap,
+            final String key, final DeleteQuery deleteQuery) {
+        List<DeleteQuery> queryList = queryMap.get(key);
+        if (queryList == null) {
+            queryList = new ArrayList<DeleteQuery>();
+            queryMap.put(key, queryList);
+        }
+        queryList.add(deleteQuery);
+    }
+
+    private DeleteQuery merge(final List<DeleteQuery> deleteQueries) {
+        final BoolQueryBuilder queryBuilder = QueryBuilders.boolQuery();
+        final StringBuilder buf = new StringBuilder();
+        for (final DeleteQuery deleteQuery : deleteQueries) {
+            queryBuilder.should(deleteQuery.getQueryBuilder());
+            if (buf.length() > 0) {
+                buf.append(" OR ");
+            }
+            buf.append('(').append(deleteQuery.getQuery()).append(')');
+        }
+        final DeleteQuery first = deleteQueries.get(0);
+        return new DeleteQuery(first.getIndex(), first.getType(),
+                first.getRouting(), buf.toString(), queryBuilder,
+                new ArrayList<DeleteQuery>(deleteQueries));
+    }
+
+    private void executeNext() {
+        final DeleteQuery deleteQuery = queryQueue.poll();
+        if (deleteQuery != null) {
+            new QueryTask(deleteQuery).start();
+        }
+    }
+
+    private void complete() {
+        if (pendingCount.decrementAndGet() == 0) {
+            final List<NamedList<Object>> resultList;
+            synchronized (results) {
+                resultList = new ArrayList<NamedList<Object>>(results);
+            }
+            final List<UpdateFailure> failureList;
+            synchronized (failures) {
+                failureList = new ArrayList<UpdateFailure>(failures);
+            }
+            listener.onCompleted(resultList, failureList);
+        } else {
+            executeNext();
+        }
+    }
+
+    private class QueryTask {
+        private final DeleteQuery deleteQuery;
+
+        private final long taskStartTime = System.currentTimeMillis();
+
+        private long total = 0;
+
+        private long deleted = 0;
+
+        private long failed = 0;
+
+        private long conflicts = 0;
+
+        private int batches = 0;
+
+        private String failureMessage;
+
+        QueryTask(final DeleteQuery deleteQuery) {
+            this.deleteQuery = deleteQuery;
+        }
+
+        void start() {
+            // the scan search returns no hits, but the scroll id
+            client.prepareSearch(deleteQuery.getIndex())
+                    .setTypes(deleteQuery.getType())
+                    .setRouting(deleteQuery.getRouting())
+                    .setSearchType(SearchType.SCAN).setScroll(scrollKeepAlive)
+                    .setSize(batchSize).setVersion(true)
+                    .setQuery(deleteQuery.getQueryBuilder())
+                    .addField("_routing").addField("_parent")
+                    .execute(new ActionListener<SearchResponse>() {
+                        @Override
+                        public void onResponse(final SearchResponse response) {
+                            total = response.getHits().getTotalHits();
+                            checkShardFailures(response);
+                            scroll(response.getScrollId());
+                        }
+
+                        @Override
+                        public void onFailure(final Throwable e) {
+                            fail(null, e);
+                        }
+                    });
+        }
+
+        private void scroll(final String scrollId) {
+            client.prepareSearchScroll(scrollId).setScroll(scrollKeepAlive)
+                    .execute(new ActionListener<SearchResponse>() {
+                        @Override
+                        public void onResponse(final SearchResponse response) {
+                            checkShardFailures(response);
+                            final SearchHit[] hits = response.getHits()
+                                    .getHits();
+                            if (hits.length == 0) {
+                                clearScroll(response.getScrollId());
+                                finish();
+                            } else {
+                                delete(response.getScrollId(), hits);
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(final Throwable e) {
+                            fail(scrollId, e);
+                        }
+                    });
+        }
+
+        private void delete(final String scrollId, final SearchHit[] hits) {
+            final BulkRequest bulkRequest = Requests.bulkRequest();
+            for (final SearchHit hit : hits) {
+                final DeleteRequest deleteRequest = new DeleteRequest(
+                        hit.getIndex(), hit.getType(), hit.getId());
+                // a document added after the scan is not deleted
+                deleteRequest.version(hit.getVersion());
+                final SearchHitField routing = hit.field("_routing");
+                if (routing != null) {
+                    deleteRequest.routing(routing.<String> getValue());
+                }
+                final SearchHitField parent = hit.field("_parent");
+                if (parent != null) {
+                    deleteRequest.parent(parent.<String> getValue());
+                }
+                bulkRequest.add(deleteRequest);
+            }
+
+            client.bulk(bulkRequest, new ActionListener<BulkResponse>() {
+                @Override
+                public void onResponse(final BulkResponse response) {
+                    for (final BulkItemResponse itemResponse : response) {
+                        if (itemResponse.isFailed()) {
+                            if (RestStatus.CONFLICT == itemResponse
+                                    .getFailure().getStatus()) {
+                                conflicts++;
+                                continue;
+                            }
+                            failed++;
+                            if (failureMessage == null) {
+                                failureMessage = itemResponse
+                                        .getFailureMessage();
+                            }
+                        } else if (((DeleteResponse) itemResponse
+                                .getResponse()).isFound()) {
+                            deleted++;
+                        }
+                    }
+                    batches++;
+                    if (logger.isDebugEnabled()) {
+                        logger.debug(
+                                "Deleting by query {} on {}: {}/{} documents",
+                                deleteQuery.getQuery(),
+                                deleteQuery.getIndex(), deleted, total);
+                    }
+                    next(scrollId, hits.length);
+                }
+
+                @Override
+                public void onFailure(final Throwable e) {
+                    fail(scrollId, e);
+                }
+            });
+        }
+
+        private void next(final String scrollId, final int numOfDocs) {
+            final long numOfDocsTotal = numOfProcessedDocs
+                    .addAndGet(numOfDocs);
+            if (docsPerSecond > 0) {
+                // wait until the rate is below the limit
+                final long delay = startTime
+                        + (long) (numOfDocsTotal * 1000 / docsPerSecond)
+                        - System.currentTimeMillis();
+                if (delay > 0) {
+                    threadPool.schedule(TimeValue.timeValueMillis(delay),
+                            ThreadPool.Names.SAME, new Runnable() {
+                                @Override
+                                public void run() {
+                                    scroll(scrollId);
+                                }
+                            });
+                    return;
+                }
+            }
+            scroll(scrollId);
+        }
+
+        private void checkShardFailures(final SearchResponse response) {
+            if (response.getFailedShards() > 0 && failureMessage == null) {
+                failureMessage = response.getFailedShards()
+                        + " shards failed: "
+                        + response.getShardFailures()[0].reason();
+            }
+        }
+
+        private void fail(final String scrollId, final Throwable e) {
+            logger.error("Failed to delete by query {} on {}", e,
+                    deleteQuery.getQuery(), deleteQuery.getIndex());
+            if (scrollId != null) {
+                clearScroll(scrollId);
+            }
+            failureMessage = e.getMessage();
+            finish();
+        }
+
+        private void finish() {
+            final long took = System.currentTimeMillis() - taskStartTime;
+            if (logger.isInfoEnabled()) {
+                logger.info(
+                        "Deleted by query {} on {}: {}/{} documents in {}ms",
+                        deleteQuery.getQuery(), deleteQuery.getIndex(),
+                        deleted, total, took);
+            }
+
+            final List<DeleteQuery> mergedQueries = deleteQuery
+                    .getMergedQueries();
+            final NamedList<Object> result = new SimpleOrderedMap<Object>();
+            result.add("query", deleteQuery.getQuery());
+            result.add("queries", mergedQueries == null ? 1 : mergedQueries
+                    .size());
+            result.add("index", deleteQuery.getIndex());
+            result.add("total", total);
+            result.add("deleted", deleted);
+            result.add("failed", failed);
+            result.add("conflicts", conflicts);
+            result.add("batches", batches);
+            result.add("time", took);
+            results.add(result);
+
+            if (failureMessage != null) {
+                if (mergedQueries != null) {
+                    // find the failed commands
+                    logger.info(
+                            "Deleting {} merged queries on {} failed, executing them one by one",
+                            mergedQueries.size(), deleteQuery.getIndex());
+                    pendingCount.addAndGet(mergedQueries.size());
+                    queryQueue.addAll(mergedQueries);
+                } else {
+                    failures.add(new UpdateFailure(UpdateFailure.DELQ,
+                            deleteQuery.getIndex(), deleteQuery.getQuery(),
+                            failureMessage));
+                }
+            }
+
+            complete();
+        }
+
+        private void clearScroll(final String scrollId) {
+            client.prepareClearScroll().addScrollId(scrollId)
+                    .execute(new ActionListener<ClearScrollResponse>() {
+                        @Override
+                        public void onResponse(
+                                final ClearScrollResponse response) {
+                            // nothing
+                        }
+
+                        @Override
+                        public void onFailure(final Throwable e) {
+                            logger.warn("Failed to clear scroll {}", e,
+                                    scrollId);
+                        }
+                    });
+        }
+    }
+
+    public static interface Listener {
+        /**
+         * Called when all queries have been executed.
+         *
+         * @param results
+         *            the progress of each executed query
+         * @param failures
+         *            the failed queries, empty if all queries succeeded
+         */
+        public void onCompleted(List<NamedList<Object>> results,
+                List<UpdateFailure> failures);
+    }
+}
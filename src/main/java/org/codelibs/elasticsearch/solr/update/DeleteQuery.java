@@ -0,0 +1,215 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.elasticsearch.index.query.BoolFilterBuilder;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+
+/**
+ * A Solr delete-by-query command, or delete-by-query commands merged into
+ * one query.
+ *
+ * @author shinsuke
+ *
+ */
+public class DeleteQuery {
+
+    private final String index;
+
+    private final String type;
+
+    private final String routing;
+
+    private final String query;
+
+    private final QueryBuilder queryBuilder;
+
+    private final List<DeleteQuery> mergedQueries;
+
+    private final String parent;
+
+    private final Collection<String> excludedIds;
+
+    /**
+     * @param index
+     *            the index name
+     * @param type
+     *            the type name
+     * @param routing
+     *            the routing value, or null
+     * @param query
+     *            the Solr query
+     * @param queryBuilder
+     *            the ES query for the Solr query
+     */
+    public DeleteQuery(final String index, final String type,
+            final String routing, final String query,
+            final QueryBuilder queryBuilder) {
+        this(index, type, routing, query, queryBuilder, null);
+    }
+
+    /**
+     * @param index
+     *            the index name
+     * @param type
+     *            the type name
+     * @param routing
+     *            the routing value, or null
+     * @param query
+     *            the Solr query
+     * @param queryBuilder
+     *            the ES query for the Solr query
+     * @param mergedQueries
+     *            the commands merged into this command, or null
+     */
+    public DeleteQuery(final String index, final String type,
+            final String routing, final String query,
+            final QueryBuilder queryBuilder,
+            final List<DeleteQuery> mergedQueries) {
+        this(index, type, routing, query, queryBuilder, mergedQueries, null,
+                Collections.<String> emptyList());
+    }
+
+    private DeleteQuery(final String index, final String type,
+            final String routing, final String query,
+            final QueryBuilder queryBuilder,
+            final List<DeleteQuery> mergedQueries, final String parent,
+            final Collection<String> excludedIds) {
+        this.index = index;
+        this.type = type;
+        this.routing = routing;
+        this.query = query;
+        this.queryBuilder = queryBuilder;
+        this.mergedQueries = mergedQueries;
+        this.parent = parent;
+        this.excludedIds = excludedIds;
+    }
+
+    /**
+     * Creates a command which deletes the ES child documents of a parent
+     * except the given ones. A later command on the children of the same
+     * parent replaces this command.
+     *
+     * @param index
+     *            the index name
+     * @param type
+     *            the type of the child documents
+     * @param routing
+     *            the routing of the parent, or null
+     * @param parent
+     *            the id of the parent document
+     * @param excludedIds
+     *            the ids of the children to keep
+     * @return the delete-by-query command
+     */
+    public static DeleteQuery childrenOf(final String index,
+            final String type, final String routing, final String parent,
+            final Collection<String> excludedIds) {
+        final BoolQueryBuilder queryBuilder = QueryBuilders.boolQuery().must(
+                QueryBuilders.termQuery("_parent", parent));
+        if (!excludedIds.isEmpty()) {
+            queryBuilder.mustNot(QueryBuilders.idsQuery(type).ids(
+                    excludedIds.toArray(new String[excludedIds.size()])));
+        }
+        return new DeleteQuery(index, type, routing, "_parent:" + parent,
+                queryBuilder, null, parent, excludedIds);
+    }
+
+    /**
+     * Merges the commands on the children of parents with the same index
+     * and type into one command, which filters the children by the terms of
+     * their parents.
+     *
+     * @param childQueries
+     *            the commands created by
+     *            {@link #childrenOf(String, String, String, String, Collection)}
+     *            , one per parent
+     * @return the merged command
+     */
+    public static DeleteQuery childrenOf(final List<DeleteQuery> childQueries) {
+        final DeleteQuery first = childQueries.get(0);
+        String routing = first.getRouting();
+        final List<String> parents = new ArrayList<String>(
+                childQueries.size());
+        final BoolFilterBuilder excludedFilter = FilterBuilders.boolFilter();
+        boolean hasExcludedIds = false;
+        for (final DeleteQuery childQuery : childQueries) {
+            if (routing != null && !routing.equals(childQuery.getRouting())) {
+                // the parents are on several shards
+                routing = null;
+            }
+            parents.add(childQuery.getParent());
+            final Collection<String> ids = childQuery.excludedIds;
+            if (!ids.isEmpty()) {
+                excludedFilter.should(FilterBuilders
+                        .boolFilter()
+                        .must(FilterBuilders.termFilter("_parent",
+                                childQuery.getParent()))
+                        .must(FilterBuilders.idsFilter(first.getType()).ids(
+                                ids.toArray(new String[ids.size()]))));
+                hasExcludedIds = true;
+            }
+        }
+
+        // a filter is not limited by the max clause count
+        final BoolFilterBuilder filter = FilterBuilders.boolFilter().must(
+                FilterBuilders.termsFilter("_parent", parents));
+        if (hasExcludedIds) {
+            filter.mustNot(excludedFilter);
+        }
+        final StringBuilder buf = new StringBuilder("_parent:(");
+        for (int i = 0; i < parents.size(); i++) {
+            if (i > 0) {
+                buf.append(" OR ");
+            }
+            buf.append(parents.get(i));
+        }
+        buf.append(')');
+        return new DeleteQuery(first.getIndex(), first.getType(), routing,
+                buf.toString(), QueryBuilders.constantScoreQuery(filter),
+                new ArrayList<DeleteQuery>(childQueries));
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getRouting() {
+        return routing;
+    }
+
+    /**
+     * @return the Solr query
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    public QueryBuilder getQueryBuilder() {
+        return queryBuilder;
+    }
+
+    /**
+     * @return the commands merged into this command, or null
+     */
+    public List<DeleteQuery> getMergedQueries() {
+        return mergedQueries;
+    }
+
+    /**
+     * @return the parent of the deleted children, or null
+     */
+    public String getParent() {
+        return parent;
+    }
+}
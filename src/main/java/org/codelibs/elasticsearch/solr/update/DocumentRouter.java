@@ -0,0 +1,106 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+
+/**
+ * Derives the ES routing of documents like the Solr document routers. A
+ * Solr compositeId "shardKey!docId" is routed by its shard key, so the
+ * documents with the same prefix are in the same shard, and the routing
+ * field of an index routes a document by the value of the field like the
+ * router.field of a Solr collection.
+ *
+ * The routing field is read from the index setting
+ * "index.solr.routingField", or the node setting "solr.routingField" if
+ * the index does not have it.
+ *
+ * @author shinsuke
+ *
+ */
+public class DocumentRouter {
+
+    public static final String ROUTING_FIELD_SETTING = "index.solr.routingField";
+
+    private final ClusterService clusterService;
+
+    private final boolean compositeId;
+
+    private final String defaultRoutingField;
+
+    /**
+     * @param clusterService
+     *            ES cluster service to read the index settings
+     * @param compositeId
+     *            true if the shard key of a compositeId is the routing
+     * @param defaultRoutingField
+     *            the routing field of an index without the setting, or null
+     */
+    public DocumentRouter(final ClusterService clusterService,
+            final boolean compositeId, final String defaultRoutingField) {
+        this.clusterService = clusterService;
+        this.compositeId = compositeId;
+        this.defaultRoutingField = defaultRoutingField;
+    }
+
+    public boolean isCompositeId() {
+        return compositeId;
+    }
+
+    /**
+     * @param index
+     *            the index name or an alias to one index
+     * @return the routing field of the index, or null
+     */
+    public String getRoutingField(final String index) {
+        final MetaData metaData = clusterService.state().metaData();
+        IndexMetaData indexMetaData = metaData.index(index);
+        if (indexMetaData == null) {
+            try {
+                indexMetaData = metaData.index(metaData.concreteSingleIndex(
+                        index, IndicesOptions.lenientExpandOpen()));
+            } catch (final ElasticsearchException e) {
+                indexMetaData = null;
+            }
+        }
+        if (indexMetaData == null) {
+            // the index is created by the first document
+            return defaultRoutingField;
+        }
+        return indexMetaData.settings().get(ROUTING_FIELD_SETTING,
+                defaultRoutingField);
+    }
+
+    /**
+     * Returns the shard key of a Solr compositeId. The bits of a key like
+     * "shardKey/2!docId" only spread the documents in Solr and are removed,
+     * and the first key of a three level id routes the document.
+     *
+     * @param id
+     *            the Solr document id
+     * @return the shard key, or null if the id is not a compositeId
+     */
+    public static String getShardKey(final String id) {
+        final int pos = id.indexOf('!');
+        if (pos <= 0) {
+            return null;
+        }
+        final int bits = id.lastIndexOf('/', pos);
+        if (bits > 0 && bits < pos - 1 && isDigits(id, bits + 1, pos)) {
+            return id.substring(0, bits);
+        }
+        return id.substring(0, pos);
+    }
+
+    private static boolean isDigits(final String value, final int start,
+            final int end) {
+        for (int i = start; i < end; i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,306 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.codelibs.elasticsearch.solr.index.mapper.date.SolrDateFieldMapper;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.joda.FormatDateTimeFormatter;
+import org.elasticsearch.common.joda.Joda;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+/**
+ * Converts string values of documents into the types of their fields in the
+ * mapping, so the values are parsed once on this node instead of on every
+ * shard copy. Dates, including Solr date math of solr_date fields, are
+ * resolved once and written back in the format of the field, so all copies
+ * get the same time and the source stays readable by Solr clients.
+ *
+ * The fields of each index and type are cached, and the cache of an index
+ * is cleared when its metadata changes in the cluster state. A value which
+ * cannot be converted, or a field which is not in the mapping, is kept as
+ * it is and left to ES.
+ *
+ * @author shinsuke
+ *
+ */
+public class FieldTypeRegistry implements ClusterStateListener {
+    private static ESLogger logger = ESLoggerFactory
+            .getLogger(FieldTypeRegistry.class.getName());
+
+    private final ClusterService clusterService;
+
+    // index -> type -> field path -> converter
+    private final ConcurrentMap<String, ConcurrentMap<String, Map<String, Converter>>> cache = ConcurrentCollections
+            .newConcurrentMap();
+
+    public FieldTypeRegistry(final ClusterService clusterService) {
+        this.clusterService = clusterService;
+        clusterService.add(this);
+    }
+
+    @Override
+    public void clusterChanged(final ClusterChangedEvent event) {
+        if (!event.metaDataChanged()) {
+            return;
+        }
+        final MetaData metaData = event.state().metaData();
+        final MetaData previousMetaData = event.previousState().metaData();
+        for (final String index : cache.keySet()) {
+            // unchanged index metadata is the same instance, and an alias
+            // is resolved again
+            final IndexMetaData indexMetaData = metaData.index(index);
+            if (indexMetaData == null
+                    || indexMetaData != previousMetaData.index(index)) {
+                cache.remove(index);
+            }
+        }
+    }
+
+    /**
+     * Converts the values of the fields of the document into the types of
+     * the fields.
+     *
+     * @param doc
+     *            the document
+     * @param index
+     *            the index name
+     * @param type
+     *            the type name
+     * @param prefix
+     *            the path of the object the document is in, or null for a
+     *            root document
+     */
+    public void coerce(final UpdateDocument doc, final String index,
+            final String type, final String prefix) {
+        final Map<String, Converter> converters = getConverters(index, type);
+        if (converters.isEmpty()) {
+            return;
+        }
+        for (final String name : doc.getFieldNames()) {
+            final Converter converter = converters.get(prefix == null ? name
+                    : prefix + '.' + name);
+            if (converter == null) {
+                continue;
+            }
+            final List<Object> values = doc.getValues(name);
+            boolean changed = false;
+            for (int i = 0; i < values.size(); i++) {
+                final Object value = values.get(i);
+                if (!(value instanceof String)) {
+                    continue;
+                }
+                final Object converted = converter.convert(((String) value)
+                        .trim());
+                if (converted != null) {
+                    values.set(i, converted);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                doc.setField(name, values);
+            }
+        }
+    }
+
+    private Map<String, Converter> getConverters(final String index,
+            final String type) {
+        ConcurrentMap<String, Map<String, Converter>> typeMap = cache
+                .get(index);
+        if (typeMap == null) {
+            typeMap = ConcurrentCollections.newConcurrentMap();
+            final ConcurrentMap<String, Map<String, Converter>> current = cache
+                    .putIfAbsent(index, typeMap);
+            if (current != null) {
+                typeMap = current;
+            }
+        }
+        Map<String, Converter> converters = typeMap.get(type);
+        if (converters == null) {
+            converters = loadConverters(index, type);
+            typeMap.put(type, converters);
+        }
+        return converters;
+    }
+
+    private Map<String, Converter> loadConverters(final String index,
+            final String type) {
+        final MetaData metaData = clusterService.state().metaData();
+        IndexMetaData indexMetaData = metaData.index(index);
+        if (indexMetaData == null) {
+            try {
+                // an alias to one index
+                indexMetaData = metaData.index(metaData.concreteSingleIndex(
+                        index, IndicesOptions.lenientExpandOpen()));
+            } catch (final ElasticsearchException e) {
+                indexMetaData = null;
+            }
+        }
+        if (indexMetaData == null) {
+            return Collections.emptyMap();
+        }
+        final MappingMetaData mappingMetaData = indexMetaData.mapping(type);
+        if (mappingMetaData == null) {
+            return Collections.emptyMap();
+        }
+        final Map<String, Converter> converters = new HashMap<String, Converter>();
+        try {
+            addConverters(converters, null, mappingMetaData.sourceAsMap());
+        } catch (final Exception e) {
+            logger.warn("Failed to read the mapping of {}/{}.", e, index, type);
+            return Collections.emptyMap();
+        }
+        return converters;
+    }
+
+    private void addConverters(final Map<String, Converter> converters,
+            final String prefix, final Map<String, Object> mapping) {
+        final Object properties = mapping.get("properties");
+        if (!(properties instanceof Map)) {
+            return;
+        }
+        for (final Map.Entry<?, ?> entry : ((Map<?, ?>) properties).entrySet()) {
+            if (!(entry.getValue() instanceof Map)) {
+                continue;
+            }
+            final String path = prefix == null ? entry.getKey().toString()
+                    : prefix + '.' + entry.getKey();
+            @SuppressWarnings("unchecked")
+            final Map<String, Object> field = (Map<String, Object>) entry
+                    .getValue();
+            final Converter converter = createConverter(field);
+            if (converter != null) {
+                converters.put(path, converter);
+            } else {
+                // an object or nested field
+                addConverters(converters, path, field);
+            }
+        }
+    }
+
+    private static Converter createConverter(final Map<String, Object> field) {
+        final Object type = field.get("type");
+        if (type == null) {
+            return null;
+        }
+        final String typeName = type.toString();
+        if ("long".equals(typeName)) {
+            return LONG_CONVERTER;
+        } else if ("integer".equals(typeName) || "short".equals(typeName)
+                || "byte".equals(typeName)) {
+            return INTEGER_CONVERTER;
+        } else if ("double".equals(typeName) || "float".equals(typeName)) {
+            return DOUBLE_CONVERTER;
+        } else if ("boolean".equals(typeName)) {
+            return BOOLEAN_CONVERTER;
+        } else if ("date".equals(typeName)
+                || SolrDateFieldMapper.CONTENT_TYPE.equals(typeName)) {
+            final Object format = field.get("format");
+            final FormatDateTimeFormatter formatter = Joda.forPattern(
+                    format != null ? format.toString() : "dateOptionalTime",
+                    Locale.ROOT);
+            final Object resolution = field.get("numeric_resolution");
+            final TimeUnit timeUnit = resolution != null ? TimeUnit
+                    .valueOf(resolution.toString().toUpperCase(Locale.ROOT))
+                    : TimeUnit.MILLISECONDS;
+            return new DateConverter(formatter, timeUnit,
+                    SolrDateFieldMapper.CONTENT_TYPE.equals(typeName));
+        }
+        return null;
+    }
+
+    private static interface Converter {
+        /**
+         * @param value
+         *            the string value
+         * @return the converted value, or null if the value is kept
+         */
+        Object convert(String value);
+    }
+
+    private static final Converter LONG_CONVERTER = new Converter() {
+        @Override
+        public Object convert(final String value) {
+            try {
+                return Long.valueOf(value);
+            } catch (final NumberFormatException e) {
+                return null;
+            }
+        }
+    };
+
+    private static final Converter INTEGER_CONVERTER = new Converter() {
+        @Override
+        public Object convert(final String value) {
+            try {
+                return Integer.valueOf(value);
+            } catch (final NumberFormatException e) {
+                return null;
+            }
+        }
+    };
+
+    private static final Converter DOUBLE_CONVERTER = new Converter() {
+        @Override
+        public Object convert(final String value) {
+            try {
+                return Double.valueOf(value);
+            } catch (final NumberFormatException e) {
+                return null;
+            }
+        }
+    };
+
+    private static final Converter BOOLEAN_CONVERTER = new Converter() {
+        @Override
+        public Object convert(final String value) {
+            if ("true".equalsIgnoreCase(value)) {
+                return Boolean.TRUE;
+            } else if ("false".equalsIgnoreCase(value)) {
+                return Boolean.FALSE;
+            }
+            return null;
+        }
+    };
+
+    private static class DateConverter implements Converter {
+        private final FormatDateTimeFormatter formatter;
+
+        private final TimeUnit timeUnit;
+
+        private final boolean solrDate;
+
+        DateConverter(final FormatDateTimeFormatter formatter,
+                final TimeUnit timeUnit, final boolean solrDate) {
+            this.formatter = formatter;
+            this.timeUnit = timeUnit;
+            this.solrDate = solrDate;
+        }
+
+        @Override
+        public Object convert(final String value) {
+            try {
+                final long millis = solrDate ? SolrDateFieldMapper.parseDate(
+                        formatter, timeUnit, value) : formatter.parser()
+                        .parseMillis(value);
+                return formatter.printer().print(millis);
+            } catch (final Exception e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+
+/**
+ * Generates ids for Solr documents without an id. Instances are thread-safe.
+ *
+ * @author shinsuke
+ *
+ */
+public abstract class IdGenerator {
+
+    public static final String UUID_TYPE = "uuid";
+
+    public static final String FLAKE_TYPE = "flake";
+
+    /**
+     * Creates a generator for the type, which is uuid or flake.
+     *
+     * @param type
+     *            the generator type
+     * @return the generator
+     */
+    public static IdGenerator create(final String type) {
+        final String name = type.toLowerCase(Locale.ROOT);
+        if (UUID_TYPE.equals(name)) {
+            return new UuidIdGenerator();
+        } else if (FLAKE_TYPE.equals(name)) {
+            return new FlakeIdGenerator(new SecureRandom().nextInt(1 << 16));
+        }
+        throw new ElasticsearchIllegalArgumentException(
+                "Unknown id generator: " + type);
+    }
+
+    /**
+     * @return a new id
+     */
+    public abstract String generate();
+
+    static class UuidIdGenerator extends IdGenerator {
+        @Override
+        public String generate() {
+            return UUID.randomUUID().toString();
+        }
+    }
+
+    /**
+     * Generates time-ordered ids from the current time in milliseconds, a
+     * sequence number in the millisecond and a node id. The time and the
+     * sequence are kept in one long value updated by compare-and-set, so no
+     * lock is needed. When the sequence overflows, the id goes into the next
+     * millisecond, so ids are unique and increasing on this node.
+     */
+    static class FlakeIdGenerator extends IdGenerator {
+        private static final int SEQUENCE_BITS = 22;
+
+        private static final char[] HEX_CHARS = "0123456789abcdef"
+                .toCharArray();
+
+        private final AtomicLong lastValue = new AtomicLong();
+
+        private final int nodeId;
+
+        FlakeIdGenerator(final int nodeId) {
+            this.nodeId = nodeId & 0xffff;
+        }
+
+        @Override
+        public String generate() {
+            final long timeValue = System.currentTimeMillis() << SEQUENCE_BITS;
+            long last;
+            long next;
+            do {
+                last = lastValue.get();
+                next = timeValue > last ? timeValue : last + 1;
+            } while (!lastValue.compareAndSet(last, next));
+
+            // fixed length hex, so the string order is the time order
+            final char[] chars = new char[20];
+            for (int i = 0; i < 16; i++) {
+                chars[15 - i] = HEX_CHARS[(int) (next >>> i * 4) & 0xf];
+            }
+            for (int i = 0; i < 4; i++) {
+                chars[19 - i] = HEX_CHARS[nodeId >>> i * 4 & 0xf];
+            }
+            return new String(chars);
+        }
+    }
+}
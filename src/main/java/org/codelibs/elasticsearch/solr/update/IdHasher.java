@@ -0,0 +1,125 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+import org.apache.lucene.util.BytesRefBuilder;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.hash.MurmurHash3;
+
+/**
+ * Converts a Solr document id into a hashed ES document id. Instances are
+ * thread-safe, and the digest and the buffers are reused per thread.
+ *
+ * @author shinsuke
+ *
+ */
+public abstract class IdHasher {
+
+    public static final String MURMUR3 = "murmur3";
+
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+    private final ThreadLocal<BytesRefBuilder> bytesBuilder = new ThreadLocal<BytesRefBuilder>() {
+        @Override
+        protected BytesRefBuilder initialValue() {
+            return new BytesRefBuilder();
+        }
+    };
+
+    /**
+     * Creates a hasher for the algorithm, which is murmur3 or an algorithm
+     * name of MessageDigest such as MD5 and SHA-1.
+     *
+     * @param algorithm
+     *            the algorithm name
+     * @return the hasher
+     */
+    public static IdHasher create(final String algorithm) {
+        if (MURMUR3.equals(algorithm.toLowerCase(Locale.ROOT))) {
+            return new Murmur3IdHasher();
+        }
+        return new DigestIdHasher(algorithm);
+    }
+
+    /**
+     * @param id
+     *            the Solr document id
+     * @return the hex string of the hashed id
+     */
+    public String hash(final String id) {
+        final BytesRefBuilder builder = bytesBuilder.get();
+        builder.copyChars(id);
+        return hash(builder.bytes(), builder.length());
+    }
+
+    protected abstract String hash(byte[] bytes, int length);
+
+    protected static String encodeHex(final byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_CHARS[bytes[i] >> 4 & 0xf];
+            chars[i * 2 + 1] = HEX_CHARS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    protected static String encodeHex(final long h1, final long h2) {
+        final char[] chars = new char[32];
+        for (int i = 0; i < 16; i++) {
+            chars[15 - i] = HEX_CHARS[(int) (h1 >>> i * 4) & 0xf];
+            chars[31 - i] = HEX_CHARS[(int) (h2 >>> i * 4) & 0xf];
+        }
+        return new String(chars);
+    }
+
+    static class DigestIdHasher extends IdHasher {
+        private final ThreadLocal<MessageDigest> digest;
+
+        DigestIdHasher(final String algorithm) {
+            try {
+                // check if the algorithm is available
+                MessageDigest.getInstance(algorithm);
+            } catch (final NoSuchAlgorithmException e) {
+                throw new ElasticsearchIllegalArgumentException(
+                        "Unknown id hash algorithm: " + algorithm, e);
+            }
+            digest = new ThreadLocal<MessageDigest>() {
+                @Override
+                protected MessageDigest initialValue() {
+                    try {
+                        return MessageDigest.getInstance(algorithm);
+                    } catch (final NoSuchAlgorithmException e) {
+                        throw new ElasticsearchIllegalArgumentException(
+                                "Unknown id hash algorithm: " + algorithm, e);
+                    }
+                }
+            };
+        }
+
+        @Override
+        protected String hash(final byte[] bytes, final int length) {
+            final MessageDigest md = digest.get();
+            md.update(bytes, 0, length);
+            // digest() resets the MessageDigest for the next id
+            return encodeHex(md.digest());
+        }
+    }
+
+    static class Murmur3IdHasher extends IdHasher {
+        private final ThreadLocal<MurmurHash3.Hash128> hash128 = new ThreadLocal<MurmurHash3.Hash128>() {
+            @Override
+            protected MurmurHash3.Hash128 initialValue() {
+                return new MurmurHash3.Hash128();
+            }
+        };
+
+        @Override
+        protected String hash(final byte[] bytes, final int length) {
+            final MurmurHash3.Hash128 hash = MurmurHash3.hash128(bytes, 0,
+                    length, 0, hash128.get());
+            return encodeHex(hash.h1, hash.h2);
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.DocumentRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.Requests;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.index.get.GetField;
+
+/**
+ * Skips adds of documents which are the same as the indexed ones, like
+ * Solr's SignatureUpdateProcessor. The signature of a document is the hash
+ * of the configured fields, or all fields, and is stored in the signature
+ * field. An add is dropped if the signature is the same as the one of the
+ * stored document, which is read by a realtime multi-get. The cache of the
+ * signatures is only a hint to send an add without the get if the cached
+ * signature is different, so a stale entry never drops an add.
+ *
+ * Adds of the same id in a bulk chunk collapse to the last one, and only
+ * the first action on an id in a chunk is compared with the stored
+ * document, since the others follow an action which is not applied yet.
+ * Adds of the same id in different chunks are not collapsed, but compared
+ * after the previous chunk of the id is applied.
+ *
+ * Only plain adds are deduplicated. Atomic updates, versioned adds and adds
+ * without an id are always sent.
+ *
+ * @author shinsuke
+ *
+ */
+public class SignatureDeduplicator {
+    private static ESLogger logger = ESLoggerFactory
+            .getLogger(SignatureDeduplicator.class.getName());
+
+    private final Client client;
+
+    private final String[] fields;
+
+    private final String signatureField;
+
+    private final IdHasher hasher;
+
+    // index/type/routing/id -> signature of the indexed document
+    private final Cache<String, String> cache;
+
+    /**
+     * @param client
+     *            ES client
+     * @param fields
+     *            the fields to hash, or empty for all fields
+     * @param signatureField
+     *            the field to store the signature in
+     * @param algorithm
+     *            the hash algorithm of {@link IdHasher}
+     * @param cacheSize
+     *            the maximum number of signatures in the cache
+     */
+    public SignatureDeduplicator(final Client client, final String[] fields,
+            final String signatureField, final String algorithm,
+            final int cacheSize) {
+        this.client = client;
+        this.fields = fields;
+        this.signatureField = signatureField;
+        hasher = IdHasher.create(algorithm);
+        cache = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+    }
+
+    public String getSignatureField() {
+        return signatureField;
+    }
+
+    /**
+     * Computes the signature of the document and stores it in the signature
+     * field.
+     *
+     * @param doc
+     *            the document with an id
+     * @return the signature, or null if the document is not deduplicated
+     */
+    public String sign(final UpdateDocument doc) {
+        if (doc.isAtomicUpdate() || doc.hasField("_version_")) {
+            return null;
+        }
+
+        final List<String> names;
+        if (fields.length > 0) {
+            names = Arrays.asList(fields);
+        } else {
+            names = doc.getFieldNames();
+            names.remove(signatureField);
+            Collections.sort(names);
+        }
+
+        final StringBuilder buf = new StringBuilder(256);
+        for (final String name : names) {
+            buf.append(name).append('\u0000');
+            for (final Object value : doc.getValues(name)) {
+                buf.append(value).append('\u0001');
+            }
+            buf.append('\u0002');
+        }
+        final String signature = hasher.hash(buf.toString());
+        doc.setField(signatureField, signature);
+        return signature;
+    }
+
+    /**
+     * Removes the adds which do not change the indexed documents from the
+     * bulk chunk.
+     *
+     * @param request
+     *            the bulk chunk
+     * @param signatures
+     *            the signatures of the adds in the chunk
+     * @param listener
+     *            the listener notified with the chunk to send
+     */
+    public void filter(final BulkRequest request,
+            final Map<ActionRequest<?>, String> signatures,
+            final ActionListener<BulkRequest> listener) {
+        @SuppressWarnings("rawtypes")
+        final List<ActionRequest> actions = request.requests();
+        final boolean[] dropped = new boolean[actions.size()];
+
+        // keep the last of adds with the same id
+        final Map<String, Boolean> overwritten = new HashMap<String, Boolean>();
+        for (int i = actions.size() - 1; i >= 0; i--) {
+            final ActionRequest<?> action = actions.get(i);
+            final String key = getKey((DocumentRequest<?>) action);
+            if (action instanceof IndexRequest
+                    || action instanceof DeleteRequest) {
+                if (signatures.containsKey(action)
+                        && Boolean.TRUE.equals(overwritten.get(key))) {
+                    dropped[i] = true;
+                } else if (isUnconditional(action)) {
+                    overwritten.put(key, Boolean.TRUE);
+                }
+            } else {
+                // an update depends on the previous actions
+                overwritten.remove(key);
+            }
+        }
+
+        // find the adds which may not change the stored documents
+        final List<Integer> lookups = new ArrayList<Integer>();
+        final Set<String> keys = new HashSet<String>();
+        for (int i = 0; i < actions.size(); i++) {
+            final ActionRequest<?> action = actions.get(i);
+            if (dropped[i]) {
+                continue;
+            }
+            final String key = getKey((DocumentRequest<?>) action);
+            if (!keys.add(key)) {
+                // the stored document is not the one this add replaces
+                continue;
+            }
+            final String signature = signatures.get(action);
+            if (signature == null) {
+                continue;
+            }
+            final String cached = cache.getIfPresent(key);
+            if (cached == null || cached.equals(signature)) {
+                lookups.add(i);
+            }
+        }
+
+        if (lookups.isEmpty()) {
+            listener.onResponse(newRequest(actions, dropped));
+            return;
+        }
+
+        // get the stored signatures of the ids which are not in the cache
+        final MultiGetRequest multiGetRequest = new MultiGetRequest();
+        for (final Integer i : lookups) {
+            final IndexRequest action = (IndexRequest) actions.get(i);
+            multiGetRequest.add(new MultiGetRequest.Item(action.index(),
+                    action.type(), action.id()).routing(action.routing())
+                    .fields(signatureField));
+        }
+        multiGetRequest.realtime(true);
+        client.multiGet(multiGetRequest,
+                new ActionListener<MultiGetResponse>() {
+                    @Override
+                    public void onResponse(final MultiGetResponse response) {
+                        final MultiGetItemResponse[] items = response
+                                .getResponses();
+                        for (int j = 0; j < items.length; j++) {
+                            final int i = lookups.get(j);
+                            final ActionRequest<?> action = actions.get(i);
+                            if (items[j].isFailed()) {
+                                continue;
+                            } else if (!items[j].getResponse().isExists()) {
+                                cache.invalidate(getKey((IndexRequest) action));
+                                continue;
+                            }
+                            final GetField field = items[j].getResponse()
+                                    .getField(signatureField);
+                            if (field == null || field.getValue() == null) {
+                                continue;
+                            }
+                            final String stored = field.getValue().toString();
+                            cache.put(getKey((IndexRequest) action), stored);
+                            if (stored.equals(signatures.get(action))) {
+                                dropped[i] = true;
+                            }
+                        }
+                        listener.onResponse(newRequest(actions, dropped));
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable e) {
+                        logger.warn("Failed to get signatures.", e);
+                        // send the adds without deduplication
+                        listener.onResponse(newRequest(actions, dropped));
+                    }
+                });
+    }
+
+    /**
+     * Updates the cache with the result of the bulk chunk.
+     *
+     * @param request
+     *            the sent bulk chunk
+     * @param response
+     *            the response of the bulk chunk
+     * @param signatures
+     *            the signatures of the adds in the chunk
+     */
+    public void update(final BulkRequest request, final BulkResponse response,
+            final Map<ActionRequest<?>, String> signatures) {
+        @SuppressWarnings("rawtypes")
+        final List<ActionRequest> actions = request.requests();
+        for (final BulkItemResponse itemResponse : response) {
+            final ActionRequest<?> action = actions.get(itemResponse
+                    .getItemId());
+            final String key = getKey((DocumentRequest<?>) action);
+            final String signature = signatures.get(action);
+            if (signature != null && !itemResponse.isFailed()) {
+                cache.put(key, signature);
+            } else {
+                // the document may be changed
+                cache.invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * Clears the cache, for example after deleting by queries.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private BulkRequest newRequest(
+            @SuppressWarnings("rawtypes") final List<ActionRequest> actions,
+            final boolean[] dropped) {
+        final BulkRequest request = Requests.bulkRequest();
+        int count = 0;
+        for (int i = 0; i < actions.size(); i++) {
+            if (dropped[i]) {
+                count++;
+            } else {
+                request.add(actions.get(i));
+            }
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("{} of {} actions are skipped as duplicates", count,
+                    actions.size());
+        }
+        return request;
+    }
+
+    private static boolean isUnconditional(final ActionRequest<?> action) {
+        if (action instanceof IndexRequest) {
+            final IndexRequest indexRequest = (IndexRequest) action;
+            return indexRequest.opType() == IndexRequest.OpType.INDEX
+                    && indexRequest.version() == Versions.MATCH_ANY;
+        }
+        return ((DeleteRequest) action).version() == Versions.MATCH_ANY;
+    }
+
+    private static String getKey(final DocumentRequest<?> request) {
+        final StringBuilder buf = new StringBuilder(64);
+        buf.append(request.index()).append('/').append(request.type())
+                .append('/').append(request.id());
+        if (request.routing() != null) {
+            buf.append('/').append(request.routing());
+        }
+        return buf.toString();
+    }
+}
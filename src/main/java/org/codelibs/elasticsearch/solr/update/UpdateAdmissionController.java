@@ -0,0 +1,115 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.elasticsearch.common.lease.Releasable;
+
+/**
+ * Limits the update requests in flight by their number and the size of
+ * their content. A request which would exceed a limit is rejected before
+ * its content is parsed, so clients back off instead of the node running
+ * out of memory or rejecting bulk requests.
+ *
+ * @author shinsuke
+ *
+ */
+public class UpdateAdmissionController {
+
+    private final long maxInflightBytes;
+
+    private final int maxInflightRequests;
+
+    private final AtomicLong inflightBytes = new AtomicLong();
+
+    private final AtomicInteger inflightRequests = new AtomicInteger();
+
+    private final AtomicLong admittedRequests = new AtomicLong();
+
+    private final AtomicLong rejectedRequests = new AtomicLong();
+
+    /**
+     * @param maxInflightBytes
+     *            the maximum size of the content in flight, or 0 or less for
+     *            no limit
+     * @param maxInflightRequests
+     *            the maximum number of requests in flight, or 0 or less for
+     *            no limit
+     */
+    public UpdateAdmissionController(final long maxInflightBytes,
+            final int maxInflightRequests) {
+        this.maxInflightBytes = maxInflightBytes;
+        this.maxInflightRequests = maxInflightRequests;
+    }
+
+    /**
+     * @param bytes
+     *            the size of the content
+     * @return true if the request can never be admitted
+     */
+    public boolean isTooLarge(final long bytes) {
+        return maxInflightBytes > 0 && bytes > maxInflightBytes;
+    }
+
+    /**
+     * Admits a request if it does not exceed the limits.
+     *
+     * @param bytes
+     *            the size of the content
+     * @return the permit to release when the request is done, or null if
+     *         the request is rejected
+     */
+    public Releasable tryAcquire(final long bytes) {
+        if (inflightRequests.incrementAndGet() > maxInflightRequests
+                && maxInflightRequests > 0) {
+            inflightRequests.decrementAndGet();
+            rejectedRequests.incrementAndGet();
+            return null;
+        }
+        if (inflightBytes.addAndGet(bytes) > maxInflightBytes
+                && maxInflightBytes > 0) {
+            inflightBytes.addAndGet(-bytes);
+            inflightRequests.decrementAndGet();
+            rejectedRequests.incrementAndGet();
+            return null;
+        }
+        admittedRequests.incrementAndGet();
+        return new Permit(bytes);
+    }
+
+    /**
+     * @return the limits and the counters for monitoring
+     */
+    public NamedList<Object> stats() {
+        final NamedList<Object> stats = new SimpleOrderedMap<Object>();
+        stats.add("max_inflight_bytes", maxInflightBytes);
+        stats.add("max_inflight_requests", maxInflightRequests);
+        stats.add("inflight_bytes", inflightBytes.get());
+        stats.add("inflight_requests", inflightRequests.get());
+        stats.add("admitted_requests", admittedRequests.get());
+        stats.add("rejected_requests", rejectedRequests.get());
+        return stats;
+    }
+
+    private class Permit implements Releasable {
+        private final long bytes;
+
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        Permit(final long bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            // the request may finish on several paths
+            if (released.compareAndSet(false, true)) {
+                inflightBytes.addAndGet(-bytes);
+                inflightRequests.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,485 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.DocumentRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse.Failure;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.Requests;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+
+/**
+ * Collects index/delete actions of one Solr update request and submits them
+ * to ES in bounded bulk chunks while the request body is still being parsed.
+ * A chunk is sent when it reaches the number of actions or the size in bytes,
+ * and adding blocks while the maximum number of chunks is in flight, so the
+ * memory usage does not depend on the size of the update request. The
+ * processor must not be used on a network thread because of the blocking.
+ *
+ * The actions are partitioned into one chunk per concurrent request by the
+ * hash of the document id, and each partition sends its chunks one at a
+ * time. The actions on one document are therefore applied in the order of
+ * the update request even if chunks are sent concurrently. Actions without
+ * an id get a new document and go to the partitions in turn.
+ *
+ * Failed actions which are retryable by the retry policy are sent again
+ * after a backoff, and only the others are reported as failures. A chunk
+ * keeps its partition while it is retried, so the next chunk of the
+ * partition waits for the retries. A failed action is not retried if a
+ * later action of its chunk was applied to the same document. It is
+ * dropped if the later action replaces or deletes the document, and
+ * reported as a failure otherwise.
+ *
+ * @author shinsuke
+ *
+ */
+public class UpdateBulkProcessor {
+    private static ESLogger logger = ESLoggerFactory
+            .getLogger(UpdateBulkProcessor.class.getName());
+
+    private final Client client;
+
+    private final int bulkActions;
+
+    private final long bulkSize;
+
+    private final Partition[] partitions;
+
+    // the partition of the next action without an id
+    private int nextPartition = 0;
+
+    // starts with 1 for this processor itself, released by close()
+    private final AtomicInteger pendingCount = new AtomicInteger(1);
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private final List<UpdateFailure> failures = Collections
+            .synchronizedList(new ArrayList<UpdateFailure>());
+
+    private final boolean returnVersions;
+
+    // document id -> version, guarded by addVersions
+    private final NamedList<Object> addVersions = new SimpleOrderedMap<Object>();
+
+    private final NamedList<Object> deleteVersions = new SimpleOrderedMap<Object>();
+
+    private final SignatureDeduplicator deduplicator;
+
+    private final BulkRetryPolicy retryPolicy;
+
+    // read by the status of async jobs
+    private volatile int numberOfActions = 0;
+
+    private volatile Listener listener;
+
+    /**
+     * Creates a processor for one update request.
+     *
+     * @param client
+     *            ES client
+     * @param bulkActions
+     *            the maximum number of actions in one bulk request
+     * @param bulkSize
+     *            the maximum size in bytes of one bulk request, or -1
+     * @param concurrentRequests
+     *            the maximum number of bulk requests in flight, which is
+     *            also the number of partitions
+     * @param returnVersions
+     *            true to collect the versions of the updated documents
+     * @param deduplicator
+     *            the deduplicator of the adds, or null
+     * @param retryPolicy
+     *            the policy to retry failed actions, or null
+     */
+    public UpdateBulkProcessor(final Client client, final int bulkActions,
+            final long bulkSize, final int concurrentRequests,
+            final boolean returnVersions,
+            final SignatureDeduplicator deduplicator,
+            final BulkRetryPolicy retryPolicy) {
+        this.client = client;
+        this.retryPolicy = retryPolicy;
+        this.bulkActions = bulkActions;
+        this.bulkSize = bulkSize;
+        this.returnVersions = returnVersions;
+        this.deduplicator = deduplicator;
+        partitions = new Partition[Math.max(concurrentRequests, 1)];
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new Partition();
+        }
+    }
+
+    /**
+     * Adds an index or delete request. The current chunk is sent to ES when
+     * it reaches the configured size.
+     *
+     * @param request
+     *            the index or delete request
+     */
+    public void add(final ActionRequest<?> request) {
+        add(request, null);
+    }
+
+    /**
+     * Adds an index request with the signature of the document. The chunk is
+     * deduplicated by the signatures before it is sent.
+     *
+     * @param request
+     *            the index or delete request
+     * @param signature
+     *            the signature of the document, or null
+     */
+    public void add(final ActionRequest<?> request, final String signature) {
+        if (closed.get()) {
+            throw new ElasticsearchException("Bulk processor is closed.");
+        }
+        final Partition partition = getPartition(request);
+        partition.bulkRequest.add(request);
+        if (signature != null) {
+            partition.signatures.put(request, signature);
+        }
+        numberOfActions++;
+        if (partition.bulkRequest.numberOfActions() >= bulkActions
+                || bulkSize > 0
+                && partition.bulkRequest.estimatedSizeInBytes() >= bulkSize) {
+            flush(partition);
+        }
+    }
+
+    private Partition getPartition(final ActionRequest<?> request) {
+        if (partitions.length == 1) {
+            return partitions[0];
+        }
+        final String id = ((DocumentRequest<?>) request).id();
+        if (id == null) {
+            // a generated id does not conflict with other actions
+            nextPartition = (nextPartition + 1) % partitions.length;
+            return partitions[nextPartition];
+        }
+        return partitions[(id.hashCode() & Integer.MAX_VALUE)
+                % partitions.length];
+    }
+
+    /**
+     * @return the number of actions added to this processor
+     */
+    public int numberOfActions() {
+        return numberOfActions;
+    }
+
+    /**
+     * Returns the versions of the documents in the format of Solr's
+     * versions=true response. The versions are available after the listener
+     * is notified.
+     *
+     * @return the adds and deletes with the document versions, or null if
+     *         the versions are not collected
+     */
+    public NamedList<Object> getVersions() {
+        if (!returnVersions) {
+            return null;
+        }
+        final NamedList<Object> versions = new SimpleOrderedMap<Object>();
+        synchronized (addVersions) {
+            if (addVersions.size() > 0) {
+                versions.add("adds", addVersions.clone());
+            }
+            if (deleteVersions.size() > 0) {
+                versions.add("deletes", deleteVersions.clone());
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Sends the remaining actions and notifies the listener when all chunks
+     * have been processed.
+     *
+     * @param listener
+     *            the listener notified with the failures of all chunks
+     */
+    public void close(final Listener listener) {
+        if (!closed.compareAndSet(false, true)) {
+            throw new ElasticsearchException("Bulk processor is closed.");
+        }
+        this.listener = listener;
+        for (final Partition partition : partitions) {
+            if (partition.bulkRequest.numberOfActions() > 0) {
+                flush(partition);
+            }
+        }
+        release();
+    }
+
+    private void flush(final Partition partition) {
+        final BulkRequest request = partition.bulkRequest;
+        final Map<ActionRequest<?>, String> chunkSignatures = partition.signatures;
+        partition.bulkRequest = Requests.bulkRequest();
+        partition.signatures = new IdentityHashMap<ActionRequest<?>, String>();
+
+        try {
+            partition.semaphore.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            addFailures(request, "Interrupted while waiting for a bulk request");
+            return;
+        }
+
+        pendingCount.incrementAndGet();
+        if (deduplicator == null || chunkSignatures.isEmpty()) {
+            send(partition, request, chunkSignatures, 0);
+        } else {
+            deduplicator.filter(request, chunkSignatures,
+                    new ActionListener<BulkRequest>() {
+                        @Override
+                        public void onResponse(final BulkRequest filtered) {
+                            send(partition, filtered, chunkSignatures, 0);
+                        }
+
+                        @Override
+                        public void onFailure(final Throwable e) {
+                            send(partition, request, chunkSignatures, 0);
+                        }
+                    });
+        }
+    }
+
+    private void send(final Partition partition, final BulkRequest request,
+            final Map<ActionRequest<?>, String> chunkSignatures,
+            final int attempt) {
+        if (request.numberOfActions() == 0) {
+            // all actions are duplicates
+            partition.semaphore.release();
+            release();
+            return;
+        }
+
+        client.bulk(request, new ActionListener<BulkResponse>() {
+
+            @Override
+            public void onResponse(final BulkResponse response) {
+                BulkRequest retryRequest = null;
+                try {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Bulk request completed: {} actions",
+                                request.numberOfActions());
+                    }
+                    if (response.hasFailures()) {
+                        for (final BulkItemResponse itemResponse : response) {
+                            final Failure failure = itemResponse.getFailure();
+                            if (failure == null) {
+                                continue;
+                            }
+                            final ActionRequest<?> action = (ActionRequest<?>) request
+                                    .requests().get(itemResponse.getItemId());
+                            if (retryPolicy != null
+                                    && retryPolicy.canRetry(attempt, action,
+                                            failure.getStatus())) {
+                                // a retry must not be applied after a later
+                                // action on the same document
+                                final ActionRequest<?> applied = getAppliedAfter(
+                                        request, response,
+                                        itemResponse.getItemId());
+                                if (applied == null) {
+                                    if (retryRequest == null) {
+                                        retryRequest = Requests.bulkRequest();
+                                    }
+                                    retryRequest.add(action);
+                                    continue;
+                                } else if (replaces(applied)) {
+                                    // the result of the action is overwritten
+                                    continue;
+                                }
+                            }
+                            failures.add(new UpdateFailure("delete"
+                                    .equals(itemResponse.getOpType()) ? UpdateFailure.DELID
+                                    : UpdateFailure.ADD, failure.getIndex(),
+                                    failure.getId(), failure.getMessage(),
+                                    failure.getStatus().getStatus()));
+                        }
+                    }
+                    if (returnVersions) {
+                        addVersions(response);
+                    }
+                    if (deduplicator != null) {
+                        deduplicator.update(request, response, chunkSignatures);
+                    }
+                } finally {
+                    if (retryRequest != null) {
+                        retry(partition, retryRequest, chunkSignatures, attempt);
+                    } else {
+                        partition.semaphore.release();
+                        release();
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(final Throwable e) {
+                if (retryPolicy != null && retryPolicy.canRetry(attempt, e)) {
+                    retry(partition, request, chunkSignatures, attempt);
+                    return;
+                }
+                try {
+                    logger.error("Bulk request failed", e);
+                    addFailures(request, e.getMessage());
+                } finally {
+                    partition.semaphore.release();
+                    release();
+                }
+            }
+        });
+    }
+
+    private void retry(final Partition partition, final BulkRequest request,
+            final Map<ActionRequest<?>, String> chunkSignatures,
+            final int attempt) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Retrying {} actions: attempt {}",
+                    request.numberOfActions(), attempt + 1);
+        }
+        try {
+            retryPolicy.schedule(attempt, new Runnable() {
+                @Override
+                public void run() {
+                    send(partition, request, chunkSignatures, attempt + 1);
+                }
+            });
+        } catch (final Exception e) {
+            try {
+                logger.error("Failed to retry a bulk request", e);
+                addFailures(request, e.getMessage());
+            } finally {
+                partition.semaphore.release();
+                release();
+            }
+        }
+    }
+
+    /**
+     * Returns the first action after the item which was applied to the same
+     * document.
+     *
+     * @param request
+     *            the sent chunk
+     * @param response
+     *            the response of the chunk
+     * @param itemId
+     *            the position of the failed item
+     * @return the applied action, or null
+     */
+    static ActionRequest<?> getAppliedAfter(final BulkRequest request,
+            final BulkResponse response, final int itemId) {
+        final DocumentRequest<?> failed = (DocumentRequest<?>) request
+                .requests().get(itemId);
+        if (failed.id() == null) {
+            return null;
+        }
+        final BulkItemResponse[] items = response.getItems();
+        for (int i = itemId + 1; i < items.length; i++) {
+            final DocumentRequest<?> action = (DocumentRequest<?>) request
+                    .requests().get(i);
+            if (!items[i].isFailed() && failed.id().equals(action.id())
+                    && failed.index().equals(action.index())
+                    && failed.type().equals(action.type())) {
+                return (ActionRequest<?>) action;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param action
+     *            an applied action
+     * @return true if the action replaces or deletes the whole document
+     */
+    static boolean replaces(final ActionRequest<?> action) {
+        if (action instanceof DeleteRequest) {
+            return true;
+        }
+        return action instanceof IndexRequest
+                && ((IndexRequest) action).opType() == IndexRequest.OpType.INDEX;
+    }
+
+    private void addVersions(final BulkResponse response) {
+        synchronized (addVersions) {
+            for (final BulkItemResponse itemResponse : response) {
+                if (itemResponse.isFailed()) {
+                    continue;
+                }
+                if ("delete".equals(itemResponse.getOpType())) {
+                    // Solr returns the version of a delete as a negative value
+                    deleteVersions.add(itemResponse.getId(),
+                            -itemResponse.getVersion());
+                } else {
+                    addVersions.add(itemResponse.getId(),
+                            itemResponse.getVersion());
+                }
+            }
+        }
+    }
+
+    private void addFailures(final BulkRequest request, final String message) {
+        // all actions in the chunk failed
+        for (final ActionRequest<?> action : request.requests()) {
+            final DocumentRequest<?> docRequest = (DocumentRequest<?>) action;
+            failures.add(new UpdateFailure(
+                    action instanceof DeleteRequest ? UpdateFailure.DELID
+                            : UpdateFailure.ADD, docRequest.index(), docRequest
+                            .id(), message));
+        }
+    }
+
+    private void release() {
+        if (pendingCount.decrementAndGet() == 0) {
+            final List<UpdateFailure> results;
+            synchronized (failures) {
+                results = new ArrayList<UpdateFailure>(failures);
+            }
+            listener.onCompleted(numberOfActions, results);
+        }
+    }
+
+    /**
+     * The chunk in progress and the chunk in flight of the actions on a part
+     * of the document ids.
+     */
+    private static class Partition {
+        private final Semaphore semaphore = new Semaphore(1);
+
+        private BulkRequest bulkRequest = Requests.bulkRequest();
+
+        // the signatures of the adds in the current chunk
+        private Map<ActionRequest<?>, String> signatures = new IdentityHashMap<ActionRequest<?>, String>();
+    }
+
+    public static interface Listener {
+        /**
+         * Called when all chunks of the update request have been processed.
+         *
+         * @param numberOfActions
+         *            the number of submitted actions
+         * @param failures
+         *            the failed actions, empty if all actions succeeded
+         */
+        public void onCompleted(int numberOfActions,
+                List<UpdateFailure> failures);
+    }
+}
@@ -0,0 +1,275 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import org.codelibs.elasticsearch.solr.update.processor.UpdateChain;
+import org.elasticsearch.action.WriteConsistencyLevel;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.replication.ReplicationType;
+import org.elasticsearch.action.support.replication.ShardReplicationOperationRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestRequest;
+
+/**
+ * Request parameters shared by all documents of one Solr update request.
+ * The parameters are resolved once when the request is received, and each
+ * document only gets its id and source.
+ *
+ * @author shinsuke
+ *
+ */
+public class UpdateContext {
+
+    private final String index;
+
+    private final String type;
+
+    private final String id;
+
+    private final String routing;
+
+    private final String parent;
+
+    private final String routingField;
+
+    private final boolean compositeId;
+
+    private final TimeValue timeout;
+
+    private final boolean refresh;
+
+    private final ReplicationType replicationType;
+
+    private final WriteConsistencyLevel consistencyLevel;
+
+    private final int commitWithin;
+
+    private final boolean overwrite;
+
+    private final int retryOnConflict;
+
+    private final UpdateChain updateChain;
+
+    /**
+     * Resolves the parameters of the request.
+     *
+     * @param request
+     *            the ES rest request
+     * @param defaultIndexName
+     *            the index name if the request does not have it
+     * @param defaultTypeName
+     *            the type name if the request does not have it
+     * @param updateChain
+     *            the update chain selected by the request, or null
+     * @param router
+     *            the router to derive the routing of each document, or null
+     */
+    public UpdateContext(final RestRequest request,
+            final String defaultIndexName, final String defaultTypeName,
+            final UpdateChain updateChain, final DocumentRouter router) {
+        this.updateChain = updateChain;
+        index = request.hasParam("index") ? request.param("index")
+                : defaultIndexName;
+        type = request.hasParam("type") ? request.param("type")
+                : defaultTypeName;
+        id = request.param("id");
+        final String solrRoute = request.param("_route_");
+        if (request.hasParam("routing") || solrRoute == null) {
+            routing = request.param("routing");
+        } else {
+            // a Solr route is a shard key like "shardKey!"
+            final String shardKey = DocumentRouter.getShardKey(solrRoute);
+            routing = shardKey != null ? shardKey : solrRoute;
+        }
+        routingField = router != null ? router.getRoutingField(index) : null;
+        compositeId = router != null && router.isCompositeId();
+        parent = request.param("parent");
+        timeout = request.paramAsTime("timeout",
+                ShardReplicationOperationRequest.DEFAULT_TIMEOUT);
+        refresh = request.paramAsBoolean("refresh", false);
+
+        final String replication = request.param("replication");
+        replicationType = replication != null ? ReplicationType
+                .fromString(replication) : null;
+
+        final String consistency = request.param("consistency");
+        consistencyLevel = consistency != null ? WriteConsistencyLevel
+                .fromString(consistency) : null;
+
+        commitWithin = request.paramAsInt("commitWithin", -1);
+        overwrite = request.paramAsBoolean("overwrite", true);
+        retryOnConflict = request.paramAsInt("retry_on_conflict", -1);
+    }
+
+    public String index() {
+        return index;
+    }
+
+    public String type() {
+        return type;
+    }
+
+    /**
+     * @return the document id given by the request parameter, or null
+     */
+    public String id() {
+        return id;
+    }
+
+    public String routing() {
+        return routing;
+    }
+
+    /**
+     * @return the field to route the documents by, or null
+     */
+    public String routingField() {
+        return routingField;
+    }
+
+    /**
+     * Derives the routing of a document. The routing of the request is
+     * used for all documents if it is given, then the value of the routing
+     * field, and then the shard key of a Solr compositeId.
+     *
+     * @param routingValue
+     *            the value of the routing field of the document, or null
+     * @param solrId
+     *            the Solr document id, or null
+     * @return the routing of the document, or null
+     */
+    public String routing(final Object routingValue, final String solrId) {
+        if (routing != null) {
+            return routing;
+        }
+        if (routingValue != null && !AtomicUpdates.isModifier(routingValue)) {
+            return routingValue.toString();
+        }
+        if (compositeId && solrId != null) {
+            return DocumentRouter.getShardKey(solrId);
+        }
+        return null;
+    }
+
+    /**
+     * Runs the update chain of the request on the document.
+     *
+     * @param doc
+     *            the document to transform
+     */
+    public void process(final UpdateDocument doc) {
+        if (updateChain != null) {
+            updateChain.process(doc);
+        }
+    }
+
+    public boolean hasUpdateChain() {
+        return updateChain != null;
+    }
+
+    /**
+     * @return the commitWithin parameter in milliseconds, or -1
+     */
+    public int commitWithin() {
+        return commitWithin;
+    }
+
+    /**
+     * @return false if the documents are added without replacing documents
+     *         with the same id
+     */
+    public boolean overwrite() {
+        return overwrite;
+    }
+
+    /**
+     * Creates an ES IndexRequest with the parameters of this request.
+     *
+     * @param docId
+     *            the ES document id
+     * @param docRouting
+     *            the routing of the document
+     * @return the ES index request without the source
+     */
+    public IndexRequest newIndexRequest(final String docId,
+            final String docRouting) {
+        final IndexRequest indexRequest = new IndexRequest(index, type, docId);
+        indexRequest.routing(docRouting);
+        indexRequest.parent(parent);
+        indexRequest.timeout(timeout);
+        indexRequest.refresh(refresh);
+
+        indexRequest.opType(IndexRequest.OpType.INDEX);
+
+        if (replicationType != null) {
+            indexRequest.replicationType(replicationType);
+        }
+
+        if (consistencyLevel != null) {
+            indexRequest.consistencyLevel(consistencyLevel);
+        }
+
+        // we just send a response, no need to fork
+        indexRequest.listenerThreaded(true);
+
+        // we don't spawn, then fork if local
+        indexRequest.operationThreaded(true);
+
+        return indexRequest;
+    }
+
+    /**
+     * Creates an ES DeleteRequest with the parameters of this request.
+     *
+     * @param docId
+     *            the ES document id
+     * @param docRouting
+     *            the routing of the document
+     * @return the ES delete request
+     */
+    public DeleteRequest newDeleteRequest(final String docId,
+            final String docRouting) {
+        final DeleteRequest deleteRequest = new DeleteRequest(index, type,
+                docId);
+        // the parent is the routing if no routing is given
+        deleteRequest.routing(docRouting);
+        deleteRequest.parent(parent);
+        return deleteRequest;
+    }
+
+    /**
+     * Creates an ES UpdateRequest with the parameters of this request.
+     *
+     * @param docId
+     *            the ES document id
+     * @param defaultRetryOnConflict
+     *            the retry count if the request does not have it
+     * @param docRouting
+     *            the routing of the document
+     * @return the ES update request without the script
+     */
+    public UpdateRequest newUpdateRequest(final String docId,
+            final int defaultRetryOnConflict, final String docRouting) {
+        final UpdateRequest updateRequest = new UpdateRequest(index, type,
+                docId);
+        updateRequest.routing(docRouting);
+        updateRequest.parent(parent);
+        updateRequest.timeout(timeout);
+        updateRequest.refresh(refresh);
+        updateRequest.retryOnConflict(retryOnConflict >= 0 ? retryOnConflict
+                : defaultRetryOnConflict);
+
+        if (replicationType != null) {
+            updateRequest.replicationType(replicationType);
+        }
+
+        if (consistencyLevel != null) {
+            updateRequest.consistencyLevel(consistencyLevel);
+        }
+
+        // we just send a response, no need to fork
+        updateRequest.listenerThreaded(true);
+
+        return updateRequest;
+    }
+}
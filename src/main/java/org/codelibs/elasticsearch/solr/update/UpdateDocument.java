@@ -0,0 +1,312 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.hppc.ObjectIntOpenHashMap;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+
+/**
+ * Fields of a Solr input document in the order they are parsed. Values of the
+ * same field name are chained together, so multi-valued fields are written
+ * as an array without building a map and a list for each document. An
+ * instance is reused for all documents of an update request by calling
+ * {@link #reset()}, and so is the buffer the source is written to.
+ *
+ * @author shinsuke
+ *
+ */
+public class UpdateDocument {
+
+    private static final int INITIAL_SIZE = 16;
+
+    // field name -> index of the first value + 1
+    private final ObjectIntOpenHashMap<String> firstIndexMap = new ObjectIntOpenHashMap<String>();
+
+    private String[] names = new String[INITIAL_SIZE];
+
+    private Object[] values = new Object[INITIAL_SIZE];
+
+    // index of the next value with the same name, or -1
+    private int[] nexts = new int[INITIAL_SIZE];
+
+    // index of the last value, valid for the first value of a name
+    private int[] lasts = new int[INITIAL_SIZE];
+
+    private int size = 0;
+
+    // true if a value is a Solr atomic update modifier
+    private boolean atomicUpdate = false;
+
+    // Solr block-indexed child documents, or null
+    private List<UpdateDocument> childDocuments;
+
+    // the overwrite option of the add command, or null for the default
+    private Boolean overwrite;
+
+    private final BytesStreamOutput sourceOutput = new BytesStreamOutput();
+
+    /**
+     * Clears all fields to reuse this document.
+     */
+    public void reset() {
+        firstIndexMap.clear();
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+        atomicUpdate = false;
+        childDocuments = null;
+        overwrite = null;
+    }
+
+    /**
+     * @param overwrite
+     *            false if the document is added without replacing a document
+     *            with the same id, or null for the default of the request
+     */
+    public void setOverwrite(final Boolean overwrite) {
+        this.overwrite = overwrite;
+    }
+
+    public Boolean getOverwrite() {
+        return overwrite;
+    }
+
+    /**
+     * Adds a value to the field. The values of a collection are added one by
+     * one.
+     *
+     * @param name
+     *            the field name
+     * @param value
+     *            the field value
+     */
+    public void addField(final String name, final Object value) {
+        if (value instanceof Collection) {
+            for (final Object v : (Collection<?>) value) {
+                addValue(name, v);
+            }
+        } else {
+            addValue(name, value);
+        }
+    }
+
+    private void addValue(final String name, final Object value) {
+        if (size == names.length) {
+            final int newSize = size * 2;
+            names = Arrays.copyOf(names, newSize);
+            values = Arrays.copyOf(values, newSize);
+            nexts = Arrays.copyOf(nexts, newSize);
+            lasts = Arrays.copyOf(lasts, newSize);
+        }
+        names[size] = name;
+        values[size] = value;
+        if (!atomicUpdate && AtomicUpdates.isModifier(value)) {
+            atomicUpdate = true;
+        }
+        nexts[size] = -1;
+        final int first = firstIndexMap.get(name) - 1;
+        if (first < 0) {
+            firstIndexMap.put(name, size + 1);
+            lasts[size] = size;
+        } else {
+            nexts[lasts[first]] = size;
+            lasts[first] = size;
+        }
+        size++;
+    }
+
+    /**
+     * Replaces all values of the field.
+     *
+     * @param name
+     *            the field name
+     * @param value
+     *            the field value
+     */
+    public void setField(final String name, final Object value) {
+        removeField(name);
+        addField(name, value);
+    }
+
+    /**
+     * Removes all values of the field.
+     *
+     * @param name
+     *            the field name
+     */
+    public void removeField(final String name) {
+        int i = firstIndexMap.remove(name) - 1;
+        while (i >= 0) {
+            names[i] = null;
+            values[i] = null;
+            i = nexts[i];
+        }
+    }
+
+    /**
+     * Adds a Solr child document of this document.
+     *
+     * @param child
+     *            the child document, which is not reused
+     */
+    public void addChildDocument(final UpdateDocument child) {
+        if (childDocuments == null) {
+            childDocuments = new ArrayList<UpdateDocument>();
+        }
+        childDocuments.add(child);
+    }
+
+    public boolean hasChildDocuments() {
+        return childDocuments != null && !childDocuments.isEmpty();
+    }
+
+    /**
+     * @return the child documents, empty if this document has none
+     */
+    public List<UpdateDocument> getChildDocuments() {
+        if (childDocuments == null) {
+            return Collections.emptyList();
+        }
+        return childDocuments;
+    }
+
+    /**
+     * Converts the fields into a map. Multiple values of a field are
+     * converted into a list.
+     *
+     * @return the fields in the order they are added
+     */
+    public Map<String, Object> toMap() {
+        final Map<String, Object> map = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < size; i++) {
+            final String name = names[i];
+            if (name == null || firstIndexMap.get(name) - 1 != i) {
+                continue;
+            }
+            map.put(name, nexts[i] < 0 ? values[i] : getValues(name));
+        }
+        return map;
+    }
+
+    public boolean hasField(final String name) {
+        return firstIndexMap.containsKey(name);
+    }
+
+    /**
+     * @return true if a field has a Solr atomic update modifier
+     */
+    public boolean isAtomicUpdate() {
+        return atomicUpdate;
+    }
+
+    /**
+     * @return the field names in the order they are added
+     */
+    public List<String> getFieldNames() {
+        final List<String> fieldNames = new ArrayList<String>(
+                firstIndexMap.size());
+        for (int i = 0; i < size; i++) {
+            final String name = names[i];
+            if (name != null && firstIndexMap.get(name) - 1 == i) {
+                fieldNames.add(name);
+            }
+        }
+        return fieldNames;
+    }
+
+    /**
+     * @param name
+     *            the field name
+     * @return the values of the field, empty if the field does not exist
+     */
+    public List<Object> getValues(final String name) {
+        final List<Object> valueList = new ArrayList<Object>();
+        for (int i = firstIndexMap.get(name) - 1; i >= 0; i = nexts[i]) {
+            valueList.add(values[i]);
+        }
+        return valueList;
+    }
+
+    /**
+     * @param name
+     *            the field name
+     * @return the first value of the field, or null
+     */
+    public Object getFirstValue(final String name) {
+        final int first = firstIndexMap.get(name) - 1;
+        return first < 0 ? null : values[first];
+    }
+
+    /**
+     * Creates a builder which writes to the reusable buffer of this document.
+     * The bytes of the builder are valid until the next builder is created.
+     *
+     * @param contentType
+     *            the type of the source
+     * @return the builder
+     * @throws IOException
+     */
+    public XContentBuilder newSourceBuilder(final XContentType contentType)
+            throws IOException {
+        sourceOutput.reset();
+        return XContentFactory.contentBuilder(contentType, sourceOutput);
+    }
+
+    /**
+     * Converts the fields into the source of an ES index request.
+     *
+     * @param contentType
+     *            the type of the source
+     * @return the source
+     * @throws IOException
+     */
+    public BytesReference toSource(final XContentType contentType)
+            throws IOException {
+        final XContentBuilder builder = newSourceBuilder(contentType);
+        toXContent(builder);
+        // copy the bytes to release the reusable buffer
+        return builder.bytes().copyBytesArray();
+    }
+
+    /**
+     * Writes the fields as an object. Multiple values of a field are written
+     * as an array.
+     *
+     * @param builder
+     *            the builder to write to
+     * @return the builder
+     * @throws IOException
+     */
+    public XContentBuilder toXContent(final XContentBuilder builder)
+            throws IOException {
+        builder.startObject();
+        for (int i = 0; i < size; i++) {
+            final String name = names[i];
+            // write a field at its first value
+            if (name == null || firstIndexMap.get(name) - 1 != i) {
+                continue;
+            }
+            if (nexts[i] < 0) {
+                builder.field(name, values[i]);
+            } else {
+                builder.startArray(name);
+                for (int j = i; j >= 0; j = nexts[j]) {
+                    builder.value(values[j]);
+                }
+                builder.endArray();
+            }
+        }
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,100 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+/**
+ * A failed action of a Solr update request.
+ *
+ * @author shinsuke
+ *
+ */
+public class UpdateFailure {
+
+    public static final String ADD = "ADD";
+
+    public static final String DELID = "DELID";
+
+    public static final String DELQ = "DELQ";
+
+    private final String type;
+
+    private final String index;
+
+    private final String id;
+
+    private final String message;
+
+    private final int status;
+
+    public UpdateFailure(final String type, final String index,
+            final String id, final String message) {
+        this(type, index, id, message, 500);
+    }
+
+    /**
+     * @param type
+     *            the Solr command type
+     * @param index
+     *            the index name
+     * @param id
+     *            the document id, or the query for DELQ
+     * @param message
+     *            the reason of the failure
+     * @param status
+     *            the HTTP status of the failure, such as 409 for a version
+     *            conflict
+     */
+    public UpdateFailure(final String type, final String index,
+            final String id, final String message, final int status) {
+        this.type = type;
+        this.index = index;
+        this.id = id;
+        this.message = message;
+        this.status = status;
+    }
+
+    /**
+     * @return the Solr command type(ADD, DELID or DELQ)
+     */
+    public String getType() {
+        return type;
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the document id, or the query for DELQ
+     */
+    public String getId() {
+        return id;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the failure in the format of Solr's tolerant update errors
+     */
+    public NamedList<Object> toNamedList() {
+        final NamedList<Object> error = new SimpleOrderedMap<Object>();
+        error.add("type", type);
+        error.add("id", id);
+        error.add("code", status);
+        error.add("message", message);
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return type + " request failed {index:" + index + ", id:" + id
+                + ", reason:" + message + "}";
+    }
+}
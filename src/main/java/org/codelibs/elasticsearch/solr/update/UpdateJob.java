@@ -0,0 +1,151 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestResponse;
+
+/**
+ * An update request processed in the background. The job is the channel of
+ * the request, so the Solr response which would be sent to the client is
+ * kept as the result of the job.
+ *
+ * @author shinsuke
+ *
+ */
+public class UpdateJob extends RestChannel {
+
+    public static final String QUEUED = "queued";
+
+    public static final String RUNNING = "running";
+
+    public static final String DONE = "done";
+
+    private final String id;
+
+    private final long submitTime;
+
+    private volatile long startTime;
+
+    private volatile long finishTime;
+
+    private volatile String state = QUEUED;
+
+    private volatile UpdateBulkProcessor bulkProcessor;
+
+    private volatile int status = -1;
+
+    private volatile NamedList<Object> result;
+
+    private final CountDownLatch doneLatch = new CountDownLatch(1);
+
+    /**
+     * @param id
+     *            the job id
+     * @param request
+     *            the update request with its own copy of the content
+     */
+    public UpdateJob(final String id, final RestRequest request) {
+        super(request, false);
+        this.id = id;
+        submitTime = System.currentTimeMillis();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public boolean isDone() {
+        return DONE.equals(state);
+    }
+
+    public long getFinishTime() {
+        return finishTime;
+    }
+
+    public void start() {
+        startTime = System.currentTimeMillis();
+        state = RUNNING;
+    }
+
+    /**
+     * @param bulkProcessor
+     *            the bulk processor of the request to report the progress
+     */
+    public void setBulkProcessor(final UpdateBulkProcessor bulkProcessor) {
+        this.bulkProcessor = bulkProcessor;
+    }
+
+    /**
+     * Finishes the job. Only the first call is recorded.
+     *
+     * @param status
+     *            the status of the Solr response
+     * @param result
+     *            the Solr response
+     */
+    public synchronized void complete(final int status,
+            final NamedList<Object> result) {
+        if (isDone()) {
+            return;
+        }
+        this.status = status;
+        this.result = result;
+        finishTime = System.currentTimeMillis();
+        state = DONE;
+        doneLatch.countDown();
+    }
+
+    /**
+     * Waits until the job is done.
+     *
+     * @throws InterruptedException
+     */
+    public void await() throws InterruptedException {
+        doneLatch.await();
+    }
+
+    @Override
+    public void sendResponse(final RestResponse response) {
+        // a response which is not written as a Solr response is an error
+        final NamedList<Object> errorResponse = new SimpleOrderedMap<Object>();
+        errorResponse.add("code", response.status().getStatus());
+        errorResponse.add("msg", response.content().toUtf8());
+        final NamedList<Object> solrResponse = new SimpleOrderedMap<Object>();
+        solrResponse.add("error", errorResponse);
+        complete(500, solrResponse);
+    }
+
+    /**
+     * @return the state of the job for the status response
+     */
+    public NamedList<Object> toNamedList() {
+        final NamedList<Object> job = new SimpleOrderedMap<Object>();
+        job.add("id", id);
+        job.add("state", state);
+        job.add("submitted", new Date(submitTime));
+        if (startTime > 0) {
+            job.add("started", new Date(startTime));
+        }
+        if (finishTime > 0) {
+            job.add("finished", new Date(finishTime));
+        }
+        final UpdateBulkProcessor processor = bulkProcessor;
+        if (processor != null) {
+            job.add("actions", processor.numberOfActions());
+        }
+        if (isDone()) {
+            job.add("status", status);
+            job.add("result", result);
+        }
+        return job;
+    }
+}
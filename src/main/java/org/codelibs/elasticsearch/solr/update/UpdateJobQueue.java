@@ -0,0 +1,199 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.util.concurrent.EsThreadPoolExecutor;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Runs update requests in the background. Jobs wait in a bounded queue and
+ * a fixed number of workers process them one at a time each, so a burst of
+ * async requests cannot run more updates at once than the workers. A job
+ * submitted while the queue is full is rejected.
+ *
+ * Finished jobs are kept for their status until more than the maximum
+ * number of jobs are known, and then the oldest ones are removed.
+ *
+ * The queue is a node service. When the node is closed, the workers are
+ * stopped, and the jobs which have not finished fail and release their
+ * resources.
+ *
+ * @author shinsuke
+ *
+ */
+public class UpdateJobQueue extends
+        AbstractLifecycleComponent<UpdateJobQueue> {
+    private final EsThreadPoolExecutor executor;
+
+    private final int maxJobs;
+
+    // job id -> job in submission order
+    private final Map<String, UpdateJob> jobMap = new LinkedHashMap<String, UpdateJob>();
+
+    /**
+     * Processes an update request on the channel of the job.
+     */
+    public interface Runner {
+        void run(UpdateJob job);
+    }
+
+    /**
+     * @param settings
+     *            ES settings
+     */
+    @Inject
+    public UpdateJobQueue(final Settings settings) {
+        super(settings);
+        // the number of jobs processed at once
+        final int workers = settings.getAsInt("solr.update.async.workers", 2);
+        // the number of jobs waiting for a worker
+        final int queueSize = settings.getAsInt(
+                "solr.update.async.queue_size", 100);
+        executor = EsExecutors.newFixed(workers, queueSize,
+                EsExecutors.daemonThreadFactory(settings, "solr_update_async"));
+        maxJobs = settings.getAsInt("solr.update.async.max_jobs", 1000);
+    }
+
+    @Override
+    protected void doStart() throws ElasticsearchException {
+    }
+
+    @Override
+    protected void doStop() throws ElasticsearchException {
+    }
+
+    @Override
+    protected void doClose() throws ElasticsearchException {
+        // the running jobs are interrupted and fail by themselves
+        for (final Runnable runnable : executor.shutdownNow()) {
+            ((Worker) runnable).fail("The node is closing.");
+        }
+    }
+
+    /**
+     * Queues the update request.
+     *
+     * @param request
+     *            the update request
+     * @param runner
+     *            the processing of the request
+     * @param releasable
+     *            the resources released when the job is done or rejected
+     * @return the queued job
+     * @throws EsRejectedExecutionException
+     *             if the queue is full or closed
+     */
+    public UpdateJob submit(final RestRequest request, final Runner runner,
+            final Releasable releasable) {
+        final UpdateJob job = new UpdateJob(Strings.randomBase64UUID(),
+                request);
+        synchronized (jobMap) {
+            jobMap.put(job.getId(), job);
+            evictJobs();
+        }
+        try {
+            executor.execute(new Worker(job, runner, releasable));
+        } catch (final EsRejectedExecutionException e) {
+            synchronized (jobMap) {
+                jobMap.remove(job.getId());
+            }
+            releasable.close();
+            throw e;
+        }
+        return job;
+    }
+
+    /**
+     * @param id
+     *            the job id
+     * @return the job, or null if it is unknown or removed
+     */
+    public UpdateJob get(final String id) {
+        synchronized (jobMap) {
+            return jobMap.get(id);
+        }
+    }
+
+    /**
+     * @return the counters of the queue for monitoring
+     */
+    public NamedList<Object> stats() {
+        final NamedList<Object> stats = new SimpleOrderedMap<Object>();
+        stats.add("queued_jobs", executor.getQueue().size());
+        stats.add("running_jobs", executor.getActiveCount());
+        stats.add("completed_jobs", executor.getCompletedTaskCount());
+        return stats;
+    }
+
+    private class Worker implements Runnable {
+        private final UpdateJob job;
+
+        private final Runner runner;
+
+        private final Releasable releasable;
+
+        Worker(final UpdateJob job, final Runner runner,
+                final Releasable releasable) {
+            this.job = job;
+            this.runner = runner;
+            this.releasable = releasable;
+        }
+
+        @Override
+        public void run() {
+            job.start();
+            try {
+                runner.run(job);
+                // the worker is busy until the updates are done
+                job.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                job.sendResponse(new BytesRestResponse(
+                        RestStatus.SERVICE_UNAVAILABLE,
+                        "The update job is interrupted."));
+            } catch (final Throwable t) {
+                logger.error("Failed to process the update job {}.", t,
+                        job.getId());
+                job.sendResponse(new BytesRestResponse(
+                        RestStatus.INTERNAL_SERVER_ERROR, t.toString()));
+            } finally {
+                releasable.close();
+            }
+        }
+
+        /**
+         * Fails the job which has not started.
+         */
+        void fail(final String msg) {
+            try {
+                job.sendResponse(new BytesRestResponse(
+                        RestStatus.SERVICE_UNAVAILABLE, msg));
+            } finally {
+                releasable.close();
+            }
+        }
+    }
+
+    private void evictJobs() {
+        final Iterator<UpdateJob> it = jobMap.values().iterator();
+        while (jobMap.size() > maxJobs && it.hasNext()) {
+            if (it.next().isDone()) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.codelibs.elasticsearch.solr.update.processor;
+
+import java.util.List;
+import java.util.Locale;
+
+import org.codelibs.elasticsearch.solr.update.UpdateDocument;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+
+/**
+ * Converts the values of fields into a type. A value which cannot be
+ * converted is kept as it is, like Solr's parse field processors, and ES
+ * rejects it if the mapping does not accept it.
+ *
+ * @author shinsuke
+ *
+ */
+public class CoerceFieldProcessor implements UpdateProcessor {
+
+    private static enum Type {
+        STRING, INT, LONG, FLOAT, DOUBLE, BOOLEAN;
+    }
+
+    private final String[] fields;
+
+    private final Type type;
+
+    public CoerceFieldProcessor(final String[] fields, final String type) {
+        this.fields = fields;
+        try {
+            this.type = Type.valueOf(type.toUpperCase(Locale.ROOT));
+        } catch (final IllegalArgumentException e) {
+            throw new ElasticsearchIllegalArgumentException(
+                    "Unknown type to coerce: " + type, e);
+        }
+    }
+
+    @Override
+    public void process(final UpdateDocument doc) {
+        for (final String field : fields) {
+            if (!doc.hasField(field)) {
+                continue;
+            }
+            final List<Object> values = doc.getValues(field);
+            boolean changed = false;
+            for (int i = 0; i < values.size(); i++) {
+                final Object value = values.get(i);
+                final Object converted = convert(value);
+                if (converted != value) {
+                    values.set(i, converted);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                doc.setField(field, values);
+            }
+        }
+    }
+
+    private Object convert(final Object value) {
+        // null and atomic update modifiers are kept
+        if (value == null || !(value instanceof CharSequence)
+                && !(value instanceof Number) && !(value instanceof Boolean)) {
+            return value;
+        }
+        final String str = value.toString().trim();
+        try {
+            switch (type) {
+            case STRING:
+                return value instanceof String ? value : value.toString();
+            case INT:
+                if (value instanceof Integer) {
+                    return value;
+                }
+                return value instanceof Number ? ((Number) value).intValue()
+                        : Integer.parseInt(str);
+            case LONG:
+                if (value instanceof Long) {
+                    return value;
+                }
+                return value instanceof Number ? ((Number) value).longValue()
+                        : Long.parseLong(str);
+            case FLOAT:
+                if (value instanceof Float) {
+                    return value;
+                }
+                return value instanceof Number ? ((Number) value)
+                        .floatValue() : Float.parseFloat(str);
+            case DOUBLE:
+                if (value instanceof Double) {
+                    return value;
+                }
+                return value instanceof Number ? ((Number) value)
+                        .doubleValue() : Double.parseDouble(str);
+            case BOOLEAN:
+                if (value instanceof Boolean) {
+                    return value;
+                }
+                if ("true".equalsIgnoreCase(str)) {
+                    return Boolean.TRUE;
+                } else if ("false".equalsIgnoreCase(str)) {
+                    return Boolean.FALSE;
+                }
+                return value;
+            default:
+                return value;
+            }
+        } catch (final NumberFormatException e) {
+            return value;
+        }
+    }
+}
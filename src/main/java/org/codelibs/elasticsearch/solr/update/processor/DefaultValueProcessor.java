@@ -0,0 +1,29 @@
+package org.codelibs.elasticsearch.solr.update.processor;
+
+import org.codelibs.elasticsearch.solr.update.UpdateDocument;
+
+/**
+ * Sets a value to a field which the document does not have.
+ *
+ * @author shinsuke
+ *
+ */
+public class DefaultValueProcessor implements UpdateProcessor {
+
+    private final String field;
+
+    private final Object value;
+
+    public DefaultValueProcessor(final String field, final Object value) {
+        this.field = field;
+        this.value = value;
+    }
+
+    @Override
+    public void process(final UpdateDocument doc) {
+        // an atomic update does not replace the existing value
+        if (!doc.hasField(field) && !doc.isAtomicUpdate()) {
+            doc.addField(field, value);
+        }
+    }
+}
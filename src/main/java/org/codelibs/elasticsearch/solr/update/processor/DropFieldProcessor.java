@@ -0,0 +1,25 @@
+package org.codelibs.elasticsearch.solr.update.processor;
+
+import org.codelibs.elasticsearch.solr.update.UpdateDocument;
+
+/**
+ * Removes fields from the document.
+ *
+ * @author shinsuke
+ *
+ */
+public class DropFieldProcessor implements UpdateProcessor {
+
+    private final String[] fields;
+
+    public DropFieldProcessor(final String[] fields) {
+        this.fields = fields;
+    }
+
+    @Override
+    public void process(final UpdateDocument doc) {
+        for (final String field : fields) {
+            doc.removeField(field);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.codelibs.elasticsearch.solr.update.processor;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.codelibs.elasticsearch.solr.update.UpdateDocument;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+
+/**
+ * Adds the matched group of the values of a field to another field.
+ *
+ * @author shinsuke
+ *
+ */
+public class RegexExtractProcessor implements UpdateProcessor {
+
+    private final String source;
+
+    private final String target;
+
+    private final Pattern pattern;
+
+    private final int group;
+
+    public RegexExtractProcessor(final String source, final String target,
+            final String regex, final int group) {
+        this.source = source;
+        this.target = target;
+        pattern = Pattern.compile(regex);
+        if (group > pattern.matcher("").groupCount()) {
+            throw new ElasticsearchIllegalArgumentException("No group "
+                    + group + " in " + regex);
+        }
+        this.group = group;
+    }
+
+    @Override
+    public void process(final UpdateDocument doc) {
+        if (!doc.hasField(source)) {
+            return;
+        }
+        for (final Object value : doc.getValues(source)) {
+            if (value instanceof CharSequence) {
+                final Matcher matcher = pattern.matcher((CharSequence) value);
+                while (matcher.find()) {
+                    doc.addField(target, matcher.group(group));
+                }
+            }
+        }
+    }
+}
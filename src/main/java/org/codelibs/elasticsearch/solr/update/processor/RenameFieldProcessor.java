@@ -0,0 +1,33 @@
+package org.codelibs.elasticsearch.solr.update.processor;
+
+import java.util.List;
+
+import org.codelibs.elasticsearch.solr.update.UpdateDocument;
+
+/**
+ * Moves the values of a field to another field.
+ *
+ * @author shinsuke
+ *
+ */
+public class RenameFieldProcessor implements UpdateProcessor {
+
+    private final String from;
+
+    private final String to;
+
+    public RenameFieldProcessor(final String from, final String to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    public void process(final UpdateDocument doc) {
+        if (!doc.hasField(from)) {
+            return;
+        }
+        final List<Object> values = doc.getValues(from);
+        doc.removeField(from);
+        doc.addField(to, values);
+    }
+}
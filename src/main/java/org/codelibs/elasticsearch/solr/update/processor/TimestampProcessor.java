@@ -0,0 +1,27 @@
+package org.codelibs.elasticsearch.solr.update.processor;
+
+import java.util.Date;
+
+import org.codelibs.elasticsearch.solr.update.UpdateDocument;
+
+/**
+ * Sets the current time to a field which the document does not have.
+ *
+ * @author shinsuke
+ *
+ */
+public class TimestampProcessor implements UpdateProcessor {
+
+    private final String field;
+
+    public TimestampProcessor(final String field) {
+        this.field = field;
+    }
+
+    @Override
+    public void process(final UpdateDocument doc) {
+        if (!doc.hasField(field)) {
+            doc.addField(field, new Date());
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.codelibs.elasticsearch.solr.update.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.solr.update.UpdateDocument;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * A list of update processors like Solr's UpdateRequestProcessorChain. The
+ * chains are defined in the settings as lists of processors, and a request
+ * selects one by the update.chain parameter:
+ *
+ * <pre>
+ * solr.update.chain:
+ *   mychain:
+ *     - type: rename
+ *       from: title_s
+ *       to: title
+ *     - type: timestamp
+ *       field: indexed_at
+ * </pre>
+ *
+ * @author shinsuke
+ *
+ */
+public class UpdateChain {
+
+    public static final String CHAIN_SETTINGS = "solr.update.chain";
+
+    private final String name;
+
+    private final UpdateProcessor[] processors;
+
+    public UpdateChain(final String name, final UpdateProcessor[] processors) {
+        this.name = name;
+        this.processors = processors;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Runs all processors on the document.
+     *
+     * @param doc
+     *            the document to transform
+     */
+    public void process(final UpdateDocument doc) {
+        for (final UpdateProcessor processor : processors) {
+            processor.process(doc);
+        }
+    }
+
+    /**
+     * Loads the chains defined in the settings.
+     *
+     * @param settings
+     *            ES settings
+     * @return the chains by the name
+     */
+    public static Map<String, UpdateChain> load(final Settings settings) {
+        final Map<String, UpdateChain> chains = new HashMap<String, UpdateChain>();
+        for (final String name : settings.getGroups(CHAIN_SETTINGS).keySet()) {
+            // the processors are a list, so the keys are the positions
+            final Map<String, Settings> groups = settings
+                    .getGroups(CHAIN_SETTINGS + "." + name);
+            final List<String> positions = new ArrayList<String>(
+                    groups.keySet());
+            Collections.sort(positions, new Comparator<String>() {
+                @Override
+                public int compare(final String o1, final String o2) {
+                    return Integer.valueOf(o1).compareTo(Integer.valueOf(o2));
+                }
+            });
+
+            final UpdateProcessor[] processors = new UpdateProcessor[positions
+                    .size()];
+            for (int i = 0; i < processors.length; i++) {
+                processors[i] = createProcessor(name,
+                        groups.get(positions.get(i)));
+            }
+            chains.put(name, new UpdateChain(name, processors));
+        }
+        return chains;
+    }
+
+    private static UpdateProcessor createProcessor(final String chainName,
+            final Settings settings) {
+        final String type = settings.get("type");
+        if (type == null) {
+            throw new ElasticsearchIllegalArgumentException(
+                    "No processor type in " + chainName);
+        }
+        switch (type) {
+        case "rename":
+            return new RenameFieldProcessor(required(chainName, settings,
+                    "from"), required(chainName, settings, "to"));
+        case "drop":
+            return new DropFieldProcessor(settings.getAsArray("fields"));
+        case "coerce":
+            return new CoerceFieldProcessor(settings.getAsArray("fields"),
+                    required(chainName, settings, "to"));
+        case "default":
+            return new DefaultValueProcessor(
+                    required(chainName, settings, "field"), required(
+                            chainName, settings, "value"));
+        case "regex":
+            return new RegexExtractProcessor(required(chainName, settings,
+                    "source"), required(chainName, settings, "target"),
+                    required(chainName, settings, "pattern"),
+                    settings.getAsInt("group", 1));
+        case "timestamp":
+            return new TimestampProcessor(settings.get("field", "timestamp"));
+        default:
+            throw new ElasticsearchIllegalArgumentException(
+                    "Unknown processor type in " + chainName + ": " + type);
+        }
+    }
+
+    private static String required(final String chainName,
+            final Settings settings, final String key) {
+        final String value = settings.get(key);
+        if (value == null) {
+            throw new ElasticsearchIllegalArgumentException("No " + key
+                    + " for " + settings.get("type") + " in " + chainName);
+        }
+        return value;
+    }
+}
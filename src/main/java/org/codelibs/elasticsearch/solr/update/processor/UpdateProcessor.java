@@ -0,0 +1,22 @@
+package org.codelibs.elasticsearch.solr.update.processor;
+
+import org.codelibs.elasticsearch.solr.update.UpdateDocument;
+
+/**
+ * A stage of an update chain. It is called for each document while the
+ * update request is parsed, before the document is converted into an ES
+ * request.
+ *
+ * @author shinsuke
+ *
+ */
+public interface UpdateProcessor {
+
+    /**
+     * Transforms the fields of the document.
+     *
+     * @param doc
+     *            the document to transform
+     */
+    void process(UpdateDocument doc);
+}
@@ -0,0 +1,145 @@
+package org.codelibs.elasticsearch.solr.plugin;
+
+import static org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner.newConfigs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+
+import org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.settings.ImmutableSettings.Builder;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+
+public class SolrAdmissionTest extends TestCase {
+
+    private static final String URL = "http://localhost:9201";
+
+    private static final String UPDATE_PATH = "/sample/data/_solr/update";
+
+    private ElasticsearchClusterRunner runner;
+
+    @Override
+    protected void setUp() throws Exception {
+        runner = new ElasticsearchClusterRunner();
+        runner.onBuild(new ElasticsearchClusterRunner.Builder() {
+            @Override
+            public void build(final int number, final Builder settingsBuilder) {
+                settingsBuilder.put("solr.update.max_inflight_requests", 1);
+                settingsBuilder.put("solr.update.max_inflight_bytes", "1kb");
+                // a delete-by-query of a few documents takes a while
+                settingsBuilder.put(
+                        "solr.update.delete_by_query.docs_per_second", 2);
+                settingsBuilder.put("solr.update.delete_by_query.batch_size",
+                        1);
+            }
+        }).build(newConfigs().numOfNode(1).ramIndexStore()
+                .clusterName(UUID.randomUUID().toString()));
+        runner.ensureYellow();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        runner.close();
+        runner.clean();
+    }
+
+    public void test_admission() throws Exception {
+        post(UPDATE_PATH + "?commit=true", "<add><doc><field name=\"id\">1"
+                + "</field></doc><doc><field name=\"id\">2</field></doc>"
+                + "<doc><field name=\"id\">3</field></doc></add>", 200);
+
+        // the async delete-by-query holds the permit until it is done
+        post(UPDATE_PATH + "?async=true",
+                "<delete><query>*:*</query></delete>", 200);
+        final HttpURLConnection rejected = post(UPDATE_PATH,
+                "<add><doc><field name=\"id\">4</field></doc></add>", 503);
+        assertNotNull(rejected.getHeaderField("Retry-After"));
+
+        // the permit is released when the job is done
+        awaitInflightRequests();
+        post(UPDATE_PATH, "<add><doc><field name=\"id\">4</field></doc></add>",
+                200);
+        awaitInflightRequests();
+
+        // a failed request releases its permit
+        post(UPDATE_PATH, "<add><doc>", 500);
+        awaitInflightRequests();
+
+        // a too large request is never admitted
+        final StringBuilder buf = new StringBuilder();
+        buf.append("<add><doc><field name=\"id\">5</field><field name=\"n\">");
+        for (int i = 0; i < 2000; i++) {
+            buf.append('x');
+        }
+        buf.append("</field></doc></add>");
+        post(UPDATE_PATH, buf.toString(), 413);
+
+        final Map<?, ?> admission = (Map<?, ?>) stats().get("admission");
+        assertEquals(1, admission.get("rejected_requests"));
+        assertEquals(0, admission.get("inflight_bytes"));
+    }
+
+    /**
+     * Waits until no request holds a permit.
+     */
+    private void awaitInflightRequests() throws Exception {
+        final long startTime = System.currentTimeMillis();
+        while (inflightRequests() > 0) {
+            assertTrue(System.currentTimeMillis() - startTime < 30000);
+            Thread.sleep(100);
+        }
+    }
+
+    private int inflightRequests() throws IOException {
+        return ((Number) ((Map<?, ?>) stats().get("admission"))
+                .get("inflight_requests")).intValue();
+    }
+
+    private Map<String, Object> stats() throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(URL
+                + "/_solr/update/stats?wt=json").openConnection();
+        assertEquals(200, connection.getResponseCode());
+        final InputStream in = connection.getInputStream();
+        try {
+            return JsonXContent.jsonXContent.createParser(
+                    Streams.copyToString(new InputStreamReader(in, "UTF-8")))
+                    .map();
+        } finally {
+            in.close();
+        }
+    }
+
+    private HttpURLConnection post(final String path, final String body,
+            final int status) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(URL
+                + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "text/xml");
+        connection.setDoOutput(true);
+        final OutputStream out = connection.getOutputStream();
+        try {
+            out.write(body.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        assertEquals(status, connection.getResponseCode());
+        final InputStream in = status == 200 ? connection.getInputStream()
+                : connection.getErrorStream();
+        if (in != null) {
+            try {
+                Streams.copyToString(new InputStreamReader(in, "UTF-8"));
+            } finally {
+                in.close();
+            }
+        }
+        return connection;
+    }
+}
@@ -0,0 +1,112 @@
+package org.codelibs.elasticsearch.solr.plugin;
+
+import static org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner.newConfigs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+
+import org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.settings.ImmutableSettings.Builder;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+
+public class SolrAsyncUpdateTest extends TestCase {
+
+    private static final String URL = "http://localhost:9201";
+
+    private ElasticsearchClusterRunner runner;
+
+    @Override
+    protected void setUp() throws Exception {
+        runner = new ElasticsearchClusterRunner();
+        runner.onBuild(new ElasticsearchClusterRunner.Builder() {
+            @Override
+            public void build(final int number, final Builder settingsBuilder) {
+            }
+        }).build(newConfigs().numOfNode(1).ramIndexStore()
+                .clusterName(UUID.randomUUID().toString()));
+        runner.ensureYellow();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        runner.close();
+        runner.clean();
+    }
+
+    public void test_jobStatus() throws Exception {
+        final Map<String, Object> submitted = request("POST",
+                "/sample/data/_solr/update?async=true&commit=true&wt=json",
+                "<add><doc><field name=\"id\">1</field></doc></add>", 200);
+        final String jobId = (String) job(submitted).get("id");
+        assertNotNull(jobId);
+
+        // the status is polled until the job is done
+        final long startTime = System.currentTimeMillis();
+        Map<String, Object> job;
+        while (true) {
+            job = job(request("GET", "/_solr/update/status/" + jobId
+                    + "?wt=json", null, 200));
+            assertEquals(jobId, job.get("id"));
+            if ("done".equals(job.get("state"))) {
+                break;
+            }
+            assertTrue(System.currentTimeMillis() - startTime < 10000);
+            Thread.sleep(100);
+        }
+        assertEquals(0, job.get("status"));
+        assertEquals(1, job.get("actions"));
+        assertTrue(runner.client().prepareGet("sample", "data", "1")
+                .execute().actionGet().isExists());
+
+        // the counters of the queue
+        final Map<?, ?> async = (Map<?, ?>) request("GET",
+                "/_solr/update/stats?wt=json", null, 200).get("async");
+        assertEquals(1, async.get("completed_jobs"));
+
+        request("GET", "/_solr/update/status/unknown?wt=json", null, 404);
+    }
+
+    private static Map<String, Object> job(final Map<String, Object> response) {
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> job = (Map<String, Object>) response
+                .get("job");
+        return job;
+    }
+
+    private static Map<String, Object> request(final String method,
+            final String path, final String body, final int status)
+            throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(URL
+                + path).openConnection();
+        connection.setRequestMethod(method);
+        if (body != null) {
+            connection.setRequestProperty("Content-Type", "text/xml");
+            connection.setDoOutput(true);
+            final OutputStream out = connection.getOutputStream();
+            try {
+                out.write(body.getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+        }
+        assertEquals(status, connection.getResponseCode());
+        final InputStream in = status == 200 ? connection.getInputStream()
+                : connection.getErrorStream();
+        try {
+            return JsonXContent.jsonXContent.createParser(
+                    Streams.copyToString(new InputStreamReader(in, "UTF-8")))
+                    .map();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.codelibs.elasticsearch.solr.plugin;
+
+import static org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner.newConfigs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.impl.BinaryRequestWriter;
+import org.apache.solr.client.solrj.impl.HttpSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.settings.ImmutableSettings.Builder;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+
+public class SolrChildDocumentTest extends TestCase {
+
+    private static final String INDEX = "sample";
+
+    private static final String TYPE = "data";
+
+    private static final String CHILD_TYPE = "child";
+
+    private static final String URL = "http://localhost:9201/" + INDEX + "/"
+            + TYPE + "/_solr";
+
+    private ElasticsearchClusterRunner runner;
+
+    @Override
+    protected void setUp() throws Exception {
+        final boolean parentChild = getName().contains("ParentChild");
+        runner = new ElasticsearchClusterRunner();
+        runner.onBuild(new ElasticsearchClusterRunner.Builder() {
+            @Override
+            public void build(final int number, final Builder settingsBuilder) {
+                if (parentChild) {
+                    settingsBuilder.put("solr.update.child_documents.mode",
+                            "parent_child");
+                }
+            }
+        }).build(newConfigs().numOfNode(1).ramIndexStore()
+                .clusterName(UUID.randomUUID().toString()));
+        runner.ensureYellow();
+
+        runner.createIndex(INDEX, null);
+        runner.ensureYellow(INDEX);
+        if (parentChild) {
+            final XContentBuilder mappingBuilder = XContentFactory
+                    .jsonBuilder()//
+                    .startObject()//
+                    .startObject(CHILD_TYPE)//
+                    .startObject("_parent")//
+                    .field("type", TYPE)//
+                    .endObject()//
+                    .endObject()//
+                    .endObject();
+            runner.createMapping(INDEX, CHILD_TYPE, mappingBuilder);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        runner.close();
+        runner.clean();
+    }
+
+    public void test_Nested() throws Exception {
+        addBlocks();
+
+        // the children are a part of the source of the parent
+        for (final String id : new String[] { "x", "j", "b" }) {
+            final GetResponse response = runner.client()
+                    .prepareGet(INDEX, TYPE, id + "1").execute().actionGet();
+            assertTrue(response.isExists());
+            // a single child is a single value of the field
+            Object child = response.getSource().get("_childDocuments_");
+            if (child instanceof List) {
+                assertEquals(id, 1, ((List<?>) child).size());
+                child = ((List<?>) child).get(0);
+            }
+            assertEquals(id + "1-1", ((Map<?, ?>) child).get("id"));
+        }
+        assertEquals(3L, count(TYPE));
+    }
+
+    public void test_ParentChild() throws Exception {
+        addBlocks();
+
+        // the children are ES child documents of the root
+        for (final String id : new String[] { "x", "j", "b" }) {
+            assertEquals(id, Collections.singletonList(id + "1-1"),
+                    childIds(id + "1"));
+        }
+
+        // a new block replaces the children of the old one
+        post("<add><doc><field name=\"id\">x1</field>"
+                + "<doc><field name=\"id\">x1-2</field></doc></doc></add>",
+                "text/xml");
+        assertEquals(Collections.singletonList("x1-2"), childIds("x1"));
+
+        // the children of a deleted root are deleted
+        post("{\"delete\":{\"id\":\"j1\"}}", "application/json");
+        assertTrue(childIds("j1").isEmpty());
+
+        // the last action on a root wins
+        post("<update><delete><id>b1</id></delete>"
+                + "<add><doc><field name=\"id\">b1</field>"
+                + "<doc><field name=\"id\">b1-2</field></doc></doc></add>"
+                + "</update>", "text/xml");
+        assertEquals(Collections.singletonList("b1-2"), childIds("b1"));
+        assertEquals(2L, count(TYPE));
+        assertEquals(2L, count(CHILD_TYPE));
+
+        // the children of the roots of a request are deleted together
+        post("<update><delete><id>x1</id></delete>"
+                + "<add><doc><field name=\"id\">b1</field>"
+                + "<doc><field name=\"id\">b1-3</field></doc></doc></add>"
+                + "</update>", "text/xml");
+        assertTrue(childIds("x1").isEmpty());
+        assertEquals(Collections.singletonList("b1-3"), childIds("b1"));
+        assertEquals(1L, count(TYPE));
+        assertEquals(1L, count(CHILD_TYPE));
+    }
+
+    private void addBlocks() throws Exception {
+        // XML
+        post("<add><doc><field name=\"id\">x1</field>"
+                + "<doc><field name=\"id\">x1-1</field></doc></doc></add>",
+                "text/xml");
+
+        // JSON
+        post("[{\"id\":\"j1\",\"_childDocuments_\":[{\"id\":\"j1-1\"}]}]",
+                "application/json");
+
+        // javabin
+        final HttpSolrServer server = new HttpSolrServer(URL);
+        server.setRequestWriter(new BinaryRequestWriter());
+        addBlock(server, "b1");
+        server.commit();
+        server.shutdown();
+
+        runner.refresh();
+    }
+
+    private void addBlock(final SolrServer server, final String id)
+            throws Exception {
+        final SolrInputDocument doc = new SolrInputDocument();
+        doc.addField("id", id);
+        final SolrInputDocument child = new SolrInputDocument();
+        child.addField("id", id + "-1");
+        doc.addChildDocument(child);
+        server.add(doc);
+    }
+
+    private void post(final String body, final String contentType)
+            throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(URL
+                + "/update?commit=true").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", contentType);
+        connection.setDoOutput(true);
+        final OutputStream out = connection.getOutputStream();
+        try {
+            out.write(body.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        assertEquals(200, connection.getResponseCode());
+        final InputStream in = connection.getInputStream();
+        try {
+            Streams.copyToString(new InputStreamReader(in, "UTF-8"));
+        } finally {
+            in.close();
+        }
+        runner.refresh();
+    }
+
+    private List<String> childIds(final String parentId) {
+        final SearchResponse response = runner.client().prepareSearch(INDEX)
+                .setTypes(CHILD_TYPE)
+                .setQuery(QueryBuilders.termQuery("_parent", parentId))
+                .execute().actionGet();
+        final List<String> ids = new ArrayList<String>();
+        for (final SearchHit hit : response.getHits()) {
+            ids.add(hit.getId());
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private long count(final String type) {
+        return runner.client().prepareCount(INDEX).setTypes(type).execute()
+                .actionGet().getCount();
+    }
+}
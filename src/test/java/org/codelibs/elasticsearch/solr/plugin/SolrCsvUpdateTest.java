@@ -0,0 +1,127 @@
+package org.codelibs.elasticsearch.solr.plugin;
+
+import static org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner.newConfigs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+
+import org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.settings.ImmutableSettings.Builder;
+
+public class SolrCsvUpdateTest extends TestCase {
+
+    private static final String INDEX = "sample";
+
+    private static final String TYPE = "data";
+
+    private static final String URL = "http://localhost:9201/" + INDEX + "/"
+            + TYPE + "/_solr/update";
+
+    private ElasticsearchClusterRunner runner;
+
+    @Override
+    protected void setUp() throws Exception {
+        runner = new ElasticsearchClusterRunner();
+        runner.onBuild(new ElasticsearchClusterRunner.Builder() {
+            @Override
+            public void build(final int number, final Builder settingsBuilder) {
+            }
+        }).build(newConfigs().numOfNode(1).ramIndexStore()
+                .clusterName(UUID.randomUUID().toString()));
+        runner.ensureYellow();
+        runner.createIndex(INDEX, null);
+        runner.ensureYellow(INDEX);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        runner.close();
+        runner.clean();
+    }
+
+    public void test_Csv() throws Exception {
+        // the header line and a split field
+        assertEquals(200, post("?commit=true&f.tags.split=true"
+                + "&f.tags.separator=" + URLEncoder.encode("|", "UTF-8")
+                + "&literal.source=csv", "id,title,tags\n1,one,a|b\n"
+                + "2,two,c\n", "text/csv"));
+        Map<String, Object> source = get("1").getSource();
+        assertEquals("one", source.get("title"));
+        assertEquals(Arrays.asList("a", "b"), source.get("tags"));
+        assertEquals("csv", source.get("source"));
+        assertEquals("c", get("2").getSource().get("tags"));
+
+        // the field names replace the header, and a field is skipped
+        assertEquals(200, post("?commit=true&fieldnames=id,name,secret"
+                + "&header=true&skip=secret", "a,b,c\n3,three,x\n",
+                "text/csv"));
+        source = get("3").getSource();
+        assertEquals("three", source.get("name"));
+        assertFalse(source.containsKey("secret"));
+        assertFalse(get("a").isExists());
+
+        // an empty field name skips its column
+        assertEquals(200, post("?commit=true&fieldnames=id,,name",
+                "6,x,six\n", "text/csv"));
+        source = get("6").getSource();
+        assertEquals("six", source.get("name"));
+        assertEquals(2, source.size());
+
+        // a separator, skipped lines and split fields
+        assertEquals(200, post("?commit=true&separator="
+                + URLEncoder.encode(";", "UTF-8")
+                + "&skipLines=1&split=true", "comment\nid;tags\n"
+                + "4;\"d,e\"\n", "text/csv"));
+        assertEquals(Arrays.asList("d", "e"), get("4").getSource()
+                .get("tags"));
+        assertFalse(get("comment").isExists());
+
+        // a row with a wrong number of values fails
+        assertEquals(500, post("?commit=true", "id,title\n5,five,x\n",
+                "text/csv"));
+    }
+
+    private GetResponse get(final String id) {
+        return runner.client().prepareGet(INDEX, TYPE, id).execute()
+                .actionGet();
+    }
+
+    private int post(final String path, final String body,
+            final String contentType) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(URL
+                + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", contentType);
+        connection.setDoOutput(true);
+        final OutputStream out = connection.getOutputStream();
+        try {
+            out.write(body.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        final int status = connection.getResponseCode();
+        final InputStream in = status == 200 ? connection.getInputStream()
+                : connection.getErrorStream();
+        if (in != null) {
+            try {
+                Streams.copyToString(new InputStreamReader(in, "UTF-8"));
+            } finally {
+                in.close();
+            }
+        }
+        runner.refresh();
+        return status;
+    }
+}
@@ -0,0 +1,145 @@
+package org.codelibs.elasticsearch.solr.plugin;
+
+import static org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner.newConfigs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+
+import org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.settings.ImmutableSettings.Builder;
+
+public class SolrJsonUpdateTest extends TestCase {
+
+    private static final String INDEX = "sample";
+
+    private static final String TYPE = "data";
+
+    private static final String URL = "http://localhost:9201/" + INDEX + "/"
+            + TYPE + "/_solr/update";
+
+    private ElasticsearchClusterRunner runner;
+
+    @Override
+    protected void setUp() throws Exception {
+        final boolean coerce = getName().contains("Fields");
+        runner = new ElasticsearchClusterRunner();
+        runner.onBuild(new ElasticsearchClusterRunner.Builder() {
+            @Override
+            public void build(final int number, final Builder settingsBuilder) {
+                settingsBuilder.put("solr.routingField", "shard_key");
+                if (coerce) {
+                    // the documents are read into the fields
+                    settingsBuilder.put("solr.update.coerce.enabled", true);
+                }
+            }
+        }).build(newConfigs().numOfNode(1).ramIndexStore()
+                .clusterName(UUID.randomUUID().toString()));
+        runner.ensureYellow();
+        runner.createIndex(INDEX, null);
+        runner.ensureYellow(INDEX);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        runner.close();
+        runner.clean();
+    }
+
+    public void test_Json() throws Exception {
+        assertJsonUpdates();
+    }
+
+    public void test_JsonFields() throws Exception {
+        assertJsonUpdates();
+    }
+
+    private void assertJsonUpdates() throws Exception {
+        // a single document
+        assertEquals(200, post("/json/docs?commit=true",
+                "{\"id\":\"1\",\"title\":\"one\",\"_version_\":5}",
+                "application/json"));
+        GetResponse response = get("1", null);
+        assertEquals("one", response.getSource().get("title"));
+        assertEquals(5L, response.getVersion());
+        assertFalse(response.getSource().containsKey("_version_"));
+
+        // an array of documents with an id field and a routing field
+        assertEquals(200, post("?commit=true",
+                "[{\"url\":\"http://u/2\",\"title\":\"two\","
+                        + "\"shard_key\":\"r1\"},"
+                        + "{\"id\":\"3\",\"title\":\"three\"}]",
+                "application/json"));
+        response = get("http://u/2", "r1");
+        assertEquals("http://u/2", response.getSource().get("id"));
+        assertEquals("r1", response.getField("_routing").getValue());
+        assertTrue(get("3", null).isExists());
+
+        // the commands of an object
+        assertEquals(200, post("",
+                "{\"add\":{\"doc\":{\"id\":\"4\",\"title\":\"four\"},"
+                        + "\"overwrite\":true},"
+                        + "\"add\":{\"doc\":{\"id\":\"5\",\"count\":1}},"
+                        + "\"delete\":{\"id\":\"3\"},\"commit\":{}}",
+                "application/json"));
+        assertEquals("four", get("4", null).getSource().get("title"));
+        assertFalse(get("3", null).isExists());
+
+        // atomic updates
+        assertEquals(200, post("?commit=true",
+                "[{\"id\":\"5\",\"count\":{\"inc\":2},"
+                        + "\"title\":{\"set\":\"five\"}}]",
+                "application/json"));
+        final Map<String, Object> source = get("5", null).getSource();
+        assertEquals(3, ((Number) source.get("count")).intValue());
+        assertEquals("five", source.get("title"));
+
+        // an older version is not applied
+        post("?commit=true",
+                "[{\"id\":\"1\",\"title\":\"old\",\"_version_\":3}]",
+                "application/json");
+        assertEquals("one", get("1", null).getSource().get("title"));
+    }
+
+    private GetResponse get(final String id, final String routing) {
+        return runner.client().prepareGet(INDEX, TYPE, id)
+                .setRouting(routing).setFields("_source", "_routing")
+                .execute().actionGet();
+    }
+
+    private int post(final String path, final String body,
+            final String contentType) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(URL
+                + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", contentType);
+        connection.setDoOutput(true);
+        final OutputStream out = connection.getOutputStream();
+        try {
+            out.write(body.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        final int status = connection.getResponseCode();
+        final InputStream in = status == 200 ? connection.getInputStream()
+                : connection.getErrorStream();
+        if (in != null) {
+            try {
+                Streams.copyToString(new InputStreamReader(in, "UTF-8"));
+            } finally {
+                in.close();
+            }
+        }
+        runner.refresh();
+        return status;
+    }
+}
@@ -0,0 +1,253 @@
+package org.codelibs.elasticsearch.solr.plugin;
+
+import static org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner.newConfigs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+
+import org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.ImmutableSettings.Builder;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+
+public class SolrUpdateCommandTest extends TestCase {
+
+    private static final String INDEX = "sample";
+
+    private static final String TYPE = "data";
+
+    private static final String URL = "http://localhost:9201/" + INDEX + "/"
+            + TYPE + "/_solr/update";
+
+    private ElasticsearchClusterRunner runner;
+
+    @Override
+    protected void setUp() throws Exception {
+        runner = new ElasticsearchClusterRunner();
+        runner.onBuild(new ElasticsearchClusterRunner.Builder() {
+            @Override
+            public void build(final int number, final Builder settingsBuilder) {
+                settingsBuilder.put(
+                        "solr.update.delete_by_query.max_merged_queries", 2);
+            }
+        }).build(newConfigs().numOfNode(1).ramIndexStore()
+                .clusterName(UUID.randomUUID().toString()));
+        runner.ensureYellow();
+        // only the commits of the requests refresh the index
+        runner.createIndex(INDEX, ImmutableSettings.settingsBuilder()
+                .put("index.refresh_interval", -1).build());
+        runner.ensureYellow(INDEX);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        runner.close();
+        runner.clean();
+    }
+
+    public void test_deleteByQuery() throws Exception {
+        final StringBuilder buf = new StringBuilder("<add>");
+        for (int i = 1; i <= 6; i++) {
+            buf.append("<doc><field name=\"id\">").append(i)
+                    .append("</field><field name=\"n\">").append(i)
+                    .append("</field></doc>");
+        }
+        buf.append("</add>");
+        assertEquals(200, post("?commit=true", buf.toString()).status);
+
+        // the queries of an index are merged up to max_merged_queries
+        final Response response = post("?commit=true&wt=json",
+                "<update><delete><query>n:1</query><query>n:2</query>"
+                        + "</delete><delete><query>n:3</query></delete>"
+                        + "</update>");
+        assertEquals(200, response.status);
+        final List<String> queries = new ArrayList<String>();
+        for (final Object result : (List<?>) response.body
+                .get("deleteByQuery")) {
+            final Map<?, ?> queryResult = (Map<?, ?>) result;
+            queries.add((String) queryResult.get("query"));
+            assertEquals(0, queryResult.get("failed"));
+        }
+        Collections.sort(queries);
+        assertEquals("[(n:1) OR (n:2), n:3]", queries.toString());
+        assertEquals(3L, count());
+
+        // a failed query is found by running the queries one by one
+        final Response failed = post("?commit=true&wt=json",
+                "<delete><query>n:4</query><query>n:[</query></delete>");
+        assertEquals(500, failed.status);
+        assertEquals(2L, count());
+        assertFalse(exists("4"));
+    }
+
+    public void test_version() throws Exception {
+        // _version_ is the external version of the document
+        assertEquals(200, post("?commit=true", addVersioned("v1", "a", 5))
+                .status);
+        assertEquals(5L, version("v1"));
+
+        // an older version is a conflict of the document
+        final Response conflict = post("?commit=true&wt=json",
+                addVersioned("v1", "b", 3));
+        assertEquals(500, conflict.status);
+        final Map<?, ?> error = (Map<?, ?>) conflict.body.get("error");
+        assertEquals(409, error.get("code"));
+        final List<?> errors = (List<?>) error.get("errors");
+        assertEquals(1, errors.size());
+        assertEquals("v1", ((Map<?, ?>) errors.get(0)).get("id"));
+        assertEquals(409, ((Map<?, ?>) errors.get(0)).get("code"));
+        assertEquals(5L, version("v1"));
+
+        assertEquals(200, post("?commit=true", addVersioned("v1", "c", 7))
+                .status);
+        assertEquals(7L, version("v1"));
+
+        // a negative version adds the document only if it does not exist
+        assertEquals(200, post("?commit=true", addVersioned("v2", "a", -1))
+                .status);
+        assertTrue(exists("v2"));
+        assertEquals(500, post("?commit=true", addVersioned("v2", "b", -1))
+                .status);
+        assertEquals("a", runner.client().prepareGet(INDEX, TYPE, "v2")
+                .execute().actionGet().getSource().get("title"));
+
+        // a delete with an older version is a conflict
+        assertEquals(500, post("?commit=true",
+                "<delete><id version=\"6\">v1</id></delete>").status);
+        assertTrue(exists("v1"));
+        assertEquals(200, post("?commit=true",
+                "<delete><id version=\"8\">v1</id></delete>").status);
+        assertFalse(exists("v1"));
+    }
+
+    public void test_addOptions() throws Exception {
+        assertEquals(200, post("?commit=true",
+                "<add><doc><field name=\"id\">o1</field>"
+                        + "<field name=\"title\">a</field></doc></add>")
+                .status);
+
+        // overwrite=false adds a new document without looking up its id,
+        // and the option ends with its add
+        assertEquals(200, post("?commit=true",
+                "<update><add overwrite=\"false\"><doc>"
+                + "<field name=\"id\">o1</field><field name=\"title\">b"
+                + "</field></doc></add><doc><field name=\"id\">o2"
+                + "</field><field name=\"title\">a</field></doc>"
+                + "<doc><field name=\"id\">o2</field>"
+                + "<field name=\"title\">b</field></doc></update>")
+                .status);
+        assertEquals(3L, count());
+        assertEquals("a", title("o1"));
+        assertEquals("b", title("o2"));
+
+        // commitWithin of an add makes the documents visible without a
+        // commit
+        assertEquals(200, send("", "<add commitWithin=\"100\"><doc>"
+                + "<field name=\"id\">o3</field></doc></add>").status);
+        final long startTime = System.currentTimeMillis();
+        while (count() < 4) {
+            assertTrue(System.currentTimeMillis() - startTime < 10000);
+            Thread.sleep(50);
+        }
+
+        // a document without an id is added with the id of its "id" field
+        assertEquals(200, post("?commit=true", "<add overwrite=\"false\">"
+                + "<doc><field name=\"title\">c</field></doc></add>")
+                .status);
+        final SearchHit[] hits = runner.client().prepareSearch(INDEX)
+                .setTypes(TYPE).setQuery(QueryBuilders.termQuery("title", "c"))
+                .execute().actionGet().getHits().getHits();
+        assertEquals(1, hits.length);
+        final String id = hits[0].getId();
+        assertEquals(id, hits[0].getSource().get("id"));
+        assertEquals(200, post("?commit=true", "<delete><id>" + id
+                + "</id></delete>").status);
+        assertFalse(exists(id));
+        assertEquals(4L, count());
+    }
+
+    private String title(final String id) {
+        return (String) runner.client().prepareGet(INDEX, TYPE, id)
+                .execute().actionGet().getSource().get("title");
+    }
+
+    private static String addVersioned(final String id, final String title,
+            final long version) {
+        return "<add><doc><field name=\"id\">" + id
+                + "</field><field name=\"title\">" + title
+                + "</field><field name=\"_version_\">" + version
+                + "</field></doc></add>";
+    }
+
+    private long version(final String id) {
+        return runner.client().prepareGet(INDEX, TYPE, id).execute()
+                .actionGet().getVersion();
+    }
+
+    private boolean exists(final String id) {
+        return runner.client().prepareGet(INDEX, TYPE, id).execute()
+                .actionGet().isExists();
+    }
+
+    private long count() {
+        return runner.client().prepareCount(INDEX).setTypes(TYPE).execute()
+                .actionGet().getCount();
+    }
+
+    private Response post(final String path, final String body)
+            throws IOException {
+        final Response response = send(path, body);
+        runner.refresh();
+        return response;
+    }
+
+    private Response send(final String path, final String body)
+            throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(URL
+                + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "text/xml");
+        connection.setDoOutput(true);
+        final OutputStream out = connection.getOutputStream();
+        try {
+            out.write(body.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        final Response response = new Response();
+        response.status = connection.getResponseCode();
+        final InputStream in = response.status == 200 ? connection
+                .getInputStream() : connection.getErrorStream();
+        try {
+            final String content = Streams.copyToString(new InputStreamReader(
+                    in, "UTF-8"));
+            if (path.contains("wt=json")) {
+                response.body = JsonXContent.jsonXContent
+                        .createParser(content).map();
+            }
+        } finally {
+            in.close();
+        }
+        return response;
+    }
+
+    private static class Response {
+        private int status;
+
+        private Map<String, Object> body;
+    }
+}
@@ -0,0 +1,97 @@
+package org.codelibs.elasticsearch.solr.rest;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.rest.RestRequest;
+
+/**
+ * A request with the parameters and the content of a test.
+ */
+public class MockRestRequest extends RestRequest {
+
+    private final Map<String, String> params = new HashMap<String, String>();
+
+    private BytesReference content = BytesArray.EMPTY;
+
+    /**
+     * @param key
+     *            the parameter name
+     * @param value
+     *            the parameter value
+     * @return this request
+     */
+    public MockRestRequest withParam(final String key, final String value) {
+        params.put(key, value);
+        return this;
+    }
+
+    /**
+     * @param content
+     *            the body of the request
+     * @return this request
+     */
+    public MockRestRequest withContent(final String content) {
+        this.content = new BytesArray(content);
+        return this;
+    }
+
+    @Override
+    public Method method() {
+        return Method.POST;
+    }
+
+    @Override
+    public String uri() {
+        return rawPath();
+    }
+
+    @Override
+    public String rawPath() {
+        return "/_solr/update";
+    }
+
+    @Override
+    public boolean hasContent() {
+        return content.length() > 0;
+    }
+
+    @Override
+    public BytesReference content() {
+        return content;
+    }
+
+    @Override
+    public String header(final String name) {
+        return null;
+    }
+
+    @Override
+    public Iterable<Map.Entry<String, String>> headers() {
+        return Collections.<String, String> emptyMap().entrySet();
+    }
+
+    @Override
+    public boolean hasParam(final String key) {
+        return params.containsKey(key);
+    }
+
+    @Override
+    public String param(final String key) {
+        return params.get(key);
+    }
+
+    @Override
+    public String param(final String key, final String defaultValue) {
+        final String value = params.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    @Override
+    public Map<String, String> params() {
+        return params;
+    }
+}
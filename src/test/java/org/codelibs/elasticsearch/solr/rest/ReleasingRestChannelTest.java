@@ -0,0 +1,83 @@
+package org.codelibs.elasticsearch.solr.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.codelibs.elasticsearch.solr.update.UpdateAdmissionController;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestResponse;
+import org.elasticsearch.rest.RestStatus;
+
+public class ReleasingRestChannelTest extends TestCase {
+
+    private final UpdateAdmissionController controller = new UpdateAdmissionController(
+            0, 1);
+
+    private final List<RestResponse> responses = new ArrayList<RestResponse>();
+
+    public void test_success() {
+        final RestChannel channel = newReleasingChannel(false);
+        assertNull(controller.tryAcquire(0));
+
+        channel.sendResponse(new BytesRestResponse(RestStatus.OK));
+        assertEquals(1, responses.size());
+        assertEquals(0, controller.stats().get("inflight_requests"));
+        assertNotNull(controller.tryAcquire(0));
+    }
+
+    public void test_failure() {
+        final RestChannel channel = newReleasingChannel(false);
+
+        channel.sendResponse(new BytesRestResponse(
+                RestStatus.INTERNAL_SERVER_ERROR, "failed"));
+        assertEquals(RestStatus.INTERNAL_SERVER_ERROR, responses.get(0)
+                .status());
+        assertEquals(0, controller.stats().get("inflight_requests"));
+    }
+
+    public void test_exception() {
+        final RestChannel channel = newReleasingChannel(true);
+
+        try {
+            channel.sendResponse(new BytesRestResponse(RestStatus.OK));
+            fail();
+        } catch (final IllegalStateException e) {
+            // the permit is released even if the response is not sent
+            assertEquals(0, controller.stats().get("inflight_requests"));
+        }
+
+        // a retry on another path does not release it twice
+        try {
+            channel.sendResponse(new BytesRestResponse(
+                    RestStatus.INTERNAL_SERVER_ERROR));
+            fail();
+        } catch (final IllegalStateException e) {
+            assertEquals(0, controller.stats().get("inflight_requests"));
+        }
+        assertNotNull(controller.tryAcquire(0));
+        assertNull(controller.tryAcquire(0));
+    }
+
+    private RestChannel newReleasingChannel(final boolean broken) {
+        final Releasable permit = controller.tryAcquire(0);
+        assertNotNull(permit);
+        final RestChannel channel = new RestChannel(new MockRestRequest(),
+                false) {
+            @Override
+            public void sendResponse(final RestResponse response) {
+                if (broken) {
+                    throw new IllegalStateException("closed");
+                }
+                // the permit is released before the client gets the
+                // response
+                assertEquals(0, controller.stats().get("inflight_requests"));
+                responses.add(response);
+            }
+        };
+        return new ReleasingRestChannel(channel, permit);
+    }
+}
@@ -0,0 +1,65 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+
+public class AtomicUpdatesTest extends TestCase {
+
+    public void test_isModifier() {
+        assertTrue(AtomicUpdates.isModifier(Collections.singletonMap("inc",
+                "1")));
+        assertFalse(AtomicUpdates.isModifier(Collections.singletonMap(
+                "other", "1")));
+        assertFalse(AtomicUpdates.isModifier(new HashMap<String, Object>()));
+        assertFalse(AtomicUpdates.isModifier("set"));
+    }
+
+    public void test_apply() {
+        final UpdateDocument doc = new UpdateDocument();
+        doc.addField("id", "1");
+        doc.addField("cnt", Collections.singletonMap("inc", "3"));
+        doc.addField("price", Collections.singletonMap("inc", "0.5"));
+        doc.addField("tags", Collections.singletonMap("add", "c"));
+        doc.addField("cats", Collections.singletonMap("remove", "x"));
+        doc.addField("title", Collections.singletonMap("set", null));
+        doc.addField("name", Collections.singletonMap("set", "n"));
+        doc.addField("new", Collections.singletonMap("inc", "2"));
+        assertTrue(doc.isAtomicUpdate());
+
+        final Map<String, Object> source = new HashMap<String, Object>();
+        source.put("id", "1");
+        source.put("cnt", 5);
+        source.put("price", 1);
+        source.put("tags", Arrays.asList("a", "b"));
+        source.put("cats", "x");
+        source.put("title", "t");
+        AtomicUpdates.apply(source, AtomicUpdates.createParams(doc));
+
+        assertEquals("1", source.get("id"));
+        assertEquals(8L, source.get("cnt"));
+        assertEquals(1.5d, source.get("price"));
+        assertEquals(Arrays.asList("a", "b", "c"), source.get("tags"));
+        assertFalse(source.containsKey("cats"));
+        assertFalse(source.containsKey("title"));
+        assertEquals("n", source.get("name"));
+        assertEquals(2L, source.get("new"));
+    }
+
+    public void test_apply_invalidNumber() {
+        final UpdateDocument doc = new UpdateDocument();
+        doc.addField("cnt", Collections.singletonMap("inc", "abc"));
+        try {
+            AtomicUpdates.apply(new HashMap<String, Object>(),
+                    AtomicUpdates.createParams(doc));
+            fail();
+        } catch (final ElasticsearchIllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import junit.framework.TestCase;
+
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.rest.RestStatus;
+
+public class BulkRetryPolicyTest extends TestCase {
+
+    private final BulkRetryPolicy policy = new BulkRetryPolicy(null, 3,
+            TimeValue.timeValueMillis(100), TimeValue.timeValueMillis(300));
+
+    public void test_canRetry() {
+        final IndexRequest indexRequest = new IndexRequest("a", "b", "1");
+        assertTrue(policy.canRetry(0, indexRequest,
+                RestStatus.TOO_MANY_REQUESTS));
+        assertTrue(policy.canRetry(2, indexRequest,
+                RestStatus.SERVICE_UNAVAILABLE));
+        assertFalse(policy.canRetry(3, indexRequest,
+                RestStatus.TOO_MANY_REQUESTS));
+        assertFalse(policy.canRetry(0, indexRequest, RestStatus.BAD_REQUEST));
+        // only a conflict of an atomic update without a version
+        assertFalse(policy.canRetry(0, indexRequest, RestStatus.CONFLICT));
+        final UpdateRequest updateRequest = new UpdateRequest("a", "b", "1");
+        assertTrue(policy.canRetry(0, updateRequest, RestStatus.CONFLICT));
+        updateRequest.version(2);
+        assertFalse(policy.canRetry(0, updateRequest, RestStatus.CONFLICT));
+
+        assertTrue(policy.canRetry(0, new EsRejectedExecutionException(
+                "rejected")));
+        assertFalse(policy.canRetry(0, new IllegalStateException()));
+    }
+
+    public void test_getBackoff() {
+        assertEquals(100, policy.getBackoff(0).millis());
+        assertEquals(200, policy.getBackoff(1).millis());
+        assertEquals(300, policy.getBackoff(2).millis());
+        assertEquals(300, policy.getBackoff(10).millis());
+    }
+}
@@ -0,0 +1,141 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.admin.indices.flush.FlushAction;
+import org.elasticsearch.action.admin.indices.refresh.RefreshAction;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.threadpool.ThreadPool;
+
+public class CommitSchedulerTest extends TestCase {
+
+    private ThreadPool threadPool;
+
+    private MockClient client;
+
+    // the listeners of the refreshes which have not completed
+    private final List<ActionListener<ActionResponse>> runningRefreshes = new ArrayList<ActionListener<ActionResponse>>();
+
+    private volatile boolean holdRefreshes = false;
+
+    private CommitScheduler scheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        threadPool = new ThreadPool("test");
+        client = new MockClient(threadPool);
+        client.on(RefreshAction.INSTANCE, new MockClient.Handler() {
+            @Override
+            public void handle(final ActionRequest<?> request,
+                    final ActionListener<ActionResponse> listener) {
+                if (holdRefreshes) {
+                    synchronized (runningRefreshes) {
+                        runningRefreshes.add(listener);
+                    }
+                } else {
+                    listener.onResponse(RefreshAction.INSTANCE.newResponse());
+                }
+            }
+        });
+        client.on(FlushAction.INSTANCE, new MockClient.Handler() {
+            @Override
+            public void handle(final ActionRequest<?> request,
+                    final ActionListener<ActionResponse> listener) {
+                listener.onResponse(FlushAction.INSTANCE.newResponse());
+            }
+        });
+        scheduler = new CommitScheduler(client, threadPool);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+    }
+
+    public void test_commit() throws Exception {
+        holdRefreshes = true;
+        final CountDownLatch latch = new CountDownLatch(3);
+        scheduler.commit("a", true, newListener(latch));
+        // the commits requested while the refresh runs share the next one
+        scheduler.commit("a", true, newListener(latch));
+        scheduler.commit("a", true, newListener(latch));
+        assertEquals(1, client.requests(RefreshRequest.class).size());
+
+        completeRefresh();
+        assertEquals(2, latch.getCount());
+        assertEquals(2, client.requests(RefreshRequest.class).size());
+        completeRefresh();
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(2, client.requests(RefreshRequest.class).size());
+
+        // the completed operations are removed
+        assertEquals(0, scheduler.size());
+        holdRefreshes = false;
+        final CountDownLatch nextLatch = new CountDownLatch(2);
+        scheduler.commit("a", true, newListener(nextLatch));
+        scheduler.commit("a", false, newListener(nextLatch));
+        assertTrue(nextLatch.await(10, TimeUnit.SECONDS));
+        assertEquals(3, client.requests(RefreshRequest.class).size());
+        assertEquals(0, scheduler.size());
+    }
+
+    public void test_schedule() throws Exception {
+        final long startTime = System.currentTimeMillis();
+        scheduler.schedule("a", 60000);
+        // a shorter commitWithin moves the refresh earlier
+        scheduler.schedule("a", 100);
+        scheduler.schedule("a", 30000);
+        assertEquals(1, scheduler.size());
+
+        awaitRefreshes(1, startTime);
+        assertTrue(System.currentTimeMillis() - startTime >= 100);
+
+        // an update after the refresh schedules a new one
+        scheduler.schedule("a", 0);
+        awaitRefreshes(2, startTime);
+        assertEquals(2, client.requests(RefreshRequest.class).size());
+    }
+
+    /**
+     * Waits until the refreshes are executed and the completed state is
+     * removed.
+     */
+    private void awaitRefreshes(final int count, final long startTime)
+            throws InterruptedException {
+        while (client.requests(RefreshRequest.class).size() < count
+                || scheduler.size() > 0) {
+            assertTrue(System.currentTimeMillis() - startTime < 10000);
+            Thread.sleep(10);
+        }
+    }
+
+    private void completeRefresh() {
+        final ActionListener<ActionResponse> listener;
+        synchronized (runningRefreshes) {
+            listener = runningRefreshes.remove(0);
+        }
+        listener.onResponse(RefreshAction.INSTANCE.newResponse());
+    }
+
+    private static ActionListener<Void> newListener(final CountDownLatch latch) {
+        return new ActionListener<Void>() {
+            @Override
+            public void onResponse(final Void response) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(final Throwable e) {
+                fail(e.toString());
+            }
+        };
+    }
+}
@@ -0,0 +1,59 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.Streams;
+
+public class ContentDecompressorTest extends TestCase {
+
+    private static final String CONTENT = "[{\"id\":\"1\"},{\"id\":\"2\"}]";
+
+    public void test_streamInput() throws IOException {
+        final ContentDecompressor decompressor = new ContentDecompressor(100);
+        assertEquals(CONTENT, read(decompressor, new BytesArray(CONTENT)));
+
+        final ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        final GZIPOutputStream gzipOut = new GZIPOutputStream(gzip);
+        gzipOut.write(CONTENT.getBytes("UTF-8"));
+        gzipOut.close();
+        assertEquals(CONTENT,
+                read(decompressor, new BytesArray(gzip.toByteArray())));
+
+        final ByteArrayOutputStream zlib = new ByteArrayOutputStream();
+        final DeflaterOutputStream zlibOut = new DeflaterOutputStream(zlib);
+        zlibOut.write(CONTENT.getBytes("UTF-8"));
+        zlibOut.close();
+        assertEquals(CONTENT,
+                read(decompressor, new BytesArray(zlib.toByteArray())));
+
+        // a text starting with "x" is not compressed
+        assertEquals("x y,z\n1,2",
+                read(decompressor, new BytesArray("x y,z\n1,2")));
+
+        try {
+            read(new ContentDecompressor(10),
+                    new BytesArray(gzip.toByteArray()));
+            fail();
+        } catch (final ContentTooLargeException e) {
+            // expected
+        }
+    }
+
+    private String read(final ContentDecompressor decompressor,
+            final BytesReference content) throws IOException {
+        final InputStream in = decompressor.streamInput(content);
+        try {
+            return new String(Streams.copyToByteArray(in), "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
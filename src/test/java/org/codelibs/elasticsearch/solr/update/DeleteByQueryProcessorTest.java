@@ -0,0 +1,328 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.solr.common.util.NamedList;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.admin.indices.refresh.RefreshAction;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.search.ClearScrollAction;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollAction;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.common.text.StringText;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.SearchShardTarget;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.elasticsearch.search.internal.InternalSearchHits;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.elasticsearch.threadpool.ThreadPool;
+
+public class DeleteByQueryProcessorTest extends TestCase {
+
+    private ThreadPool threadPool;
+
+    private MockClient client;
+
+    // the pages of hits of each scan
+    private int pagesPerScan = 1;
+
+    private int hitsPerPage = 2;
+
+    // scroll id -> the number of pages left
+    private final Map<String, AtomicInteger> scrolls = new ConcurrentHashMap<String, AtomicInteger>();
+
+    private final AtomicInteger docCount = new AtomicInteger();
+
+    // the ids of the documents updated after the scan
+    private final List<String> updatedIds = Collections
+            .synchronizedList(new ArrayList<String>());
+
+    @Override
+    protected void setUp() throws Exception {
+        threadPool = new ThreadPool("test");
+        client = new MockClient(threadPool);
+        client.on(RefreshAction.INSTANCE, new MockClient.Handler() {
+            @Override
+            public void handle(final ActionRequest<?> request,
+                    final ActionListener<ActionResponse> listener) {
+                listener.onResponse(RefreshAction.INSTANCE.newResponse());
+            }
+        });
+        client.on(SearchAction.INSTANCE, new MockClient.Handler() {
+            @Override
+            public void handle(final ActionRequest<?> request,
+                    final ActionListener<ActionResponse> listener) {
+                final SearchRequest searchRequest = (SearchRequest) request;
+                if (sourceAsString(searchRequest).contains("bad")) {
+                    listener.onFailure(new IllegalArgumentException(
+                            "bad query"));
+                    return;
+                }
+                final String scrollId = "scroll" + scrolls.size();
+                scrolls.put(scrollId, new AtomicInteger(pagesPerScan));
+                listener.onResponse(newSearchResponse(scrollId,
+                        new InternalSearchHit[0], pagesPerScan
+                                * hitsPerPage));
+            }
+        });
+        client.on(SearchScrollAction.INSTANCE, new MockClient.Handler() {
+            @Override
+            public void handle(final ActionRequest<?> request,
+                    final ActionListener<ActionResponse> listener) {
+                final String scrollId = ((SearchScrollRequest) request)
+                        .scrollId();
+                final InternalSearchHit[] hits;
+                if (scrolls.get(scrollId).getAndDecrement() > 0) {
+                    hits = new InternalSearchHit[hitsPerPage];
+                    for (int i = 0; i < hits.length; i++) {
+                        final int n = docCount.incrementAndGet();
+                        hits[i] = new InternalSearchHit(n, "doc" + n,
+                                new StringText("b"),
+                                Collections.<String, SearchHitField> emptyMap());
+                        hits[i].shard(new SearchShardTarget("node", "a", 0));
+                        hits[i].version(n);
+                    }
+                } else {
+                    hits = new InternalSearchHit[0];
+                }
+                listener.onResponse(newSearchResponse(scrollId, hits,
+                        pagesPerScan * hitsPerPage));
+            }
+        });
+        client.on(BulkAction.INSTANCE, new MockClient.Handler() {
+            @Override
+            public void handle(final ActionRequest<?> request,
+                    final ActionListener<ActionResponse> listener) {
+                final List<ActionRequest> actions = ((BulkRequest) request)
+                        .requests();
+                final BulkItemResponse[] items = new BulkItemResponse[actions
+                        .size()];
+                for (int i = 0; i < items.length; i++) {
+                    final DeleteRequest delete = (DeleteRequest) actions
+                            .get(i);
+                    if (updatedIds.contains(delete.id())) {
+                        items[i] = new BulkItemResponse(i, "delete",
+                                new BulkItemResponse.Failure(delete.index(),
+                                        delete.type(), delete.id(),
+                                        "version conflict",
+                                        RestStatus.CONFLICT));
+                    } else {
+                        items[i] = new BulkItemResponse(i, "delete",
+                                new DeleteResponse(delete.index(), delete
+                                        .type(), delete.id(), delete
+                                        .version() + 1, true));
+                    }
+                }
+                listener.onResponse(new BulkResponse(items, 1));
+            }
+        });
+        client.on(ClearScrollAction.INSTANCE, new MockClient.Handler() {
+            @Override
+            public void handle(final ActionRequest<?> request,
+                    final ActionListener<ActionResponse> listener) {
+                listener.onResponse(new ClearScrollResponse(true, 1));
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+    }
+
+    public void test_merge() throws Exception {
+        final DeleteByQueryProcessor processor = new DeleteByQueryProcessor(
+                client, threadPool, 10, 0f, TimeValue.timeValueMinutes(1), 2,
+                2);
+        final List<DeleteQuery> queries = new ArrayList<DeleteQuery>();
+        queries.add(newDeleteQuery("a", "q1"));
+        queries.add(newDeleteQuery("b", "q2"));
+        queries.add(newDeleteQuery("a", "q3"));
+        queries.add(newDeleteQuery("a", "q4"));
+        final Result result = execute(processor, queries);
+
+        assertTrue(result.failures.isEmpty());
+        // q1 and q3 are merged, q4 exceeds the merged queries
+        assertEquals(3, client.requests(SearchRequest.class).size());
+        assertEquals(3, result.results.size());
+        final List<String> queryStrings = new ArrayList<String>();
+        for (final NamedList<Object> queryResult : result.results) {
+            queryStrings.add((String) queryResult.get("query"));
+            assertEquals(2L, queryResult.get("deleted"));
+        }
+        Collections.sort(queryStrings);
+        assertEquals("[(q1) OR (q3), q2, q4]", queryStrings.toString());
+
+        // the indices are refreshed before the scans
+        final List<ActionRequest<?>> requests = client.requests();
+        assertTrue(requests.get(0) instanceof RefreshRequest);
+        assertEquals("[a, b]", Arrays
+                .toString(((RefreshRequest) requests.get(0)).indices()));
+
+        // the documents are deleted with the scanned versions
+        for (final SearchRequest searchRequest : client
+                .requests(SearchRequest.class)) {
+            assertTrue(sourceAsString(searchRequest).contains(
+                    "\"version\":true"));
+        }
+        for (final BulkRequest bulkRequest : client
+                .requests(BulkRequest.class)) {
+            for (final ActionRequest<?> action : bulkRequest.requests()) {
+                final DeleteRequest delete = (DeleteRequest) action;
+                assertEquals(delete.id(), "doc" + delete.version());
+            }
+        }
+    }
+
+    public void test_fallback() throws Exception {
+        final DeleteByQueryProcessor processor = new DeleteByQueryProcessor(
+                client, threadPool, 10, 0f, TimeValue.timeValueMinutes(1),
+                10, 1);
+        final List<DeleteQuery> queries = new ArrayList<DeleteQuery>();
+        queries.add(newDeleteQuery("a", "good"));
+        queries.add(newDeleteQuery("a", "bad"));
+        final Result result = execute(processor, queries);
+
+        // the merged query and then each query are executed
+        assertEquals(3, client.requests(SearchRequest.class).size());
+        assertEquals(3, result.results.size());
+        assertEquals(1, result.failures.size());
+        final UpdateFailure failure = result.failures.get(0);
+        assertEquals(UpdateFailure.DELQ, failure.getType());
+        assertEquals("bad", failure.getId());
+        assertEquals(2L, result.results.get(1).get("deleted"));
+    }
+
+    public void test_conflict() throws Exception {
+        final DeleteByQueryProcessor processor = new DeleteByQueryProcessor(
+                client, threadPool, 10, 0f, TimeValue.timeValueMinutes(1),
+                10, 1);
+        hitsPerPage = 3;
+        updatedIds.add("doc2");
+        final Result result = execute(processor,
+                Collections.singletonList(newDeleteQuery("a", "q1")));
+
+        // the document added after the scan is kept
+        assertTrue(result.failures.isEmpty());
+        final NamedList<Object> queryResult = result.results.get(0);
+        assertEquals(2L, queryResult.get("deleted"));
+        assertEquals(1L, queryResult.get("conflicts"));
+        assertEquals(0L, queryResult.get("failed"));
+    }
+
+    public void test_throttle() throws Exception {
+        final DeleteByQueryProcessor processor = new DeleteByQueryProcessor(
+                client, threadPool, 10, 10f, TimeValue.timeValueMinutes(1),
+                10, 1);
+        pagesPerScan = 2;
+        hitsPerPage = 5;
+        final long startTime = System.currentTimeMillis();
+        final Result result = execute(processor,
+                Collections.singletonList(newDeleteQuery("a", "q1")));
+
+        assertTrue(result.failures.isEmpty());
+        assertEquals(10L, result.results.get(0).get("deleted"));
+        // 10 documents at 10 documents per second
+        assertTrue(System.currentTimeMillis() - startTime >= 900);
+    }
+
+    public void test_childrenOf() throws Exception {
+        final DeleteByQueryProcessor processor = new DeleteByQueryProcessor(
+                client, threadPool, 10, 0f, TimeValue.timeValueMinutes(1),
+                10, 1);
+        final List<DeleteQuery> queries = new ArrayList<DeleteQuery>();
+        queries.add(DeleteQuery.childrenOf("a", "c", null, "p1",
+                Collections.<String> emptyList()));
+        queries.add(DeleteQuery.childrenOf("a", "c", null, "p2",
+                Collections.<String> emptyList()));
+        queries.add(DeleteQuery.childrenOf("a", "c", null, "p1",
+                Arrays.asList("c1", "c2")));
+        final Result result = execute(processor, queries);
+
+        // the last command on the children of p1 replaces the first one,
+        // and the children of both parents are deleted by one terms filter
+        assertTrue(result.failures.isEmpty());
+        assertEquals(1, client.requests(SearchRequest.class).size());
+        assertEquals("_parent:(p2 OR p1)", result.results.get(0).get("query"));
+        assertEquals(2, result.results.get(0).get("queries"));
+        final String source = sourceAsString(client.requests(
+                SearchRequest.class).get(0));
+        assertTrue(source, source.contains("\"_parent\":[\"p2\",\"p1\"]"));
+        // only the children of p1 are kept
+        assertTrue(source, source.contains("\"_parent\":\"p1\""));
+        assertFalse(source, source.contains("\"_parent\":\"p2\""));
+        assertTrue(source, source.contains("\"values\":[\"c1\",\"c2\"]"));
+    }
+
+    private DeleteQuery newDeleteQuery(final String index, final String query) {
+        return new DeleteQuery(index, "b", null, query,
+                QueryBuilders.queryStringQuery(query));
+    }
+
+    private Result execute(final DeleteByQueryProcessor processor,
+            final List<DeleteQuery> queries) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Result result = new Result();
+        processor.execute(queries, new DeleteByQueryProcessor.Listener() {
+            @Override
+            public void onCompleted(final List<NamedList<Object>> results,
+                    final List<UpdateFailure> failures) {
+                result.results = results;
+                result.failures = failures;
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        return result;
+    }
+
+    private static String sourceAsString(final SearchRequest request) {
+        try {
+            return XContentHelper.convertToJson(request.source(), false);
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static SearchResponse newSearchResponse(final String scrollId,
+            final InternalSearchHit[] hits, final long totalHits) {
+        return new SearchResponse(new InternalSearchResponse(
+                new InternalSearchHits(hits, totalHits, 1f), null, null,
+                null, false, null), scrollId, 1, 1, 1,
+                ShardSearchFailure.EMPTY_ARRAY);
+    }
+
+    private static class Result {
+        private volatile List<NamedList<Object>> results;
+
+        private volatile List<UpdateFailure> failures;
+    }
+}
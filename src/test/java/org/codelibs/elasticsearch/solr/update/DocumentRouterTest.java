@@ -0,0 +1,16 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import junit.framework.TestCase;
+
+public class DocumentRouterTest extends TestCase {
+
+    public void test_getShardKey() {
+        assertEquals("tenant", DocumentRouter.getShardKey("tenant!doc1"));
+        assertEquals("tenant", DocumentRouter.getShardKey("tenant/2!doc1"));
+        assertEquals("app", DocumentRouter.getShardKey("app!user!doc1"));
+        assertEquals("a/b", DocumentRouter.getShardKey("a/b!doc1"));
+        assertEquals("tenant", DocumentRouter.getShardKey("tenant!"));
+        assertNull(DocumentRouter.getShardKey("doc1"));
+        assertNull(DocumentRouter.getShardKey("!doc1"));
+    }
+}
@@ -0,0 +1,191 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+public class FieldTypeRegistryTest extends TestCase {
+
+    private volatile ClusterState state;
+
+    // the number of the cluster states read by the registry
+    private final AtomicInteger stateCount = new AtomicInteger();
+
+    private FieldTypeRegistry registry;
+
+    @Override
+    protected void setUp() throws Exception {
+        state = ClusterState
+                .builder(ClusterName.DEFAULT)
+                .metaData(
+                        MetaData.builder()
+                                .put(newIndexMetaData("a", "long"))
+                                .put(newIndexMetaData("b", "long"))).build();
+        // the registry only reads the state and listens to its changes
+        final ClusterService clusterService = (ClusterService) Proxy
+                .newProxyInstance(ClusterService.class.getClassLoader(),
+                        new Class<?>[] { ClusterService.class },
+                        new InvocationHandler() {
+                            @Override
+                            public Object invoke(final Object proxy,
+                                    final Method method, final Object[] args) {
+                                if ("state".equals(method.getName())) {
+                                    stateCount.incrementAndGet();
+                                    return state;
+                                }
+                                return null;
+                            }
+                        });
+        registry = new FieldTypeRegistry(clusterService);
+    }
+
+    public void test_numbers() {
+        final UpdateDocument doc = new UpdateDocument();
+        doc.addField("l", " 123 ");
+        doc.addField("i", "45");
+        doc.addField("i", "46");
+        doc.addField("d", "1.5");
+        doc.addField("b", "TRUE");
+        doc.addField("n", 7L);
+        doc.addField("bad", "x");
+        doc.addField("unknown", "8");
+        registry.coerce(doc, "a", "t", null);
+
+        assertEquals(123L, doc.getFirstValue("l"));
+        assertEquals(Arrays.<Object> asList(45, 46), doc.getValues("i"));
+        assertEquals(1.5d, doc.getFirstValue("d"));
+        assertEquals(Boolean.TRUE, doc.getFirstValue("b"));
+        // a value which is not a string or cannot be converted is kept
+        assertEquals(7L, doc.getFirstValue("n"));
+        assertEquals("x", doc.getFirstValue("bad"));
+        assertEquals("8", doc.getFirstValue("unknown"));
+    }
+
+    public void test_object() {
+        final UpdateDocument doc = new UpdateDocument();
+        doc.addField("l", "1");
+        // the fields of a child document are in the object of its path
+        registry.coerce(doc, "a", "t", "obj");
+        assertEquals(1, doc.getFirstValue("l"));
+    }
+
+    public void test_dates() {
+        final UpdateDocument doc = new UpdateDocument();
+        doc.addField("date", "2015-01-02T03:04:05Z");
+        doc.addField("day", " 2015-01-02 ");
+        doc.addField("seconds", "1420167845");
+        doc.addField("math", "2015-01-02T03:04:05Z+1DAY");
+        doc.addField("now", "NOW/DAY");
+        doc.addField("bad_date", "yesterday");
+        registry.coerce(doc, "a", "t", null);
+
+        // the dates are printed in the formats of the fields
+        assertEquals("2015-01-02T03:04:05.000Z", doc.getFirstValue("date"));
+        assertEquals("2015-01-02", doc.getFirstValue("day"));
+        assertEquals("2015-01-02 03:04:05", doc.getFirstValue("seconds"));
+        assertEquals("2015-01-03T03:04:05.000Z", doc.getFirstValue("math"));
+        assertTrue(((String) doc.getFirstValue("now"))
+                .endsWith("T00:00:00.000Z"));
+        assertEquals("yesterday", doc.getFirstValue("bad_date"));
+    }
+
+    public void test_clusterChanged() throws Exception {
+        coerce("a", "1");
+        coerce("b", "1");
+        assertEquals(2, stateCount.get());
+        coerce("a", "1");
+        assertEquals(2, stateCount.get());
+
+        // the mapping of a is changed and b is the same instance
+        final ClusterState previousState = state;
+        state = ClusterState
+                .builder(previousState)
+                .metaData(
+                        MetaData.builder(previousState.metaData()).put(
+                                newIndexMetaData("a", "double"))).build();
+        registry.clusterChanged(new ClusterChangedEvent("test", state,
+                previousState));
+
+        assertEquals(1.0d, coerce("a", "1"));
+        assertEquals(3, stateCount.get());
+        assertEquals(1L, coerce("b", "1"));
+        assertEquals(3, stateCount.get());
+
+        // a deleted index is removed from the cache
+        final ClusterState stateWithA = state;
+        state = ClusterState
+                .builder(stateWithA)
+                .metaData(
+                        MetaData.builder(stateWithA.metaData()).remove("a"))
+                .build();
+        registry.clusterChanged(new ClusterChangedEvent("test", state,
+                stateWithA));
+        assertEquals("1", coerce("a", "1"));
+        assertEquals(4, stateCount.get());
+    }
+
+    private Object coerce(final String index, final String value) {
+        final UpdateDocument doc = new UpdateDocument();
+        doc.addField("l", value);
+        registry.coerce(doc, index, "t", null);
+        return doc.getFirstValue("l");
+    }
+
+    private static IndexMetaData.Builder newIndexMetaData(final String index,
+            final String longType) throws Exception {
+        final XContentBuilder mapping = XContentFactory.jsonBuilder()//
+                .startObject()//
+                .startObject("t")//
+                .startObject("properties")//
+                .startObject("l").field("type", longType).endObject()//
+                .startObject("i").field("type", "integer").endObject()//
+                .startObject("d").field("type", "double").endObject()//
+                .startObject("b").field("type", "boolean").endObject()//
+                .startObject("n").field("type", "long").endObject()//
+                .startObject("bad").field("type", "long").endObject()//
+                .startObject("date").field("type", "date").endObject()//
+                .startObject("day")//
+                .field("type", "date")//
+                .field("format", "yyyy-MM-dd")//
+                .endObject()//
+                .startObject("seconds")//
+                .field("type", "solr_date")//
+                .field("format", "yyyy-MM-dd HH:mm:ss")//
+                .field("numeric_resolution", "seconds")//
+                .endObject()//
+                .startObject("math").field("type", "solr_date").endObject()//
+                .startObject("now").field("type", "solr_date").endObject()//
+                .startObject("bad_date").field("type", "solr_date")
+                .endObject()//
+                .startObject("obj")//
+                .startObject("properties")//
+                .startObject("l").field("type", "integer").endObject()//
+                .endObject()//
+                .endObject()//
+                .endObject()//
+                .endObject()//
+                .endObject();
+        return IndexMetaData
+                .builder(index)
+                .settings(
+                        ImmutableSettings.settingsBuilder().put(
+                                IndexMetaData.SETTING_VERSION_CREATED,
+                                Version.CURRENT)).numberOfShards(1)
+                .numberOfReplicas(0).putMapping("t", mapping.string());
+    }
+}
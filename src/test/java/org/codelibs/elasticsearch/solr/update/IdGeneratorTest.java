@@ -0,0 +1,51 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.TestCase;
+
+public class IdGeneratorTest extends TestCase {
+
+    public void test_flake_ordered() throws Exception {
+        final IdGenerator generator = IdGenerator
+                .create(IdGenerator.FLAKE_TYPE);
+        String last = generator.generate();
+        assertEquals(20, last.length());
+        for (int i = 0; i < 10000; i++) {
+            final String id = generator.generate();
+            assertTrue(id.compareTo(last) > 0);
+            last = id;
+        }
+    }
+
+    public void test_flake_concurrent() throws Exception {
+        final IdGenerator generator = IdGenerator
+                .create(IdGenerator.FLAKE_TYPE);
+        final Set<String> ids = Collections
+                .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        ids.add(generator.generate());
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40000, ids.size());
+    }
+
+    public void test_uuid() throws Exception {
+        final IdGenerator generator = IdGenerator
+                .create(IdGenerator.UUID_TYPE);
+        assertEquals(36, generator.generate().length());
+    }
+}
@@ -0,0 +1,56 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.security.MessageDigest;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.codec.binary.Hex;
+import org.codelibs.elasticsearch.solr.SolrPluginConstants;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.hash.MurmurHash3;
+
+public class IdHasherTest extends TestCase {
+
+    private static final String[] IDS = { "", "id1",
+            "http://localhost/\u3042\u3044\u3046?q=1" };
+
+    public void test_md5() throws Exception {
+        final IdHasher hasher = IdHasher.create("MD5");
+        for (final String id : IDS) {
+            assertEquals(digestHex("MD5", id), hasher.hash(id));
+        }
+    }
+
+    public void test_sha1() throws Exception {
+        final IdHasher hasher = IdHasher.create("SHA-1");
+        for (final String id : IDS) {
+            assertEquals(digestHex("SHA-1", id), hasher.hash(id));
+        }
+    }
+
+    public void test_murmur3() throws Exception {
+        final IdHasher hasher = IdHasher.create("murmur3");
+        for (final String id : IDS) {
+            final byte[] bytes = id.getBytes(SolrPluginConstants.CHARSET_UTF8);
+            final MurmurHash3.Hash128 hash = MurmurHash3.hash128(bytes, 0,
+                    bytes.length, 0, new MurmurHash3.Hash128());
+            assertEquals(String.format("%016x%016x", hash.h1, hash.h2),
+                    hasher.hash(id));
+        }
+    }
+
+    public void test_unknown() throws Exception {
+        try {
+            IdHasher.create("unknown");
+            fail();
+        } catch (final ElasticsearchIllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private String digestHex(final String algorithm, final String id)
+            throws Exception {
+        return String.valueOf(Hex.encodeHex(MessageDigest.getInstance(
+                algorithm).digest(id.getBytes(SolrPluginConstants.CHARSET_UTF8))));
+    }
+}
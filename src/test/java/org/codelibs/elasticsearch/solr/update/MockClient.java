@@ -0,0 +1,166 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionFuture;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.client.AdminClient;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.ClusterAdminClient;
+import org.elasticsearch.client.IndicesAdminClient;
+import org.elasticsearch.client.support.AbstractClient;
+import org.elasticsearch.client.support.AbstractIndicesAdminClient;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * A client which answers the actions with the handlers of a test instead
+ * of a cluster. The requests are recorded in the order they are executed.
+ */
+public class MockClient extends AbstractClient {
+
+    public interface Handler {
+        void handle(ActionRequest<?> request,
+                ActionListener<ActionResponse> listener);
+    }
+
+    private final Map<String, Handler> handlers = new HashMap<String, Handler>();
+
+    private final List<ActionRequest<?>> requests = Collections
+            .synchronizedList(new ArrayList<ActionRequest<?>>());
+
+    private final ThreadPool threadPool;
+
+    private final IndicesAdminClient indicesAdminClient = new AbstractIndicesAdminClient() {
+        @Override
+        public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder, IndicesAdminClient>> ActionFuture<Response> execute(
+                final Action<Request, Response, RequestBuilder, IndicesAdminClient> action,
+                final Request request) {
+            final PlainActionFuture<Response> future = PlainActionFuture
+                    .newFuture();
+            execute(action, request, future);
+            return future;
+        }
+
+        @Override
+        public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder, IndicesAdminClient>> void execute(
+                final Action<Request, Response, RequestBuilder, IndicesAdminClient> action,
+                final Request request, final ActionListener<Response> listener) {
+            dispatch(action.name(), request, listener);
+        }
+
+        @Override
+        public ThreadPool threadPool() {
+            return threadPool;
+        }
+    };
+
+    public MockClient(final ThreadPool threadPool) {
+        this.threadPool = threadPool;
+    }
+
+    /**
+     * @param action
+     *            the action to answer
+     * @param handler
+     *            the handler of the requests of the action
+     * @return this client
+     */
+    public MockClient on(final Action<?, ?, ?, ?> action, final Handler handler) {
+        handlers.put(action.name(), handler);
+        return this;
+    }
+
+    /**
+     * @return the executed requests
+     */
+    public List<ActionRequest<?>> requests() {
+        synchronized (requests) {
+            return new ArrayList<ActionRequest<?>>(requests);
+        }
+    }
+
+    /**
+     * @param requestClass
+     *            the type of the requests
+     * @return the executed requests of the type
+     */
+    public <T> List<T> requests(final Class<T> requestClass) {
+        final List<T> list = new ArrayList<T>();
+        for (final ActionRequest<?> request : requests()) {
+            if (requestClass.isInstance(request)) {
+                list.add(requestClass.cast(request));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder, Client>> ActionFuture<Response> execute(
+            final Action<Request, Response, RequestBuilder, Client> action,
+            final Request request) {
+        final PlainActionFuture<Response> future = PlainActionFuture
+                .newFuture();
+        execute(action, request, future);
+        return future;
+    }
+
+    @Override
+    public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder, Client>> void execute(
+            final Action<Request, Response, RequestBuilder, Client> action,
+            final Request request, final ActionListener<Response> listener) {
+        dispatch(action.name(), request, listener);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <Response extends ActionResponse> void dispatch(
+            final String name, final ActionRequest<?> request,
+            final ActionListener<Response> listener) {
+        requests.add(request);
+        final Handler handler = handlers.get(name);
+        if (handler == null) {
+            listener.onFailure(new UnsupportedOperationException(name));
+            return;
+        }
+        handler.handle(request, (ActionListener<ActionResponse>) listener);
+    }
+
+    @Override
+    public ThreadPool threadPool() {
+        return threadPool;
+    }
+
+    @Override
+    public AdminClient admin() {
+        return new AdminClient() {
+            @Override
+            public IndicesAdminClient indices() {
+                return indicesAdminClient;
+            }
+
+            @Override
+            public ClusterAdminClient cluster() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public Settings settings() {
+        return ImmutableSettings.EMPTY;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,197 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetAction;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.Requests;
+import org.elasticsearch.index.get.GetField;
+import org.elasticsearch.index.get.GetResult;
+
+public class SignatureDeduplicatorTest extends TestCase {
+
+    // id -> the signature of the stored document
+    private final Map<String, String> stored = new HashMap<String, String>();
+
+    private MockClient client;
+
+    private SignatureDeduplicator deduplicator;
+
+    private final BulkRequest request = Requests.bulkRequest();
+
+    private final Map<ActionRequest<?>, String> signatures = new IdentityHashMap<ActionRequest<?>, String>();
+
+    @Override
+    protected void setUp() throws Exception {
+        client = new MockClient(null).on(MultiGetAction.INSTANCE,
+                new MockClient.Handler() {
+                    @Override
+                    public void handle(final ActionRequest<?> request,
+                            final ActionListener<ActionResponse> listener) {
+                        final MultiGetRequest multiGetRequest = (MultiGetRequest) request;
+                        assertTrue(multiGetRequest.realtime());
+                        final List<MultiGetRequest.Item> items = multiGetRequest
+                                .getItems();
+                        final MultiGetItemResponse[] responses = new MultiGetItemResponse[items
+                                .size()];
+                        for (int i = 0; i < responses.length; i++) {
+                            final MultiGetRequest.Item item = items.get(i);
+                            final String signature = stored.get(item.id());
+                            final Map<String, GetField> fields = signature == null ? null
+                                    : Collections.singletonMap(
+                                            "signature",
+                                            new GetField("signature",
+                                                    Collections
+                                                            .<Object> singletonList(signature)));
+                            responses[i] = new MultiGetItemResponse(
+                                    new GetResponse(new GetResult(item
+                                            .index(), item.type(), item.id(),
+                                            1, signature != null, null,
+                                            fields)), null);
+                        }
+                        listener.onResponse(new MultiGetResponse(responses));
+                    }
+                });
+        deduplicator = new SignatureDeduplicator(client, new String[0],
+                "signature", "murmur3", 100);
+    }
+
+    public void test_collapseInChunk() {
+        add("1", "s1");
+        add("1", "s2");
+        add("2", "s3");
+        add("1", "s4");
+
+        // the last add of the same id is sent
+        assertEquals("[2:s3, 1:s4]", filter());
+    }
+
+    public void test_storedSignature() {
+        stored.put("1", "s1");
+        stored.put("2", "s9");
+        add("1", "s1");
+        add("2", "s2");
+        add("3", "s3");
+
+        assertEquals("[2:s2, 3:s3]", filter());
+        final List<MultiGetRequest> multiGets = client
+                .requests(MultiGetRequest.class);
+        assertEquals(1, multiGets.size());
+        assertEquals(3, multiGets.get(0).getItems().size());
+    }
+
+    public void test_cacheHint() {
+        // the signatures of the sent adds are cached
+        add("1", "s1");
+        add("2", "s2");
+        deduplicator.update(request, newBulkResponse(request), signatures);
+        stored.put("1", "s1");
+        stored.put("2", "s2");
+
+        // a different signature is sent without the get
+        clear();
+        add("1", "s3");
+        assertEquals("[1:s3]", filter());
+        assertEquals(0, client.requests(MultiGetRequest.class).size());
+
+        // the same signature is confirmed by the stored document
+        clear();
+        add("2", "s2");
+        assertEquals("[]", filter());
+        assertEquals(1, client.requests(MultiGetRequest.class).size());
+
+        // the cached signature of a deleted document is stale
+        stored.remove("2");
+        clear();
+        add("2", "s2");
+        assertEquals("[2:s2]", filter());
+        assertEquals(2, client.requests(MultiGetRequest.class).size());
+    }
+
+    public void test_deleteThenReAdd() {
+        stored.put("1", "s1");
+        request.add(new DeleteRequest("a", "b", "1"));
+        add("1", "s1");
+
+        // the add is compared with the deleted document
+        final BulkRequest filtered = filterRequest();
+        assertEquals(2, filtered.numberOfActions());
+        assertTrue(filtered.requests().get(0) instanceof DeleteRequest);
+        assertTrue(filtered.requests().get(1) instanceof IndexRequest);
+    }
+
+    private void add(final String id, final String signature) {
+        final IndexRequest indexRequest = new IndexRequest("a", "b", id)
+                .source("signature", signature);
+        request.add(indexRequest);
+        signatures.put(indexRequest, signature);
+    }
+
+    private void clear() {
+        request.requests().clear();
+        signatures.clear();
+    }
+
+    private String filter() {
+        final StringBuilder buf = new StringBuilder();
+        buf.append('[');
+        for (final ActionRequest<?> action : filterRequest().requests()) {
+            if (buf.length() > 1) {
+                buf.append(", ");
+            }
+            final IndexRequest indexRequest = (IndexRequest) action;
+            buf.append(indexRequest.id()).append(':')
+                    .append(indexRequest.sourceAsMap().get("signature"));
+        }
+        return buf.append(']').toString();
+    }
+
+    private BulkRequest filterRequest() {
+        final AtomicReference<BulkRequest> result = new AtomicReference<BulkRequest>();
+        deduplicator.filter(request, signatures,
+                new ActionListener<BulkRequest>() {
+                    @Override
+                    public void onResponse(final BulkRequest response) {
+                        result.set(response);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable e) {
+                        fail(e.toString());
+                    }
+                });
+        return result.get();
+    }
+
+    private static BulkResponse newBulkResponse(final BulkRequest request) {
+        final BulkItemResponse[] items = new BulkItemResponse[request
+                .numberOfActions()];
+        for (int i = 0; i < items.length; i++) {
+            final IndexRequest indexRequest = (IndexRequest) request
+                    .requests().get(i);
+            items[i] = new BulkItemResponse(i, "index", new IndexResponse(
+                    indexRequest.index(), indexRequest.type(),
+                    indexRequest.id(), 1, true));
+        }
+        return new BulkResponse(items, 1);
+    }
+}
@@ -0,0 +1,76 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import junit.framework.TestCase;
+
+import org.apache.solr.common.util.NamedList;
+import org.elasticsearch.common.lease.Releasable;
+
+public class UpdateAdmissionControllerTest extends TestCase {
+
+    public void test_maxInflightRequests() {
+        final UpdateAdmissionController controller = new UpdateAdmissionController(
+                0, 2);
+        final Releasable permit1 = controller.tryAcquire(10);
+        final Releasable permit2 = controller.tryAcquire(10);
+        assertNotNull(permit1);
+        assertNotNull(permit2);
+        assertNull(controller.tryAcquire(10));
+
+        // a released permit admits the next request
+        permit1.close();
+        final Releasable permit3 = controller.tryAcquire(10);
+        assertNotNull(permit3);
+        permit2.close();
+        permit3.close();
+
+        final NamedList<Object> stats = controller.stats();
+        assertEquals(0L, stats.get("inflight_bytes"));
+        assertEquals(0, stats.get("inflight_requests"));
+        assertEquals(3L, stats.get("admitted_requests"));
+        assertEquals(1L, stats.get("rejected_requests"));
+    }
+
+    public void test_maxInflightBytes() {
+        final UpdateAdmissionController controller = new UpdateAdmissionController(
+                100, 0);
+        assertFalse(controller.isTooLarge(100));
+        assertTrue(controller.isTooLarge(101));
+
+        final Releasable permit1 = controller.tryAcquire(60);
+        assertNotNull(permit1);
+        assertNull(controller.tryAcquire(50));
+        // the rejected request does not hold its bytes
+        final Releasable permit2 = controller.tryAcquire(40);
+        assertNotNull(permit2);
+        assertEquals(100L, controller.stats().get("inflight_bytes"));
+        assertEquals(2, controller.stats().get("inflight_requests"));
+
+        permit1.close();
+        permit2.close();
+        assertEquals(0L, controller.stats().get("inflight_bytes"));
+        assertEquals(0, controller.stats().get("inflight_requests"));
+    }
+
+    public void test_releaseOnce() {
+        final UpdateAdmissionController controller = new UpdateAdmissionController(
+                100, 1);
+        final Releasable permit = controller.tryAcquire(10);
+        // the request may finish on several paths
+        permit.close();
+        permit.close();
+        assertEquals(0L, controller.stats().get("inflight_bytes"));
+        assertEquals(0, controller.stats().get("inflight_requests"));
+        assertNotNull(controller.tryAcquire(10));
+        assertNull(controller.tryAcquire(10));
+    }
+
+    public void test_noLimit() {
+        final UpdateAdmissionController controller = new UpdateAdmissionController(
+                0, 0);
+        assertFalse(controller.isTooLarge(Long.MAX_VALUE / 2));
+        for (int i = 0; i < 1000; i++) {
+            assertNotNull(controller.tryAcquire(Integer.MAX_VALUE));
+        }
+        assertEquals(0L, controller.stats().get("rejected_requests"));
+    }
+}
@@ -0,0 +1,252 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
+
+public class UpdateBulkProcessorTest extends TestCase {
+
+    private ExecutorService executor;
+
+    // id -> the value of the document applied by the mock cluster
+    private final Map<String, Object> store = new HashMap<String, Object>();
+
+    // the values of adds which are rejected by their first attempt
+    private final Set<Object> rejectedOnce = Collections
+            .synchronizedSet(new HashSet<Object>());
+
+    private final Random random = new Random(1);
+
+    private ThreadPool threadPool;
+
+    @Override
+    protected void setUp() throws Exception {
+        executor = Executors.newCachedThreadPool();
+        threadPool = new ThreadPool("test");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+    }
+
+    public void test_interleavedAddDelete() throws Exception {
+        for (final int concurrentRequests : new int[] { 1, 2, 4 }) {
+            store.clear();
+            final MockClient client = new MockClient(null).on(
+                    BulkAction.INSTANCE, new DelayedBulkHandler());
+            final UpdateBulkProcessor processor = new UpdateBulkProcessor(
+                    client, 3, -1, concurrentRequests, false, null, null);
+
+            // the state after the actions are applied in order
+            final Map<String, Object> expected = new HashMap<String, Object>();
+            for (int i = 0; i < 300; i++) {
+                final String id = Integer.toString(random.nextInt(5));
+                if (random.nextInt(3) == 0) {
+                    processor.add(new DeleteRequest("a", "b", id));
+                    expected.remove(id);
+                } else {
+                    processor.add(new IndexRequest("a", "b", id).source("n",
+                            i));
+                    expected.put(id, i);
+                }
+            }
+            assertTrue(close(processor).isEmpty());
+            assertEquals("concurrent_requests=" + concurrentRequests,
+                    expected, store);
+        }
+    }
+
+    public void test_generatedIds() throws Exception {
+        final MockClient client = new MockClient(null).on(BulkAction.INSTANCE,
+                new DelayedBulkHandler());
+        final UpdateBulkProcessor processor = new UpdateBulkProcessor(client,
+                2, -1, 3, false, null, null);
+        for (int i = 0; i < 10; i++) {
+            processor.add(new IndexRequest("a", "b").source("n", i));
+        }
+        assertTrue(close(processor).isEmpty());
+        assertEquals(10, processor.numberOfActions());
+        // the chunks are spread over the partitions
+        assertEquals(6, client.requests(BulkRequest.class).size());
+    }
+
+    public void test_retryInChunk() throws Exception {
+        final MockClient client = new MockClient(null).on(BulkAction.INSTANCE,
+                new DelayedBulkHandler());
+        final UpdateBulkProcessor processor = new UpdateBulkProcessor(client,
+                10, -1, 1, false, null, newRetryPolicy());
+        rejectedOnce.add(0);
+        rejectedOnce.add(1);
+        rejectedOnce.add(3);
+        processor.add(new IndexRequest("a", "b", "1").source("n", 0));
+        processor.add(new IndexRequest("a", "b", "2").source("n", 1));
+        processor.add(new DeleteRequest("a", "b", "1"));
+        processor.add(new IndexRequest("a", "b", "3").source("n", 3));
+        processor.add(new IndexRequest("a", "b", "3").source("n", 4));
+        assertTrue(close(processor).isEmpty());
+
+        // the deleted and the replaced documents are not added again
+        final Map<String, Object> expected = new HashMap<String, Object>();
+        expected.put("2", 1);
+        expected.put("3", 4);
+        assertEquals(expected, store);
+        final List<BulkRequest> bulkRequests = client
+                .requests(BulkRequest.class);
+        assertEquals(2, bulkRequests.size());
+        assertEquals(1, bulkRequests.get(1).numberOfActions());
+    }
+
+    public void test_retryInChunk_notReplaced() throws Exception {
+        final MockClient client = new MockClient(null).on(BulkAction.INSTANCE,
+                new DelayedBulkHandler());
+        final UpdateBulkProcessor processor = new UpdateBulkProcessor(client,
+                10, -1, 1, false, null, newRetryPolicy());
+        rejectedOnce.add(0);
+        processor.add(new IndexRequest("a", "b", "1").source("n", 0));
+        processor.add(new IndexRequest("a", "b", "1").source("n", 1).create(
+                true));
+        final List<UpdateFailure> failures = close(processor);
+
+        // the retry would overwrite the later create
+        assertEquals(1, failures.size());
+        assertEquals("1", failures.get(0).getId());
+        assertEquals(1, store.get("1"));
+        assertEquals(1, client.requests(BulkRequest.class).size());
+    }
+
+    public void test_retryAcrossChunks() throws Exception {
+        for (final int concurrentRequests : new int[] { 1, 2, 4 }) {
+            store.clear();
+            final MockClient client = new MockClient(null).on(
+                    BulkAction.INSTANCE, new DelayedBulkHandler());
+            final UpdateBulkProcessor processor = new UpdateBulkProcessor(
+                    client, 2, -1, concurrentRequests, false, null,
+                    newRetryPolicy());
+            final Map<String, Object> expected = new HashMap<String, Object>();
+            for (int i = 0; i < 100; i++) {
+                final String id = Integer.toString(random.nextInt(5));
+                if (random.nextInt(3) == 0) {
+                    processor.add(new DeleteRequest("a", "b", id));
+                    expected.remove(id);
+                } else {
+                    if (random.nextInt(4) == 0) {
+                        rejectedOnce.add(i);
+                    }
+                    processor.add(new IndexRequest("a", "b", id).source("n",
+                            i));
+                    expected.put(id, i);
+                }
+            }
+            assertTrue(close(processor).isEmpty());
+            assertEquals("concurrent_requests=" + concurrentRequests,
+                    expected, store);
+        }
+    }
+
+    private BulkRetryPolicy newRetryPolicy() {
+        return new BulkRetryPolicy(threadPool, 3,
+                TimeValue.timeValueMillis(1), TimeValue.timeValueMillis(5));
+    }
+
+    private List<UpdateFailure> close(final UpdateBulkProcessor processor)
+            throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<List<UpdateFailure>> result = new AtomicReference<List<UpdateFailure>>();
+        processor.close(new UpdateBulkProcessor.Listener() {
+            @Override
+            public void onCompleted(final int numberOfActions,
+                    final List<UpdateFailure> failures) {
+                result.set(failures);
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        return result.get();
+    }
+
+    /**
+     * Applies a bulk request to the store after a random delay, so bulk
+     * requests in flight at once complete in any order.
+     */
+    private class DelayedBulkHandler implements MockClient.Handler {
+        @Override
+        public void handle(final ActionRequest<?> request,
+                final ActionListener<ActionResponse> listener) {
+            final long delay = random.nextInt(5);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    listener.onResponse(apply((BulkRequest) request));
+                }
+            });
+        }
+
+        private BulkResponse apply(final BulkRequest request) {
+            final List<ActionRequest> actions = request.requests();
+            final BulkItemResponse[] items = new BulkItemResponse[actions
+                    .size()];
+            synchronized (store) {
+                for (int i = 0; i < items.length; i++) {
+                    final ActionRequest<?> action = actions.get(i);
+                    if (action instanceof DeleteRequest) {
+                        final DeleteRequest delete = (DeleteRequest) action;
+                        final boolean found = store.remove(delete.id()) != null;
+                        items[i] = new BulkItemResponse(i, "delete",
+                                new DeleteResponse(delete.index(), delete
+                                        .type(), delete.id(), 1, found));
+                    } else if (rejectedOnce.remove(((IndexRequest) action)
+                            .sourceAsMap().get("n"))) {
+                        final IndexRequest index = (IndexRequest) action;
+                        items[i] = new BulkItemResponse(i, "index",
+                                new BulkItemResponse.Failure(index.index(),
+                                        index.type(), index.id(), "rejected",
+                                        RestStatus.TOO_MANY_REQUESTS));
+                    } else {
+                        final IndexRequest index = (IndexRequest) action;
+                        final String id = index.id() != null ? index.id()
+                                : "generated" + store.size();
+                        final boolean created = store.put(id, index
+                                .sourceAsMap().get("n")) == null;
+                        items[i] = new BulkItemResponse(i, "index",
+                                new IndexResponse(index.index(), index.type(),
+                                        id, 1, created));
+                    }
+                }
+            }
+            return new BulkResponse(items, 1);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import org.codelibs.elasticsearch.solr.rest.MockRestRequest;
+import org.elasticsearch.action.WriteConsistencyLevel;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.replication.ReplicationType;
+import org.elasticsearch.action.support.replication.ShardReplicationOperationRequest;
+import org.elasticsearch.rest.RestRequest;
+
+/**
+ * Measures the per-document cost of creating index requests for batches of
+ * 100k documents, resolving the request parameters for each document versus
+ * once with {@link UpdateContext}. This is not a unit test; run it with
+ * main().
+ *
+ * @author shinsuke
+ *
+ */
+public class UpdateContextBenchmark {
+
+    private static final int NUM_OF_DOCS = 100000;
+
+    private static final int NUM_OF_ROUNDS = 20;
+
+    public static void main(final String[] args) {
+        final RestRequest request = new MockRestRequest()
+                .withParam("wt", "javabin").withParam("version", "2")
+                .withParam("index", "solr").withParam("type", "docs")
+                .withParam("routing", "r1").withParam("timeout", "30s")
+                .withParam("refresh", "false")
+                .withParam("replication", "sync")
+                .withParam("consistency", "quorum");
+
+        for (int round = 0; round < NUM_OF_ROUNDS; round++) {
+            final boolean print = round >= NUM_OF_ROUNDS / 2;
+
+            long start = System.nanoTime();
+            long count = 0;
+            for (int i = 0; i < NUM_OF_DOCS; i++) {
+                count += perDocument(request, Integer.toString(i)).id()
+                        .length();
+            }
+            final long perDocumentTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            final UpdateContext context = new UpdateContext(request, "solr",
+                    "docs", null, null);
+            for (int i = 0; i < NUM_OF_DOCS; i++) {
+                count += context.newIndexRequest(Integer.toString(i),
+                        context.routing()).id().length();
+            }
+            final long contextTime = System.nanoTime() - start;
+
+            if (print) {
+                System.out.println("round " + round + ": per-document "
+                        + perDocumentTime / NUM_OF_DOCS + " ns/doc, context "
+                        + contextTime / NUM_OF_DOCS + " ns/doc (" + count
+                        + ")");
+            }
+        }
+    }
+
+    // the request creation before UpdateContext
+    private static IndexRequest perDocument(final RestRequest request,
+            final String id) {
+        final String index = request.hasParam("index") ? request
+                .param("index") : "solr";
+        final String type = request.hasParam("type") ? request.param("type")
+                : "docs";
+        final IndexRequest indexRequest = new IndexRequest(index, type, id);
+        indexRequest.routing(request.param("routing"));
+        indexRequest.parent(request.param("parent"));
+        indexRequest.timeout(request.paramAsTime("timeout",
+                ShardReplicationOperationRequest.DEFAULT_TIMEOUT));
+        indexRequest.refresh(request.paramAsBoolean("refresh", false));
+        indexRequest.opType(IndexRequest.OpType.INDEX);
+        final String replicationType = request.param("replication");
+        if (replicationType != null) {
+            indexRequest.replicationType(ReplicationType
+                    .fromString(replicationType));
+        }
+        final String consistencyLevel = request.param("consistency");
+        if (consistencyLevel != null) {
+            indexRequest.consistencyLevel(WriteConsistencyLevel
+                    .fromString(consistencyLevel));
+        }
+        indexRequest.listenerThreaded(true);
+        indexRequest.operationThreaded(true);
+        return indexRequest;
+    }
+}
@@ -0,0 +1,169 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.codelibs.elasticsearch.solr.rest.MockRestRequest;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+
+public class UpdateJobQueueTest extends TestCase {
+
+    private UpdateJobQueue jobQueue;
+
+    // the number of the released jobs
+    private final AtomicInteger released = new AtomicInteger();
+
+    // the jobs wait for this latch before they complete
+    private final CountDownLatch blockLatch = new CountDownLatch(1);
+
+    @Override
+    protected void tearDown() throws Exception {
+        blockLatch.countDown();
+        jobQueue.close();
+    }
+
+    public void test_submit() throws Exception {
+        jobQueue = newJobQueue(2, 10, 10);
+        final UpdateJob job = jobQueue.submit(new MockRestRequest(),
+                new CompletingRunner(), new CountingReleasable());
+        job.await();
+
+        assertSame(job, jobQueue.get(job.getId()));
+        assertEquals(0, job.toNamedList().get("status"));
+        awaitReleased(1);
+        assertNull(jobQueue.get("unknown"));
+    }
+
+    public void test_rejected() throws Exception {
+        jobQueue = newJobQueue(1, 1, 10);
+        // one job is running and one is waiting
+        jobQueue.submit(new MockRestRequest(), new BlockedRunner(),
+                new CountingReleasable());
+        final UpdateJob queued = jobQueue.submit(new MockRestRequest(),
+                new BlockedRunner(), new CountingReleasable());
+        awaitQueued(1);
+        try {
+            jobQueue.submit(new MockRestRequest(), new BlockedRunner(),
+                    new CountingReleasable());
+            fail();
+        } catch (final EsRejectedExecutionException e) {
+            // the rejected job is released and forgotten
+            assertEquals(1, released.get());
+        }
+        assertSame(queued, jobQueue.get(queued.getId()));
+
+        blockLatch.countDown();
+        queued.await();
+        awaitReleased(3);
+    }
+
+    public void test_evict() throws Exception {
+        jobQueue = newJobQueue(1, 10, 2);
+        final UpdateJob job1 = jobQueue.submit(new MockRestRequest(),
+                new CompletingRunner(), new CountingReleasable());
+        job1.await();
+        final UpdateJob job2 = jobQueue.submit(new MockRestRequest(),
+                new CompletingRunner(), new CountingReleasable());
+        job2.await();
+        final UpdateJob job3 = jobQueue.submit(new MockRestRequest(),
+                new CompletingRunner(), new CountingReleasable());
+        job3.await();
+
+        // the oldest finished job is removed
+        assertNull(jobQueue.get(job1.getId()));
+        assertSame(job2, jobQueue.get(job2.getId()));
+        assertSame(job3, jobQueue.get(job3.getId()));
+    }
+
+    public void test_close() throws Exception {
+        jobQueue = newJobQueue(1, 10, 10);
+        final UpdateJob running = jobQueue.submit(new MockRestRequest(),
+                new BlockedRunner(), new CountingReleasable());
+        final UpdateJob queued1 = jobQueue.submit(new MockRestRequest(),
+                new CompletingRunner(), new CountingReleasable());
+        final UpdateJob queued2 = jobQueue.submit(new MockRestRequest(),
+                new CompletingRunner(), new CountingReleasable());
+        awaitQueued(2);
+
+        jobQueue.close();
+
+        // the jobs which have not finished fail and are released
+        for (final UpdateJob job : new UpdateJob[] { running, queued1,
+                queued2 }) {
+            job.await();
+            assertEquals(500, job.toNamedList().get("status"));
+        }
+        assertNull(queued1.toNamedList().get("started"));
+        awaitReleased(3);
+
+        try {
+            jobQueue.submit(new MockRestRequest(), new CompletingRunner(),
+                    new CountingReleasable());
+            fail();
+        } catch (final EsRejectedExecutionException e) {
+            assertEquals(4, released.get());
+        }
+    }
+
+    private UpdateJobQueue newJobQueue(final int workers, final int queueSize,
+            final int maxJobs) {
+        return new UpdateJobQueue(ImmutableSettings.settingsBuilder()
+                .put("solr.update.async.workers", workers)
+                .put("solr.update.async.queue_size", queueSize)
+                .put("solr.update.async.max_jobs", maxJobs).build());
+    }
+
+    private void awaitQueued(final int count) throws InterruptedException {
+        while (((Number) jobQueue.stats().get("queued_jobs")).intValue() < count) {
+            Thread.sleep(10);
+        }
+    }
+
+    private void awaitReleased(final int count) throws InterruptedException {
+        final long startTime = System.currentTimeMillis();
+        while (released.get() < count) {
+            assertTrue(System.currentTimeMillis() - startTime < 10000);
+            Thread.sleep(10);
+        }
+        assertEquals(count, released.get());
+    }
+
+    private static class CompletingRunner implements UpdateJobQueue.Runner {
+        @Override
+        public void run(final UpdateJob job) {
+            job.complete(0, new SimpleOrderedMap<Object>());
+        }
+    }
+
+    private class BlockedRunner implements UpdateJobQueue.Runner {
+        @Override
+        public void run(final UpdateJob job) {
+            // the updates complete the job later
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        blockLatch.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    job.complete(0, new SimpleOrderedMap<Object>());
+                }
+            }.start();
+        }
+    }
+
+    private class CountingReleasable implements Releasable {
+        @Override
+        public void close() {
+            released.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.codelibs.elasticsearch.solr.update;
+
+import junit.framework.TestCase;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.codelibs.elasticsearch.solr.rest.MockRestRequest;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestStatus;
+
+public class UpdateJobTest extends TestCase {
+
+    public void test_complete() throws Exception {
+        final UpdateJob job = new UpdateJob("job1", new MockRestRequest());
+        assertEquals(UpdateJob.QUEUED, job.getState());
+        NamedList<Object> status = job.toNamedList();
+        assertEquals("job1", status.get("id"));
+        assertNull(status.get("started"));
+        assertNull(status.get("status"));
+
+        job.start();
+        assertEquals(UpdateJob.RUNNING, job.getState());
+        assertNotNull(job.toNamedList().get("started"));
+
+        final NamedList<Object> result = new SimpleOrderedMap<Object>();
+        result.add("updated", 1);
+        job.complete(0, result);
+        job.await();
+        assertTrue(job.isDone());
+        assertTrue(job.getFinishTime() > 0);
+
+        // only the first result is recorded
+        job.complete(500, new SimpleOrderedMap<Object>());
+        status = job.toNamedList();
+        assertEquals(UpdateJob.DONE, status.get("state"));
+        assertEquals(0, status.get("status"));
+        assertSame(result, status.get("result"));
+        assertNotNull(status.get("finished"));
+    }
+
+    public void test_sendResponse() throws Exception {
+        final UpdateJob job = new UpdateJob("job1", new MockRestRequest());
+        job.start();
+        // a response which is not a Solr response is the error of the job
+        job.sendResponse(new BytesRestResponse(
+                RestStatus.SERVICE_UNAVAILABLE, "closing"));
+        assertTrue(job.isDone());
+        final NamedList<?> status = job.toNamedList();
+        assertEquals(500, status.get("status"));
+        final NamedList<?> error = (NamedList<?>) ((NamedList<?>) status
+                .get("result")).get("error");
+        assertEquals(503, error.get("code"));
+        assertEquals("closing", error.get("msg"));
+    }
+}
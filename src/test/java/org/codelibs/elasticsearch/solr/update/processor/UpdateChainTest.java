@@ -0,0 +1,68 @@
+package org.codelibs.elasticsearch.solr.update.processor;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.codelibs.elasticsearch.solr.update.UpdateDocument;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+
+public class UpdateChainTest extends TestCase {
+
+    public void test_process() {
+        final Settings settings = ImmutableSettings.settingsBuilder()
+                .put("solr.update.chain.c1.0.type", "rename")
+                .put("solr.update.chain.c1.0.from", "title_s")
+                .put("solr.update.chain.c1.0.to", "title")
+                .put("solr.update.chain.c1.1.type", "drop")
+                .putArray("solr.update.chain.c1.1.fields", "junk")
+                .put("solr.update.chain.c1.2.type", "coerce")
+                .putArray("solr.update.chain.c1.2.fields", "n")
+                .put("solr.update.chain.c1.2.to", "long")
+                .put("solr.update.chain.c1.3.type", "default")
+                .put("solr.update.chain.c1.3.field", "lang")
+                .put("solr.update.chain.c1.3.value", "en")
+                .put("solr.update.chain.c1.4.type", "regex")
+                .put("solr.update.chain.c1.4.source", "url")
+                .put("solr.update.chain.c1.4.target", "host")
+                .put("solr.update.chain.c1.4.pattern", "://([^/]+)")
+                .put("solr.update.chain.c1.5.type", "timestamp")
+                // runs after the rename
+                .put("solr.update.chain.c1.10.type", "rename")
+                .put("solr.update.chain.c1.10.from", "title")
+                .put("solr.update.chain.c1.10.to", "name").build();
+        final Map<String, UpdateChain> chains = UpdateChain.load(settings);
+        assertEquals(1, chains.size());
+
+        final UpdateDocument doc = new UpdateDocument();
+        doc.addField("title_s", "T");
+        doc.addField("junk", "x");
+        doc.addField("n", Arrays.asList("1", "abc"));
+        doc.addField("url", "http://example.com/a");
+        chains.get("c1").process(doc);
+
+        assertEquals("T", doc.getFirstValue("name"));
+        assertFalse(doc.hasField("title_s"));
+        assertFalse(doc.hasField("title"));
+        assertFalse(doc.hasField("junk"));
+        assertEquals(Arrays.<Object> asList(1L, "abc"), doc.getValues("n"));
+        assertEquals("en", doc.getFirstValue("lang"));
+        assertEquals("example.com", doc.getFirstValue("host"));
+        assertTrue(doc.getFirstValue("timestamp") instanceof Date);
+    }
+
+    public void test_unknownType() {
+        final Settings settings = ImmutableSettings.settingsBuilder()
+                .put("solr.update.chain.c1.0.type", "unknown").build();
+        try {
+            UpdateChain.load(settings);
+            fail();
+        } catch (final ElasticsearchIllegalArgumentException e) {
+            // expected
+        }
+    }
+}